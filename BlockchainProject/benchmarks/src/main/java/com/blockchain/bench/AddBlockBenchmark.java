@@ -0,0 +1,86 @@
+package com.blockchain.bench;
+
+import com.blockchain.core.Blockchain;
+import com.blockchain.model.Block;
+import com.blockchain.model.Transaction;
+import com.blockchain.storage.SyncPolicy;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end block appends through {@link Blockchain}: block creation,
+ * validation of the new block, indexing, ledger update and persistence, by
+ * sync policy and block size. Each trial uses a fresh store in a temporary
+ * directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AddBlockBenchmark {
+
+    @Param({ "perBlock", "every100Blocks", "every10Millis" })
+    public String syncPolicy;
+
+    @Param({ "1", "100" })
+    public int transactionsPerBlock;
+
+    private Path dir;
+    private Blockchain blockchain;
+    private List<Transaction> transactions;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dir = Fixtures.tempDir("addblock-bench");
+        blockchain = new Blockchain(null, policy(syncPolicy), dir);
+        transactions = Fixtures.transactions(transactionsPerBlock, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        blockchain.close();
+        Fixtures.deleteRecursively(dir);
+    }
+
+    private static SyncPolicy policy(String name) {
+        switch (name) {
+            case "perBlock":
+                return SyncPolicy.perBlock();
+            case "every100Blocks":
+                return SyncPolicy.everyBlocks(100);
+            case "every10Millis":
+                return SyncPolicy.everyMillis(10);
+            default:
+                throw new IllegalArgumentException("Unknown sync policy: " + name);
+        }
+    }
+
+    /** Appends a block without waiting for it to be durable. */
+    @Benchmark
+    public CompletableFuture<Block> addBlock() {
+        return blockchain.addBlock(transactions);
+    }
+
+    /** Appends a block and waits until it is on disk. */
+    @Benchmark
+    public Block addBlockDurable() {
+        return blockchain.addBlock(transactions).join();
+    }
+}
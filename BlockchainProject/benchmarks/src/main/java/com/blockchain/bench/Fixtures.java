@@ -0,0 +1,65 @@
+package com.blockchain.bench;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static List<Transaction> transactions(int count, int seed) {
+        List<Transaction> txs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            txs.add(new Transaction("sender-" + (seed + i) % 1000, "recipient-" + (seed + i * 7) % 1000,
+                    (i % 100) + 0.5, 1_700_000_000_000L + i));
+        }
+        return txs;
+    }
+
+    /**
+     * Builds a valid chain of current-version blocks.
+     */
+    static List<Block> chain(int length, int transactionsPerBlock) {
+        List<Block> chain = new ArrayList<>(length);
+        Hash256 previous = Hash256.ZERO;
+        for (int i = 0; i < length; i++) {
+            Block block = new Block(i, transactions(transactionsPerBlock, i), previous);
+            chain.add(block);
+            previous = block.getHash();
+        }
+        return chain;
+    }
+
+    static Path tempDir(String prefix) {
+        try {
+            return Files.createTempDirectory(prefix);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void deleteRecursively(Path dir) {
+        if (dir == null || !Files.exists(dir))
+            return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.blockchain.bench;
+
+import com.blockchain.util.HashUtil;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the original string-based SHA-256 helper with the byte-oriented
+ * HashUtil API.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({ "32", "64", "256", "4096" })
+    public int inputSize;
+
+    private String text;
+    private byte[] bytes;
+    private final byte[] out = new byte[HashUtil.DIGEST_LENGTH];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        char[] chars = new char[inputSize];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        text = new String(chars);
+        bytes = text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** The helper as it was before the byte API: new digest and StringBuffer per call. */
+    @Benchmark
+    public String legacyApplySha256() throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hash = digest.digest(text.getBytes("UTF-8"));
+        StringBuffer hexString = new StringBuffer();
+        for (int i = 0; i < hash.length; i++) {
+            String hex = Integer.toHexString(0xff & hash[i]);
+            if (hex.length() == 1)
+                hexString.append('0');
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
+    @Benchmark
+    public String applySha256() {
+        return HashUtil.applySha256(text);
+    }
+
+    @Benchmark
+    public byte[] sha256Bytes() {
+        return HashUtil.sha256(bytes);
+    }
+
+    @Benchmark
+    public byte[] sha256IntoBuffer() {
+        HashUtil.sha256(bytes, 0, bytes.length, out, 0);
+        return out;
+    }
+}
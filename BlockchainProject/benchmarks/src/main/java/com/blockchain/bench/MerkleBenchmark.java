@@ -0,0 +1,54 @@
+package com.blockchain.bench;
+
+import com.blockchain.ds.MerkleTree;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to build a Merkle tree and read its root, by transaction count and
+ * block version (1 hashes hex strings, 2 hashes raw bytes).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MerkleBenchmark {
+
+    @Param({ "16", "256", "4096", "65536" })
+    public int transactionCount;
+
+    @Param({ "1", "2" })
+    public int version;
+
+    private List<Transaction> transactions;
+
+    @Setup
+    public void setup() {
+        transactions = Fixtures.transactions(transactionCount, 0);
+    }
+
+    @Benchmark
+    public Hash256 merkleRoot() {
+        return new MerkleTree(transactions, version).getRoot();
+    }
+
+    @Benchmark
+    public Object merkleProof() {
+        return new MerkleTree(transactions, version).getProof(transactionCount / 2);
+    }
+}
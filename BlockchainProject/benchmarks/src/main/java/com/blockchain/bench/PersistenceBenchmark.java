@@ -0,0 +1,104 @@
+package com.blockchain.bench;
+
+import com.blockchain.model.Block;
+import com.blockchain.storage.BlockStore;
+import com.blockchain.util.PersistenceManager;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading whole chains, by chain length: the JSON export format
+ * and the segmented block store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int chainLength;
+
+    @Param({ "4" })
+    public int transactionsPerBlock;
+
+    private List<Block> chain;
+    private Path dir;
+    private String jsonFile;
+    private Path storeDir;
+    private Path scratchStoreDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        chain = Fixtures.chain(chainLength, transactionsPerBlock);
+        dir = Fixtures.tempDir("persistence-bench");
+        jsonFile = dir.resolve("chain.json").toString();
+        PersistenceManager.saveChain(chain, jsonFile);
+        storeDir = dir.resolve("store");
+        try (BlockStore store = PersistenceManager.openStore(storeDir)) {
+            store.appendAll(chain);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void freshStore() {
+        scratchStoreDir = dir.resolve("scratch-" + System.nanoTime());
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeStore() {
+        Fixtures.deleteRecursively(scratchStoreDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void saveJson() {
+        PersistenceManager.saveChain(chain, jsonFile);
+    }
+
+    @Benchmark
+    public List<Block> loadJson() {
+        return PersistenceManager.loadChain(jsonFile);
+    }
+
+    @Benchmark
+    public int appendToStore() throws IOException {
+        try (BlockStore store = PersistenceManager.openStore(scratchStoreDir)) {
+            store.appendAll(chain);
+            return store.size();
+        }
+    }
+
+    /** Opens the store and decodes every block. */
+    @Benchmark
+    public long loadFromStore() throws IOException {
+        try (BlockStore store = PersistenceManager.openStore(storeDir)) {
+            long sum = 0;
+            for (Block b : PersistenceManager.loadChainLazily(store)) {
+                sum += b.getTimestamp();
+            }
+            return sum;
+        }
+    }
+}
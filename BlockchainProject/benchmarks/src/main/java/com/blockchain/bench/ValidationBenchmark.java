@@ -0,0 +1,72 @@
+package com.blockchain.bench;
+
+import com.blockchain.core.ChainValidator;
+import com.blockchain.core.ValidationReport;
+import com.blockchain.ds.MerkleTreeCache;
+import com.blockchain.model.Block;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full-chain validation, by chain length and number of validator threads.
+ * The Merkle tree cache is cleared before every run, so every block is
+ * rehashed as in a validation after startup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int chainLength;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    private List<Block> chain;
+    private ForkJoinPool pool;
+    private ChainValidator validator;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        chain = Fixtures.chain(chainLength, 4);
+        pool = new ForkJoinPool(threads);
+        validator = new ChainValidator(pool, ChainValidator.DEFAULT_CHUNK_SIZE);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCache() {
+        MerkleTreeCache.shared().clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public ValidationReport validate() {
+        ValidationReport report = validator.validate(chain);
+        if (!report.isValid()) {
+            throw new IllegalStateException("Fixture chain is invalid");
+        }
+        return report;
+    }
+}
@@ -0,0 +1,126 @@
+package com.blockchain.core;
+
+import com.blockchain.metrics.Counter;
+import com.blockchain.metrics.MetricsRegistry;
+import com.blockchain.model.Transaction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Builds blocks from the transactions waiting in a {@link Mempool}.
+ * 
+ * A block is produced as soon as {@code maxTransactions} are pending, or when
+ * the oldest pending transaction has waited {@code maxAgeMillis}, whichever
+ * comes first. Production runs on its own thread, so submitters never wait
+ * for hashing or disk I/O.
+ * 
+ * Optionally, transactions whose sender cannot cover the amount from the
+ * current ledger balances are dropped before the block is built.
+ * 
+ * Rejections and failures are reported through the chain's logger. A block
+ * that fails is logged and counted, and production carries on with the next
+ * one.
+ */
+public class BlockProducer {
+
+    private static final Counter BLOCKS_FAILED = MetricsRegistry.global().counter("producer_blocks_failed_total",
+            "Blocks the producer could not add or save");
+
+    private final Blockchain blockchain;
+    private final Mempool mempool;
+    private final int maxTransactions;
+    private final long maxAgeNanos;
+
+    private volatile boolean rejectOverdrafts;
+    private volatile boolean running;
+    private Thread thread;
+
+    public BlockProducer(Blockchain blockchain, Mempool mempool, int maxTransactions, long maxAgeMillis) {
+        if (maxTransactions < 1) {
+            throw new IllegalArgumentException("maxTransactions must be at least 1");
+        }
+        this.blockchain = blockchain;
+        this.mempool = mempool;
+        this.maxTransactions = maxTransactions;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Enables dropping transactions that would overdraw the sender's balance.
+     * Off by default, since the chain has no way to create funds.
+     */
+    public void setRejectOverdrafts(boolean rejectOverdrafts) {
+        this.rejectOverdrafts = rejectOverdrafts;
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this::run, "block-producer");
+        thread.setDaemon(true);
+        mempool.setWaiter(thread, maxTransactions);
+        thread.start();
+    }
+
+    /**
+     * Stops the producer after turning any pending transactions into blocks.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running)
+            return;
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join();
+        mempool.setWaiter(null, Integer.MAX_VALUE);
+        while (!mempool.isEmpty()) {
+            produceBlock();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long age = mempool.oldestAgeNanos();
+            if (mempool.size() >= maxTransactions || (age >= 0 && age >= maxAgeNanos)) {
+                produceBlock();
+                continue;
+            }
+            // Sleep until the oldest transaction times out, or until a submit
+            // fills a block and unparks us
+            long wait = age >= 0 ? maxAgeNanos - age : maxAgeNanos;
+            LockSupport.parkNanos(this, Math.max(wait, TimeUnit.MICROSECONDS.toNanos(100)));
+        }
+    }
+
+    // Never throws, so one bad block does not stop the producer thread
+    private void produceBlock() {
+        List<Transaction> transactions = new ArrayList<>(Math.min(maxTransactions, mempool.size()));
+        if (mempool.drain(maxTransactions, transactions) == 0)
+            return;
+        try {
+            if (rejectOverdrafts) {
+                List<Transaction> accepted = new ArrayList<>(transactions.size());
+                List<Transaction> rejected = new ArrayList<>();
+                blockchain.getLedger().selectAffordable(transactions, accepted, rejected);
+                for (Transaction tx : rejected) {
+                    blockchain.log("Rejected transaction (insufficient funds): " + tx);
+                }
+                transactions = accepted;
+            }
+            if (transactions.isEmpty())
+                return;
+            int count = transactions.size();
+            blockchain.addBlock(transactions).whenComplete((block, error) -> {
+                if (error != null) {
+                    BLOCKS_FAILED.increment();
+                    blockchain.log("Failed to produce a block of " + count + " transactions: " + error.getMessage());
+                }
+            });
+        } catch (RuntimeException e) {
+            BLOCKS_FAILED.increment();
+            blockchain.log("Failed to produce a block of " + transactions.size() + " transactions: " + e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.blockchain.core;
+
+/**
+ * What {@link Blockchain#acceptBlock} did with a block.
+ */
+public enum BlockStatus {
+    /** The block was appended to the main chain. */
+    EXTENDED,
+    /**
+     * The block made its branch heavier than the main chain, which now ends
+     * with that branch.
+     */
+    REORGANIZED,
+    /** The block was kept on a branch that is not (yet) the main chain. */
+    SIDE_BRANCH,
+    /** The parent is unknown; the block waits until the parent arrives. */
+    ORPHAN,
+    /** The block is already known. */
+    DUPLICATE,
+    /**
+     * The block forks off too far back, or too many side blocks are held
+     * already; it was dropped.
+     */
+    STALE
+}
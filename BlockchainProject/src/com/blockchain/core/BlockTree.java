@@ -0,0 +1,167 @@
+package com.blockchain.core;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The blocks that are known but not on the main chain, keyed by hash:
+ * <ul>
+ * <li>side blocks, whose parent is on the main chain or is another side
+ * block. Following parents from a side block leads back to the main chain
+ * within a few blocks, so the branch it ends can be compared with the main
+ * chain without walking the whole tree.</li>
+ * <li>orphans, whose parent has not been seen yet. They are kept by parent
+ * hash until it arrives, oldest dropped first once there are
+ * {@code maxOrphans}.</li>
+ * </ul>
+ * Only the chain's writer uses the tree, so it takes no locks.
+ */
+public class BlockTree {
+
+    private final int maxSideBlocks;
+    private final int maxOrphans;
+
+    // Side blocks by hash, with their position in the chain they belong to
+    private final Map<Hash256, Node> sideBlocks = new HashMap<>();
+    private final Map<Hash256, List<Block>> orphansByParent = new HashMap<>();
+    private final Map<Hash256, Block> orphans = new HashMap<>();
+    private final ArrayDeque<Block> orphanOrder = new ArrayDeque<>();
+
+    static final class Node {
+        final Block block;
+        final int position;
+
+        Node(Block block, int position) {
+            this.block = block;
+            this.position = position;
+        }
+    }
+
+    public BlockTree(int maxSideBlocks, int maxOrphans) {
+        this.maxSideBlocks = maxSideBlocks;
+        this.maxOrphans = maxOrphans;
+    }
+
+    /**
+     * @return True if the block is held as a side block or an orphan.
+     */
+    public boolean contains(Hash256 hash) {
+        return sideBlocks.containsKey(hash) || orphans.containsKey(hash);
+    }
+
+    /**
+     * @return The side block with this hash, or null.
+     */
+    Node getSideBlock(Hash256 hash) {
+        return sideBlocks.get(hash);
+    }
+
+    /**
+     * Adds a side block at the given chain position.
+     *
+     * @return False if the tree is full.
+     */
+    boolean addSideBlock(Block block, int position) {
+        if (sideBlocks.size() >= maxSideBlocks)
+            return false;
+        sideBlocks.put(block.getHash(), new Node(block, position));
+        return true;
+    }
+
+    /**
+     * Removes side blocks that became part of the main chain.
+     */
+    void removeSideBlocks(List<Block> blocks) {
+        for (Block block : blocks) {
+            sideBlocks.remove(block.getHash());
+        }
+    }
+
+    /**
+     * Returns the branch that ends with {@code tip}: the side blocks from the
+     * first one after the main chain up to {@code tip}, in chain order.
+     */
+    List<Block> branchOf(Node tip) {
+        List<Block> branch = new ArrayList<>();
+        Node node = tip;
+        while (node != null) {
+            branch.add(node.block);
+            node = sideBlocks.get(node.block.getPreviousHash());
+        }
+        Collections.reverse(branch);
+        return branch;
+    }
+
+    /**
+     * Drops side blocks before {@code minPosition}; a branch that forks off
+     * before it can no longer become the main chain.
+     */
+    void prune(int minPosition) {
+        sideBlocks.values().removeIf(node -> node.position < minPosition);
+    }
+
+    /**
+     * Keeps a block whose parent is unknown.
+     */
+    void addOrphan(Block block) {
+        if (orphans.putIfAbsent(block.getHash(), block) != null)
+            return;
+        orphansByParent.computeIfAbsent(block.getPreviousHash(), h -> new ArrayList<>(1)).add(block);
+        orphanOrder.addLast(block);
+        while (orphanOrder.size() > maxOrphans) {
+            removeOrphan(orphanOrder.removeFirst());
+        }
+    }
+
+    /**
+     * Removes and returns the orphans waiting for this parent.
+     */
+    List<Block> takeOrphans(Hash256 parentHash) {
+        List<Block> children = orphansByParent.remove(parentHash);
+        if (children == null)
+            return Collections.emptyList();
+        for (Block child : children) {
+            orphans.remove(child.getHash());
+        }
+        // Taken orphans are skipped when they reach the front of the queue
+        if (orphans.isEmpty()) {
+            orphanOrder.clear();
+        } else if (orphanOrder.size() > 2 * orphans.size()) {
+            for (Iterator<Block> it = orphanOrder.iterator(); it.hasNext();) {
+                if (!orphans.containsKey(it.next().getHash())) {
+                    it.remove();
+                }
+            }
+        }
+        return children;
+    }
+
+    private void removeOrphan(Block block) {
+        if (orphans.remove(block.getHash()) == null)
+            return;
+        List<Block> siblings = orphansByParent.get(block.getPreviousHash());
+        if (siblings != null) {
+            siblings.remove(block);
+            if (siblings.isEmpty()) {
+                orphansByParent.remove(block.getPreviousHash());
+            }
+        }
+    }
+
+    /** @return The number of side blocks held. */
+    public int getSideBlockCount() {
+        return sideBlocks.size();
+    }
+
+    /** @return The number of orphans held. */
+    public int getOrphanCount() {
+        return orphans.size();
+    }
+}
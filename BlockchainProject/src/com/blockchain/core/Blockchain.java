@@ -1,120 +1,994 @@
 package com.blockchain.core;
 
+import com.blockchain.metrics.Counter;
+import com.blockchain.metrics.Gauge;
+import com.blockchain.metrics.Histogram;
+import com.blockchain.metrics.MetricsRegistry;
+import com.blockchain.mining.Miner;
+import com.blockchain.mining.MiningResult;
 import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
 import com.blockchain.model.Transaction;
+import com.blockchain.storage.BlockCodec;
+import com.blockchain.storage.BlockStore;
+import com.blockchain.storage.CompressionCodec;
+import com.blockchain.storage.PersistencePipeline;
+import com.blockchain.storage.PrefixDigest;
+import com.blockchain.storage.SyncPolicy;
+import com.blockchain.storage.ValidationCheckpoint;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * The chain of blocks, with validation and persistence.
+ * 
+ * Threading: all changes (appends, tampering, watermark updates) go through
+ * one writer lock and are applied one at a time. Each change publishes a new
+ * immutable {@link ChainSnapshot} through a volatile field, so readers
+ * (display, validation, lookups) never lock and always see a consistent
+ * chain, even while blocks are being appended.
+ * 
+ * Persistence: new blocks are handed to a {@link PersistencePipeline} that
+ * writes and syncs them in the background. {@code addBlock} returns a future
+ * that completes once the block is durable, according to the chosen
+ * {@link SyncPolicy}.
+ * 
+ * Balances: every appended block is applied to a {@link LedgerState}, which
+ * is snapshotted to disk periodically and on close.
+ * 
+ * Forks: blocks from other producers go through {@link #acceptBlock}, which
+ * keeps competing branches in a {@link BlockTree} and switches to a branch
+ * once it has more work than the main chain ({@link ForkChoice}). A switch
+ * rolls back only the blocks after the fork point, in the ledger, the index
+ * and the store, and forks more than {@link #MAX_REORG_DEPTH} blocks back are
+ * ignored, so its cost is bounded.
+ */
 public class Blockchain {
-    private java.util.List<Block> chain;
-    private int latestIndex;
-    private String latestHash;
+    /** Branches that fork off further back than this are never switched to. */
+    public static final int MAX_REORG_DEPTH = 100;
+    private static final int MAX_SIDE_BLOCKS = 4096;
+    private static final int MAX_ORPHANS = 1024;
+
+    // Published head of the chain; replaced (never mutated) by the writer
+    private volatile ChainSnapshot head;
     private java.util.function.Consumer<String> logger;
+    private BlockStore store;
+    // Digest of the stored blocks the validation checkpoint covers
+    private PrefixDigest prefixDigest;
+    private final java.nio.file.Path dataDir;
+    private PersistencePipeline pipeline;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Number of leading blocks of the chain that are known to be on disk.
+    // Changed under durableLock, together with storeGeneration, which a
+    // reorganization bumps so that blocks it removed are not counted.
+    private final AtomicInteger durableCount = new AtomicInteger();
+    private final Object durableLock = new Object();
+    private int storeGeneration;
+
+    // The fields below are only accessed while holding writeLock
+    // Number of leading blocks of the chain handed to the pipeline
+    private int persistedCount;
+    // Format version for new blocks; older blocks keep their own version
+    // Read without the lock by addBlock, which builds blocks outside it
+    private volatile int blockVersion = Block.CURRENT_VERSION;
+    // Leading zero bits required of new blocks; 0 disables mining. Written
+    // under writeLock, read without it
+    private volatile int difficulty;
+    private volatile Miner miner;
+    private final ChainValidator validator = new ChainValidator();
+    private final ChainIndex chainIndex = new ChainIndex();
+    private final LedgerState ledger = new LedgerState(MAX_REORG_DEPTH);
+    private final BlockTree tree = new BlockTree(MAX_SIDE_BLOCKS, MAX_ORPHANS);
+    private ForkChoice forkChoice = ForkChoice.MOST_WORK;
+    private int snapshotHeight;
+    // Number of leading blocks known to be valid. Appends only validate the
+    // blocks after this watermark. Written under writeLock, read without it.
+    private volatile int validatedCount;
+    private int checkpointedCount;
+    // A background validation that finished while the writer held the lock;
+    // the writer applies it on its next save
+    private final AtomicReference<FinishedValidation> finishedValidation =
+            new AtomicReference<>();
+
+    private static final class FinishedValidation {
+        final ChainSnapshot chain;
+        final ValidationReport report;
+
+        FinishedValidation(ChainSnapshot chain, ValidationReport report) {
+            this.chain = chain;
+            this.report = report;
+        }
+    }
+
+    private static final MetricsRegistry METRICS = MetricsRegistry.global();
+    private static final Histogram ADD_BLOCK_TIME = METRICS.timer("blockchain_add_block_seconds",
+            "Time to create, validate and queue a block in addBlock");
+    private static final Histogram SAVE_TIME = METRICS.timer("blockchain_save_seconds",
+            "Time to validate new blocks and hand them to the store");
+    private static final Histogram VALIDATE_TIME = METRICS.timer("blockchain_validate_seconds",
+            "Time to validate the whole chain");
+    private static final Histogram LOAD_TIME = METRICS.timer("blockchain_load_seconds",
+            "Time to open the block store and load the chain");
+    private static final Counter BLOCKS_ADDED = METRICS.counter("blockchain_blocks_added_total",
+            "Blocks appended to the chain");
+    private static final Counter VALIDATION_ISSUES = METRICS.counter("blockchain_validation_issues_total",
+            "Problems found by validation");
+    private static final Counter SAVE_FAILURES = METRICS.counter("blockchain_save_failures_total",
+            "Blocks that could not be written to the store");
+    private static final Counter REORGS = METRICS.counter("blockchain_reorgs_total",
+            "Switches of the main chain to another branch");
+    private static final Histogram REORG_DEPTH = METRICS.histogram("blockchain_reorg_depth_blocks",
+            "Blocks rolled back by a switch to another branch");
+
+    private final java.util.List<Gauge> gauges = new java.util.ArrayList<>();
+
+    // Persist the watermark at most once per this many newly validated blocks
+    private static final int CHECKPOINT_INTERVAL = 1000;
+    // Snapshot the ledger and chain index at most once per this many applied blocks
+    private static final int SNAPSHOT_INTERVAL = 1000;
 
     public Blockchain() {
         this(System.out::println);
     }
 
     public Blockchain(java.util.function.Consumer<String> logger) {
+        this(logger, SyncPolicy.perBlock());
+    }
+
+    /**
+     * @param logger     Receives progress and error messages.
+     * @param syncPolicy When appended blocks are forced to disk.
+     */
+    public Blockchain(java.util.function.Consumer<String> logger, SyncPolicy syncPolicy) {
+        this(logger, syncPolicy, null);
+    }
+
+    /**
+     * @param logger     Receives progress and error messages.
+     * @param syncPolicy When appended blocks are forced to disk.
+     * @param dataDir    The directory of the block store, or null for the
+     *                   default store (which imports the legacy JSON chain file
+     *                   once if it is empty).
+     */
+    public Blockchain(java.util.function.Consumer<String> logger, SyncPolicy syncPolicy, java.nio.file.Path dataDir) {
+        this(logger, syncPolicy, dataDir, null);
+    }
+
+    /**
+     * @param logger     Receives progress and error messages.
+     * @param syncPolicy When appended blocks are forced to disk.
+     * @param dataDir    The directory of the block store, or null for the
+     *                   default store.
+     * @param codec      Compresses full segments of the store, or null to
+     *                   leave them uncompressed.
+     */
+    public Blockchain(java.util.function.Consumer<String> logger, SyncPolicy syncPolicy, java.nio.file.Path dataDir,
+            CompressionCodec codec) {
+        long loadStart = System.nanoTime();
         this.logger = logger;
-        this.chain = com.blockchain.util.PersistenceManager.loadChain();
+        this.dataDir = dataDir != null ? dataDir : com.blockchain.util.PersistenceManager.getDefaultStoreDir();
+        java.util.List<Block> stored = new java.util.ArrayList<>();
+        try {
+            this.store = dataDir != null ? com.blockchain.util.PersistenceManager.openStore(dataDir, codec)
+                    : com.blockchain.util.PersistenceManager.openStore(codec);
+            stored = com.blockchain.util.PersistenceManager.loadChainLazily(store);
+            this.prefixDigest = new PrefixDigest(store);
+            this.pipeline = new PersistencePipeline(store, syncPolicy);
+        } catch (IOException e) {
+            log("Failed to open block store: " + e.getMessage());
+        }
+        this.head = ChainSnapshot.of(stored);
+        this.chainIndex.buildAsync(stored,
+                store != null ? com.blockchain.util.PersistenceManager.getIndexSnapshotPath(this.dataDir) : null);
+        this.ledger.buildAsync(stored,
+                store != null ? com.blockchain.util.PersistenceManager.getLedgerSnapshotPath(this.dataDir) : null);
+        this.persistedCount = stored.size();
+        // The snapshots on disk are at most this far behind; they are
+        // rewritten after the next SNAPSHOT_INTERVAL appends and on close
+        this.snapshotHeight = stored.size();
+        this.durableCount.set(stored.size());
+
+        if (!stored.isEmpty()) {
+            log("Loaded Blockchain from file. Size: " + stored.size());
+        }
+        restoreCheckpoint();
+        LOAD_TIME.recordNanosSince(loadStart);
+        registerGauges();
+    }
+
+    private void registerGauges() {
+        gauges.add(METRICS.gauge("blockchain_length", "Blocks in the chain", () -> head.size()));
+        gauges.add(METRICS.gauge("blockchain_durable_blocks", "Blocks known to be on disk", durableCount::get));
+        BlockStore s = store;
+        if (s != null) {
+            gauges.add(METRICS.gauge("store_size_bytes", "Bytes the block store occupies on disk", s::sizeInBytes));
+        }
+    }
 
-        if (this.chain.isEmpty()) {
-            this.latestIndex = -1;
-            this.latestHash = "0"; // Genesis previous hash
+    // Trusts the stored watermark only if no stored block it covers has changed
+    private void restoreCheckpoint() {
+        ValidationCheckpoint checkpoint = store != null ? com.blockchain.util.PersistenceManager.loadCheckpoint(dataDir)
+                : null;
+        if (checkpoint == null)
+            return;
+        ChainSnapshot chain = head;
+        int count = checkpoint.getBlockCount();
+        if (count > 0 && count <= chain.size() && chain.get(count - 1).getHash().equals(checkpoint.getTipHash())
+                && prefixDigestMatches(count, checkpoint.getPrefixDigest())) {
+            validatedCount = count;
+            checkpointedCount = count;
         } else {
-            Block lastBlock = this.chain.get(this.chain.size() - 1);
-            this.latestIndex = lastBlock.getIndex();
-            this.latestHash = lastBlock.getHash();
-            log("Loaded Blockchain from file. Size: " + this.chain.size());
+            log("Validation checkpoint does not match stored chain; full validation required.");
+        }
+    }
+
+    // Returns a future for the last block handed to the pipeline
+    private CompletableFuture<Block> save() {
+        long start = System.nanoTime();
+        try {
+            if (validatePending()) {
+                return persistNewBlocks();
+            } else {
+                log("Blockchain is invalid. Data not saved.");
+                return CompletableFuture.failedFuture(
+                        new IllegalStateException("Blockchain is invalid. Data not saved."));
+            }
+        } finally {
+            SAVE_TIME.recordNanosSince(start);
         }
     }
 
-    private void save() {
-        if (isChainValid()) {
-            com.blockchain.util.PersistenceManager.saveChain(chain);
+    // Validates only the blocks after the watermark. For a normal append that
+    // is just the new block, checked against the hash of the block before it.
+    private boolean validatePending() {
+        applyFinishedValidation();
+        ChainSnapshot chain = head;
+        if (validatedCount >= chain.size())
+            return true;
+        ValidationReport report = validator.validate(chain, validatedCount, chain.size());
+        logIssues(report);
+        applyReport(report);
+        return report.isValid();
+    }
+
+    // Moves the watermark according to a report that starts at or before it:
+    // to the first invalid block, or past the report's range if it is valid
+    private void applyReport(ValidationReport report) {
+        if (report.isValid()) {
+            validatedCount = Math.max(validatedCount, report.getTo());
         } else {
-            log("Blockchain is invalid. Data not saved.");
+            validatedCount = report.getIssues().get(0).getPosition();
+        }
+    }
+
+    private void logIssues(ValidationReport report) {
+        VALIDATION_ISSUES.add(report.getIssues().size());
+        for (ValidationIssue issue : report.getIssues()) {
+            log(issue.toString());
+        }
+    }
+
+    /**
+     * @return The number of leading blocks known to be valid without a rescan.
+     */
+    public int getValidatedCount() {
+        return validatedCount;
+    }
+
+    // Only blocks that are not in the store yet are written, so each save costs
+    // the same regardless of chain length.
+    private CompletableFuture<Block> persistNewBlocks() {
+        ChainSnapshot chain = head;
+        if (pipeline == null) {
+            return CompletableFuture.failedFuture(new IOException("Block store is not open"));
+        }
+        CompletableFuture<Block> last = null;
+        int generation = storeGeneration;
+        while (persistedCount < chain.size()) {
+            int durableAfter = persistedCount + 1;
+            last = pipeline.submit(chain.get(persistedCount));
+            last.whenComplete((block, error) -> {
+                if (error == null) {
+                    synchronized (durableLock) {
+                        if (generation == storeGeneration) {
+                            durableCount.accumulateAndGet(durableAfter, Math::max);
+                        }
+                    }
+                } else {
+                    SAVE_FAILURES.increment();
+                    log("Failed to save blockchain: " + error.getMessage());
+                }
+            });
+            persistedCount++;
+        }
+        if (durableCount.get() - checkpointedCount >= CHECKPOINT_INTERVAL) {
+            saveCheckpoint();
+        }
+        if (chain.size() - snapshotHeight >= SNAPSHOT_INTERVAL) {
+            saveSnapshots();
+        }
+        if (last == null) {
+            // Nothing new to write; the chain is already handed over
+            last = CompletableFuture.completedFuture(chain.isEmpty() ? null : chain.get(chain.size() - 1));
         }
+        return last;
     }
 
-    private void log(String msg) {
+    private boolean prefixDigestMatches(int count, Hash256 expected) {
+        try {
+            return prefixDigest.digestOf(count).equals(expected);
+        } catch (IOException e) {
+            log("Failed to read stored checksums: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void saveCheckpoint() {
+        // Only blocks that are both valid and durable may be covered
+        int count = Math.min(validatedCount, durableCount.get());
+        if (store == null || count == 0 || count == checkpointedCount)
+            return;
+        Hash256 digest;
+        try {
+            digest = prefixDigest.digestOf(count);
+        } catch (IOException e) {
+            log("Failed to save validation checkpoint: " + e.getMessage());
+            return;
+        }
+        com.blockchain.util.PersistenceManager
+                .saveCheckpoint(dataDir, new ValidationCheckpoint(count, head.get(count - 1).getHash(), digest));
+        checkpointedCount = count;
+    }
+
+    // A snapshot that runs ahead of the store is detected on load and rebuilt
+    // from the blocks instead, so it does not have to wait for durability
+    private void saveSnapshots() {
+        if (store == null)
+            return;
+        // Each is skipped while it is still being restored, rather than
+        // waited for, and saved on a later append
+        if (ledger.isBuilt()) {
+            try {
+                ledger.saveSnapshot(com.blockchain.util.PersistenceManager.getLedgerSnapshotPath(dataDir));
+                snapshotHeight = head.size();
+            } catch (IOException e) {
+                log("Failed to save ledger snapshot: " + e.getMessage());
+            }
+        }
+        if (chainIndex.isBuilt()) {
+            try {
+                chainIndex.saveSnapshot(com.blockchain.util.PersistenceManager.getIndexSnapshotPath(dataDir), head);
+            } catch (IOException e) {
+                log("Failed to save chain index snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Selects the block format version used for blocks added from now on.
+     * Use {@link Block#VERSION_LEGACY} to keep producing hex-hashed blocks.
+     */
+    public void setBlockVersion(int blockVersion) {
+        writeLock.lock();
+        try {
+            this.blockVersion = blockVersion;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the number of leading zero bits new blocks must be mined to. With a
+     * difficulty above 0, blocks are created as {@link Block#VERSION_POW}
+     * blocks and a nonce is searched for on all cores; 0 (the default) turns
+     * mining off.
+     */
+    public void setDifficulty(int difficulty) {
+        if (difficulty < 0 || difficulty > Hash256.BYTES * 8) {
+            throw new IllegalArgumentException("Difficulty must be between 0 and 256: " + difficulty);
+        }
+        writeLock.lock();
+        try {
+            this.difficulty = difficulty;
+            // Blocks received or imported from here on must carry this much
+            // work; blocks already in the chain keep the target they had
+            validator.setRequiredDifficulty(difficulty, head.size());
+            if (difficulty > 0 && miner == null) {
+                miner = new Miner();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Selects how competing branches are compared. The default is
+     * {@link ForkChoice#MOST_WORK}.
+     */
+    public void setForkChoice(ForkChoice forkChoice) {
+        writeLock.lock();
+        try {
+            this.forkChoice = forkChoice;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * @return The miner's average hash rate in hashes per second, or 0 if
+     *         nothing has been mined.
+     */
+    public double getHashRate() {
+        Miner m = miner;
+        return m != null ? m.getAverageHashRate() : 0.0;
+    }
+
+    // Also used by the other classes of this package that act on the chain
+    void log(String msg) {
         if (logger != null)
             logger.accept(msg);
     }
 
-    public void addBlock(String sender, String recipient, double amount) {
-        latestIndex++;
+    /**
+     * Returns the current state of the chain. The snapshot never changes, and
+     * can be read from any thread without locking.
+     */
+    public ChainSnapshot getSnapshot() {
+        return head;
+    }
+
+    /**
+     * Returns a block of a snapshot in the {@link BlockCodec} format.
+     * A block the snapshot reads from the store unchanged is returned
+     * as stored, without decoding and encoding it again.
+     */
+    public byte[] getEncodedBlock(ChainSnapshot snapshot, int position) throws IOException {
+        BlockStore s = store;
+        if (s != null && snapshot.isStored(position)) {
+            return s.readEncoded(position);
+        }
+        return BlockCodec.encode(snapshot.get(position));
+    }
+
+    /**
+     * @return The block at the given position in the chain.
+     */
+    public Block getBlock(int position) {
+        return head.get(position);
+    }
+
+    /**
+     * @return The number of blocks in the chain.
+     */
+    public int size() {
+        return head.size();
+    }
+
+    /**
+     * @return The hash of the last block, or {@link Hash256#ZERO} if empty.
+     */
+    public Hash256 getLatestHash() {
+        return head.getLatestHash();
+    }
+
+    /**
+     * @return The block with the given hash, or null if there is none.
+     */
+    public Block getBlockByHash(Hash256 hash) {
+        ChainSnapshot chain = head;
+        int position = chainIndex.findPositionByHash(hash);
+        return position >= 0 && position < chain.size() ? chain.get(position) : null;
+    }
+
+    /**
+     * @return The block with the given block index, or null if there is none.
+     */
+    public Block getBlockByIndex(int index) {
+        ChainSnapshot chain = head;
+        int position = chainIndex.findPositionByIndex(index);
+        return position >= 0 && position < chain.size() ? chain.get(position) : null;
+    }
+
+    /**
+     * @return Every transaction sent or received by the address, in chain order.
+     */
+    public java.util.List<TransactionRef> findTransactions(String address) {
+        return chainIndex.findTransactions(address, head);
+    }
+
+    /**
+     * Builds the proof that a transaction is included in a block, which can be
+     * checked against the block's Merkle root with
+     * {@link com.blockchain.ds.MerkleTree#verify}.
+     * 
+     * @param position The position of the block in the chain.
+     * @param txIndex  The position of the transaction in the block.
+     */
+    public com.blockchain.ds.MerkleProof getMerkleProof(int position, int txIndex) {
+        return com.blockchain.ds.MerkleTreeCache.shared().get(head.get(position)).getProof(txIndex);
+    }
 
+    /**
+     * @return The balance of the address after all appended blocks.
+     */
+    public double getBalance(String address) {
+        return ledger.getBalance(address);
+    }
+
+    /**
+     * @return The account balances, kept up to date as blocks are appended.
+     */
+    public LedgerState getLedger() {
+        return ledger;
+    }
+
+    public CompletableFuture<Block> addBlock(String sender, String recipient, double amount) {
         Transaction tx = new Transaction(sender, recipient, amount);
         java.util.List<Transaction> transactions = new java.util.ArrayList<>();
         transactions.add(tx);
+        return addBlock(transactions);
+    }
+
+    /**
+     * Creates a block holding all the given transactions and appends it.
+     * 
+     * @param transactions The transactions of the new block. The list is kept by
+     *                     the block and must not be modified afterwards.
+     * @return A future completed with the block once it is durable, or
+     *         completed exceptionally if it could not be saved.
+     */
+    public CompletableFuture<Block> addBlock(java.util.List<Transaction> transactions) {
+        long start = System.nanoTime();
+        try {
+            // The block is built and mined without the write lock, so readers
+            // and other writers are not held up by the search. If the tip has
+            // moved by the time it is done, it is built again on the new tip.
+            while (true) {
+                ChainSnapshot chain = head;
+                int index = chain.getLatestIndex() + 1;
+                int difficulty = this.difficulty;
+
+                log("Mining Block " + index + "...");
+                Block newBlock;
+                if (difficulty > 0) {
+                    Miner m = miner;
+                    Block template = new Block(index, transactions, chain.getLatestHash(), difficulty);
+                    MiningResult result;
+                    try {
+                        result = m != null ? m.search(template.getHeaderPrefix(), difficulty) : null;
+                    } catch (java.util.concurrent.RejectedExecutionException e) {
+                        // The miner was closed before the search started
+                        result = null;
+                    }
+                    if (result == null || !result.isFound()) {
+                        log("Mining of Block " + index + " cancelled.");
+                        return CompletableFuture.failedFuture(new IllegalStateException("Mining cancelled"));
+                    }
+                    newBlock = template.withNonce(result.getNonce());
+                    log("Mined Block " + index + ": " + result);
+                } else {
+                    newBlock = new Block(blockVersion, index, transactions, chain.getLatestHash());
+                }
+
+                writeLock.lock();
+                try {
+                    ChainSnapshot current = head;
+                    // Tampering replaces the snapshot without moving the tip,
+                    // so compare the tip rather than the snapshot itself
+                    if (current.size() != chain.size() || !current.getLatestHash().equals(chain.getLatestHash())) {
+                        log("Chain tip moved while building Block " + index + ", rebuilding.");
+                        continue;
+                    }
+                    if (this.difficulty != difficulty) {
+                        log("Difficulty changed while building Block " + index + ", rebuilding.");
+                        continue;
+                    }
+
+                    // Index first, so readers that see the new head can look it up
+                    chainIndex.add(current.size(), newBlock);
+                    ledger.apply(newBlock);
+                    head = current.append(newBlock);
+
+                    log("Block " + index + " added: " + newBlock.getHash());
+                    if (transactions.size() > 1) {
+                        log("Transactions: " + transactions.size());
+                    }
+                    log("Merkle Root: " + newBlock.getMerkleRoot());
+                    BLOCKS_ADDED.increment();
+                    return save();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } finally {
+            ADD_BLOCK_TIME.recordNanosSince(start);
+        }
+    }
+
+    /**
+     * Appends blocks that were built elsewhere, e.g. received from another
+     * node. The blocks are validated in parallel against each other and the
+     * current last block before the writer lock is taken, so validating one
+     * batch overlaps with whatever the caller does next.
+     * 
+     * @return A future completed with the last block once all are durable.
+     * @throws IllegalArgumentException If a block is invalid or the first
+     *                                  one does not follow the last block.
+     * @throws IllegalStateException    If the chain changed during validation.
+     */
+    public CompletableFuture<Block> appendBlocks(java.util.List<Block> blocks) {
+        ChainSnapshot chain = head;
+        if (blocks.isEmpty()) {
+            return CompletableFuture.completedFuture(chain.isEmpty() ? null : chain.get(chain.size() - 1));
+        }
+        Block previous = chain.isEmpty() ? null : chain.get(chain.size() - 1);
+        ValidationReport report = validator.validateAppend(previous, blocks, chain.size());
+        if (!report.isValid()) {
+            VALIDATION_ISSUES.add(report.getIssues().size());
+            throw new IllegalArgumentException("Rejected blocks: " + report.getIssues().get(0));
+        }
+
+        writeLock.lock();
+        try {
+            if (head != chain) {
+                throw new IllegalStateException("The chain changed while the blocks were validated");
+            }
+            return appendValidated(chain, blocks);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Appends blocks that were validated against the end of 'chain', which
+    // must be the head. Called with writeLock held.
+    private CompletableFuture<Block> appendValidated(ChainSnapshot chain, java.util.List<Block> blocks) {
+        boolean allValid = validatedCount == chain.size();
+        for (Block block : blocks) {
+            chainIndex.add(chain.size(), block);
+            ledger.apply(block);
+            chain = chain.append(block);
+        }
+        head = chain;
+        if (allValid) {
+            validatedCount = chain.size();
+        }
+        BLOCKS_ADDED.add(blocks.size());
+        return save();
+    }
+
+    /**
+     * Accepts a block from any producer, wherever it fits: appended to the
+     * main chain, kept on a side branch (switching the main chain to that
+     * branch if it now has more work), or kept as an orphan until its parent
+     * arrives. Orphans that were waiting for this block are placed as well.
+     * 
+     * @return What happened to the block. {@link BlockStatus#REORGANIZED} is
+     *         also returned if a waiting orphan caused the switch.
+     * @throws IllegalArgumentException If the block is invalid or its index
+     *                                  does not follow its parent's.
+     */
+    public BlockStatus acceptBlock(Block block) {
+        writeLock.lock();
+        try {
+            BlockStatus status = connect(block);
+            if (status == BlockStatus.ORPHAN || status == BlockStatus.DUPLICATE || status == BlockStatus.STALE)
+                return status;
+            java.util.ArrayDeque<Block> placed = new java.util.ArrayDeque<>();
+            placed.add(block);
+            while (!placed.isEmpty()) {
+                for (Block orphan : tree.takeOrphans(placed.poll().getHash())) {
+                    BlockStatus orphanStatus;
+                    try {
+                        orphanStatus = connect(orphan);
+                    } catch (IllegalArgumentException e) {
+                        log("Dropped orphan block " + orphan.getIndex() + ": " + e.getMessage());
+                        continue;
+                    }
+                    if (orphanStatus == BlockStatus.REORGANIZED) {
+                        status = BlockStatus.REORGANIZED;
+                    }
+                    if (orphanStatus != BlockStatus.STALE && orphanStatus != BlockStatus.DUPLICATE) {
+                        placed.add(orphan);
+                    }
+                }
+            }
+            return status;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Places one block. Called with writeLock held.
+    private BlockStatus connect(Block block) {
+        ChainSnapshot chain = head;
+        Hash256 hash = block.getHash();
+        int known = chainIndex.findPositionByHash(hash);
+        if ((known >= 0 && known < chain.size() && chain.get(known).getHash().equals(hash)) || tree.contains(hash))
+            return BlockStatus.DUPLICATE;
+
+        int size = chain.size();
+        Hash256 parentHash = block.getPreviousHash();
+        if (size == 0 ? parentHash.isZero() : parentHash.equals(chain.getLatestHash())) {
+            checkBlock(size == 0 ? null : chain.get(size - 1), block, size);
+            appendValidated(chain, java.util.Collections.singletonList(block));
+            return BlockStatus.EXTENDED;
+        }
+
+        // Find the parent: a side block, or a block of the main chain
+        Block parent;
+        int position;
+        BlockTree.Node parentNode = tree.getSideBlock(parentHash);
+        if (parentNode != null) {
+            parent = parentNode.block;
+            position = parentNode.position + 1;
+        } else if (parentHash.isZero()) {
+            parent = null;
+            position = 0;
+        } else {
+            int p = chainIndex.findPositionByHash(parentHash);
+            if (p < 0 || p >= size || !chain.get(p).getHash().equals(parentHash)) {
+                // The index is all an orphan says about where it would go
+                if (block.getIndex() <= 0)
+                    throw new IllegalArgumentException("Rejected block: index " + block.getIndex()
+                            + " cannot follow another block");
+                if (block.getIndex() <= size - MAX_REORG_DEPTH)
+                    return BlockStatus.STALE;
+                tree.addOrphan(block);
+                return BlockStatus.ORPHAN;
+            }
+            parent = chain.get(p);
+            position = p + 1;
+        }
+        // Indexes count up from 0 on every branch, so a side block's index is
+        // its position; checked before it is kept or counted as work
+        if (block.getIndex() != position)
+            throw new IllegalArgumentException("Rejected block: index " + block.getIndex() + " should be "
+                    + position);
+        if (size - position >= MAX_REORG_DEPTH)
+            return BlockStatus.STALE;
+        checkBlock(parent, block, position);
+
+        tree.prune(size - MAX_REORG_DEPTH);
+        if (!tree.addSideBlock(block, position))
+            return BlockStatus.STALE;
+        java.util.List<Block> branch = tree.branchOf(tree.getSideBlock(hash));
+        int forkPoint = position - branch.size() + 1;
+        Hash256 forkParent = branch.get(0).getPreviousHash();
+        if (forkPoint > 0 ? !chain.get(forkPoint - 1).getHash().equals(forkParent) : !forkParent.isZero())
+            return BlockStatus.SIDE_BRANCH; // Forks off a branch that was pruned
 
-        Block newBlock = new Block(latestIndex, transactions, latestHash);
+        double branchWork = 0;
+        for (Block b : branch) {
+            branchWork += forkChoice.work(b);
+        }
+        double mainWork = 0;
+        for (int i = forkPoint; i < size; i++) {
+            mainWork += forkChoice.work(chain.get(i));
+        }
+        if (branchWork <= mainWork)
+            return BlockStatus.SIDE_BRANCH;
+        return reorganize(forkPoint, branch) ? BlockStatus.REORGANIZED : BlockStatus.SIDE_BRANCH;
+    }
+
+    private void checkBlock(Block parent, Block block, int position) {
+        ValidationReport report = validator.validateAppend(parent, java.util.Collections.singletonList(block),
+                position);
+        if (!report.isValid()) {
+            VALIDATION_ISSUES.add(report.getIssues().size());
+            throw new IllegalArgumentException("Rejected block: " + report.getIssues().get(0));
+        }
+    }
 
-        log("Mining Block " + latestIndex + "...");
-        chain.add(newBlock);
+    /**
+     * Replaces the blocks from {@code forkPoint} on with {@code branch}, whose
+     * blocks have been validated. Only the replaced suffix is rolled back;
+     * the replaced blocks stay in the tree as a side branch. Called with
+     * writeLock held.
+     */
+    private boolean reorganize(int forkPoint, java.util.List<Block> branch) {
+        ChainSnapshot chain = head;
+        int oldSize = chain.size();
+        int depth = oldSize - forkPoint;
+        if (ledger.getUndoableCount() < depth) {
+            log("Cannot switch to a branch at position " + forkPoint + ": the ledger can only roll back "
+                    + ledger.getUndoableCount() + " blocks");
+            return false;
+        }
+        java.util.List<Block> removed = new java.util.ArrayList<>(chain.subList(forkPoint, oldSize));
+
+        ledger.rollback(depth);
+        chainIndex.truncate(forkPoint, removed);
+        chain = chain.truncate(forkPoint);
+        for (Block block : branch) {
+            chainIndex.add(chain.size(), block);
+            ledger.apply(block);
+            chain = chain.append(block);
+        }
+        head = chain;
+
+        tree.removeSideBlocks(branch);
+        for (int i = 0; i < removed.size(); i++) {
+            tree.addSideBlock(removed.get(i), forkPoint + i);
+        }
 
-        latestHash = newBlock.getHash();
-        log("Block " + latestIndex + " added: " + newBlock.getHash());
-        log("Merkle Root: " + newBlock.getMerkleRoot());
+        // The branch was validated block by block as it arrived
+        validatedCount = validatedCount >= oldSize ? chain.size() : Math.min(validatedCount, forkPoint);
+        checkpointedCount = Math.min(checkpointedCount, forkPoint);
+        if (prefixDigest != null) {
+            prefixDigest.truncate(forkPoint);
+        }
+        snapshotHeight = Math.min(snapshotHeight, forkPoint);
+        if (persistedCount > forkPoint) {
+            if (pipeline != null) {
+                pipeline.truncate(forkPoint);
+            }
+            persistedCount = forkPoint;
+            synchronized (durableLock) {
+                storeGeneration++;
+                durableCount.accumulateAndGet(forkPoint, Math::min);
+            }
+        }
+
+        REORGS.increment();
+        REORG_DEPTH.record(depth);
+        BLOCKS_ADDED.add(branch.size());
+        log("Switched to a branch at position " + forkPoint + ": " + depth + " blocks replaced by " + branch.size()
+                + ", latest " + chain.getLatestHash());
         save();
+        return true;
+    }
+
+    /**
+     * Waits until every block appended so far is durable.
+     */
+    public void flush() {
+        if (pipeline != null) {
+            pipeline.flush().join();
+        }
+    }
+
+    /**
+     * Makes all appended blocks durable, records the validation checkpoint and
+     * closes the block store.
+     */
+    public void close() {
+        for (Gauge gauge : gauges) {
+            METRICS.remove(gauge);
+        }
+        Miner m = miner;
+        if (m != null) {
+            // Stops an addBlock that is mining; it then fails instead of appending
+            m.cancel();
+        }
+        writeLock.lock();
+        try {
+            if (m != null) {
+                m.close();
+                miner = null;
+                difficulty = 0;
+            }
+            if (pipeline == null)
+                return;
+            pipeline.close();
+            applyFinishedValidation();
+            saveCheckpoint();
+            saveSnapshots();
+            store.close();
+            pipeline = null;
+        } catch (IOException e) {
+            log("Failed to close block store: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     public void displayChain() {
         log("\n=== Blockchain Data ===");
-        for (Block block : chain) {
+        for (Block block : head) {
             log(block.toString());
         }
         log("=======================");
     }
 
+    /**
+     * Re-validates the whole chain, ignoring the watermark.
+     */
     public boolean isChainValid() {
-        // Loop through all blocks to check hash integrity
-        for (int i = 0; i < chain.size(); i++) {
-            Block currentBlock = chain.get(i);
-
-            // 1. Check if the hash is actually correct (re-calculate)
-            if (!currentBlock.getHash().equals(currentBlock.calculateHash())) {
-                log("DATA TAMPERING DETECTED at Block " + currentBlock.getIndex());
-                log("Stored Hash: " + currentBlock.getHash());
-                log("Calc Hash:   " + currentBlock.calculateHash());
-                return false;
-            }
+        return validateChain().isValid();
+    }
+
+    /**
+     * Re-validates the whole chain and returns every problem found.
+     * Validation runs on a snapshot without blocking writers; afterwards the
+     * watermark and stored checkpoint are updated from the result, unless a
+     * block was replaced in the meantime.
+     */
+    public ValidationReport validateChain() {
+        return validateChain(ValidationProgress.NONE);
+    }
+
+    /**
+     * Re-validates the whole chain like {@link #validateChain()}, reporting
+     * progress as it goes. A cancelled validation leaves the watermark and
+     * checkpoint untouched.
+     * 
+     * @throws java.util.concurrent.CancellationException If {@code progress}
+     *                                                    cancelled it.
+     */
+    public ValidationReport validateChain(ValidationProgress progress) {
+        ChainSnapshot chain = head;
+        long start = System.nanoTime();
+        ValidationReport report = validator.validate(chain, 0, chain.size(), progress);
+        VALIDATE_TIME.recordNanosSince(start);
+        logIssues(report);
 
-            // 2. Check previous hash linkage (except for Genesis block)
-            if (i > 0) {
-                Block previousBlock = chain.get(i - 1);
-                if (!currentBlock.getPreviousHash().equals(previousBlock.getHash())) {
-                    log("CHAIN BREAKAGE DETECTED at Block " + currentBlock.getIndex());
-                    log("Block PrevHash: " + currentBlock.getPreviousHash());
-                    log("Actual PrevHash: " + previousBlock.getHash());
-                    return false;
+        writeLock.lock();
+        try {
+            applyFullReport(chain, report);
+        } finally {
+            writeLock.unlock();
+        }
+        return report;
+    }
+
+    /**
+     * Re-validates the whole chain like {@link #validateChain(ValidationProgress)},
+     * but on the validator's fork-join pool; the calling thread does not
+     * wait. The watermark is updated once the writer lock is free, so pool
+     * threads never wait behind mining or a long append.
+     */
+    public CompletableFuture<ValidationReport> validateChainAsync(ValidationProgress progress) {
+        ChainSnapshot chain = head;
+        long start = System.nanoTime();
+        return validator.validateAsync(chain, 0, chain.size(), progress).thenApply(report -> {
+            VALIDATE_TIME.recordNanosSince(start);
+            logIssues(report);
+            if (writeLock.tryLock()) {
+                try {
+                    applyFullReport(chain, report);
+                } finally {
+                    writeLock.unlock();
                 }
             } else {
-                // Check genesis previous hash
-                if (!currentBlock.getPreviousHash().equals("0")) {
-                    log("Genesis Block Invalid Previous Hash");
-                    return false;
-                }
+                finishedValidation.set(new FinishedValidation(chain, report));
             }
+            return report;
+        });
+    }
 
-            // 3. Check Merkle Root Integrity
-            // We reconstruct the Merkle Tree from the transactions and see if the root
-            // matches
-            com.blockchain.ds.MerkleTree tree = new com.blockchain.ds.MerkleTree(currentBlock.getTransactions());
-            if (!tree.getRoot().equals(currentBlock.getMerkleRoot())) {
-                log("MERKLE ROOT MISMATCH at Block " + currentBlock.getIndex());
-                log("Stored Root: " + currentBlock.getMerkleRoot());
-                log("Calc Root:   " + tree.getRoot());
-                return false;
-            }
+    // Called with writeLock held
+    private void applyFinishedValidation() {
+        FinishedValidation finished = finishedValidation.getAndSet(null);
+        if (finished != null) {
+            applyFullReport(finished.chain, finished.report);
+        }
+    }
+
+    // Applies a report over all of 'chain', unless a block was replaced since.
+    // Called with writeLock held.
+    private void applyFullReport(ChainSnapshot chain, ValidationReport report) {
+        if (head.getReplaceCount() != chain.getReplaceCount())
+            return;
+        applyReport(report);
+        if (report.isValid()) {
+            saveCheckpoint();
         }
-        return true;
     }
 
     public void tamperBlock(int index, String sender, String recipient, double amount) {
-        for (int i = 0; i < chain.size(); i++) {
-            Block b = chain.get(i);
-            if (b.getIndex() == index) {
+        writeLock.lock();
+        try {
+            ChainSnapshot chain = head;
+            int i = chainIndex.findPositionByIndex(index);
+            if (i >= 0 && i < chain.size()) {
+                Block b = chain.get(i);
                 // Create a tampered block (same hash, different data/merkle root logic implied)
                 // Here we simulate tampering by changing the transactions but KEEPING the old
                 // hash and merkle root
@@ -138,15 +1012,22 @@ public class Blockchain {
                         b.getPreviousHash(),
                         b.getTimestamp(),
                         b.getHash(),
-                        b.getMerkleRoot() // Keeping old root!
-                );
+                        b.getMerkleRoot(), // Keeping old root!
+                        b.getVersion());
 
-                chain.set(i, tampered);
+                // The ledger keeps the balances of the original block; the
+                // tampered chain no longer validates, so it is never saved
+                chainIndex.replace(i, tampered);
+                head = chain.replace(i, tampered);
+                // Everything from the replaced block on has to be checked again
+                validatedCount = Math.min(validatedCount, i);
                 log("Tampered with Block " + index + ": Transactions replaced.");
                 save();
                 return;
             }
+            log("Block " + index + " not found.");
+        } finally {
+            writeLock.unlock();
         }
-        log("Block " + index + " not found.");
     }
 }
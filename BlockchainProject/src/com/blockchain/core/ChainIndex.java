@@ -0,0 +1,483 @@
+package com.blockchain.core;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Lookup tables over the chain:
+ * <ul>
+ * <li>block hash to position,</li>
+ * <li>block index to position,</li>
+ * <li>address to the (block position, transaction position) pairs of every
+ * transaction it sent or received.</li>
+ * </ul>
+ * The tables can be written to a snapshot file together with the height and
+ * hash of the last indexed block. When the chain is opened they are restored
+ * in the background from the snapshot, and only the blocks stored after it
+ * are read; without a matching snapshot every stored block is read. They are
+ * then kept up to date as blocks are appended.
+ * 
+ * Only the chain's writer changes entries; lookups take no lock and may run
+ * on any thread. Changes made before the initial build has finished are
+ * queued and applied by the build, so the writer never waits for it, while
+ * lookups made before then wait. If the build fails, every later call throws
+ * {@link IllegalStateException}.
+ */
+public class ChainIndex {
+
+    private static final int MAGIC = 0x49445831; // "IDX1"
+
+    private final Map<Hash256, Integer> positionsByHash = new ConcurrentHashMap<>();
+    private final Map<String, Postings> postingsByAddress = new ConcurrentHashMap<>();
+    // positionsByIndex[blockIndex] = position + 1; 0 means no such block
+    private volatile int[] positionsByIndex = new int[1024];
+    private final CountDownLatch built = new CountDownLatch(1);
+    // Writer changes waiting for the initial build; guarded by itself
+    private final List<Runnable> pending = new ArrayList<>();
+    private volatile boolean ready;
+    private volatile RuntimeException failure;
+
+    /**
+     * A growable list of packed (block position, transaction position) pairs.
+     * Entries are written before the size is raised, so readers that see a
+     * size also see the entries below it.
+     */
+    private static class Postings {
+        private volatile long[] entries = new long[4];
+        private volatile int size;
+
+        void add(int blockPosition, int txPosition) {
+            long[] current = entries;
+            int n = size;
+            if (n == current.length) {
+                current = Arrays.copyOf(current, n * 2);
+                entries = current;
+            }
+            current[n] = ((long) blockPosition << 32) | (txPosition & 0xFFFFFFFFL);
+            size = n + 1;
+        }
+
+        /**
+         * Returns a copy with the pair inserted in order, or null if it is
+         * already present. Readers of this list are not disturbed.
+         */
+        Postings with(int blockPosition, int txPosition) {
+            long entry = ((long) blockPosition << 32) | (txPosition & 0xFFFFFFFFL);
+            long[] current = entries;
+            int n = size;
+            int at = Arrays.binarySearch(current, 0, n, entry);
+            if (at >= 0)
+                return null;
+            at = -at - 1;
+            Postings copy = new Postings();
+            long[] inserted = new long[Math.max(4, n + 1)];
+            System.arraycopy(current, 0, inserted, 0, at);
+            inserted[at] = entry;
+            System.arraycopy(current, at, inserted, at + 1, n - at);
+            copy.entries = inserted;
+            copy.size = n + 1;
+            return copy;
+        }
+
+        // Drops the trailing entries at or after this block position
+        void truncate(int blockPosition) {
+            long[] current = entries;
+            int n = size;
+            while (n > 0 && (int) (current[n - 1] >>> 32) >= blockPosition) {
+                n--;
+            }
+            size = n;
+        }
+    }
+
+    /**
+     * Builds the index over the given blocks on a background thread: from the
+     * snapshot file if it matches the blocks, then by reading the blocks after
+     * it.
+     * 
+     * @param blocks   The blocks to index. Must not change while building.
+     * @param snapshot The snapshot file, which may be null or not exist.
+     */
+    public void buildAsync(List<Block> blocks, Path snapshot) {
+        Thread t = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                for (int i = loadSnapshot(snapshot, blocks); i < blocks.size(); i++) {
+                    addUnchecked(i, blocks.get(i));
+                }
+                applyPending();
+                com.blockchain.metrics.MetricsRegistry.global()
+                        .timer("chain_index_build_seconds", "Time to rebuild the chain index on startup")
+                        .recordNanosSince(start);
+            } catch (RuntimeException e) {
+                System.err.println("Failed to build chain index: " + e);
+                failure = e;
+            } finally {
+                built.countDown();
+            }
+        }, "chain-index-build");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return Whether the initial build has finished successfully.
+     */
+    public boolean isBuilt() {
+        return ready && failure == null;
+    }
+
+    /**
+     * Records a block appended at {@code position}.
+     */
+    public void add(int position, Block block) {
+        update(() -> addUnchecked(position, block));
+    }
+
+    /**
+     * Records that the transactions of the block at {@code position} were
+     * replaced. Existing postings are kept; lookups skip entries that no
+     * longer match. New postings are inserted in position order, into copies
+     * of the affected lists so that concurrent lookups are not disturbed.
+     */
+    public void replace(int position, Block block) {
+        update(() -> replaceUnchecked(position, block));
+    }
+
+    private void replaceUnchecked(int position, Block block) {
+        List<Transaction> txs = block.getTransactions();
+        if (txs == null)
+            return;
+        for (int t = 0; t < txs.size(); t++) {
+            Transaction tx = txs.get(t);
+            insertPosting(tx.getSender(), position, t);
+            if (!Objects.equals(tx.getSender(), tx.getRecipient())) {
+                insertPosting(tx.getRecipient(), position, t);
+            }
+        }
+    }
+
+    /**
+     * Forgets the blocks from {@code position} on, which are being removed
+     * from the end of the chain. Only the entries of those blocks are touched.
+     * 
+     * @param removed The removed blocks, starting at {@code position}.
+     */
+    public void truncate(int position, List<Block> removed) {
+        update(() -> truncateUnchecked(position, removed));
+    }
+
+    private void truncateUnchecked(int position, List<Block> removed) {
+        int[] table = positionsByIndex;
+        for (int i = 0; i < removed.size(); i++) {
+            Block block = removed.get(i);
+            positionsByHash.remove(block.getHash(), position + i);
+            int blockIndex = block.getIndex();
+            if (blockIndex >= 0 && blockIndex < table.length && table[blockIndex] == position + i + 1) {
+                table[blockIndex] = 0;
+            }
+            List<Transaction> txs = block.getTransactions();
+            if (txs == null)
+                continue;
+            for (Transaction tx : txs) {
+                truncatePostings(tx.getSender(), position);
+                truncatePostings(tx.getRecipient(), position);
+            }
+        }
+    }
+
+    /**
+     * @return The position of the block with this hash, or -1.
+     */
+    public int findPositionByHash(Hash256 hash) {
+        awaitBuilt();
+        Integer position = positionsByHash.get(hash);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * @return The position of the block with this index, or -1.
+     */
+    public int findPositionByIndex(int blockIndex) {
+        awaitBuilt();
+        int[] table = positionsByIndex;
+        if (blockIndex < 0 || blockIndex >= table.length)
+            return -1;
+        return table[blockIndex] - 1;
+    }
+
+    /**
+     * Returns every transaction sent or received by {@code address} in the
+     * given chain, in chain order.
+     */
+    public List<TransactionRef> findTransactions(String address, List<Block> chain) {
+        awaitBuilt();
+        Postings postings = postingsByAddress.get(address);
+        List<TransactionRef> result = new ArrayList<>();
+        if (postings == null)
+            return result;
+
+        int n = postings.size;
+        long[] entries = postings.entries;
+        int chainSize = chain.size();
+        for (int i = 0; i < n; i++) {
+            int blockPosition = (int) (entries[i] >>> 32);
+            int txPosition = (int) entries[i];
+            if (blockPosition >= chainSize)
+                break; // Appended after this chain snapshot
+            Block block = chain.get(blockPosition);
+            List<Transaction> txs = block.getTransactions();
+            if (txPosition < txs.size() && involves(txs.get(txPosition), address)) {
+                result.add(new TransactionRef(blockPosition, block, txPosition));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the tables to a snapshot file (through a temporary file). Must be
+     * called by the writer, after the initial build.
+     * 
+     * @param chain The chain the tables currently cover.
+     */
+    public void saveSnapshot(Path file, List<Block> chain) throws IOException {
+        awaitBuilt();
+        int height = chain.size();
+        Hash256 tip = height > 0 ? chain.get(height - 1).getHash() : Hash256.ZERO;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            DataOutputStream out = new DataOutputStream(os);
+            out.writeInt(MAGIC);
+            out.writeInt(height);
+            out.write(tip.toBytes());
+
+            out.writeInt(positionsByHash.size());
+            for (Map.Entry<Hash256, Integer> entry : positionsByHash.entrySet()) {
+                out.write(entry.getKey().toBytes());
+                out.writeInt(entry.getValue());
+            }
+
+            int[] table = positionsByIndex;
+            int used = table.length;
+            while (used > 0 && table[used - 1] == 0) {
+                used--;
+            }
+            out.writeInt(used);
+            for (int i = 0; i < used; i++) {
+                out.writeInt(table[i]);
+            }
+
+            out.writeInt(postingsByAddress.size());
+            for (Map.Entry<String, Postings> entry : postingsByAddress.entrySet()) {
+                Postings postings = entry.getValue();
+                int n = postings.size;
+                long[] entries = postings.entries;
+                out.writeUTF(entry.getKey());
+                out.writeInt(n);
+                for (int i = 0; i < n; i++) {
+                    out.writeLong(entries[i]);
+                }
+            }
+            out.flush();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads the snapshot if it ends at a block of this chain and returns the
+    // number of blocks it covers, or 0 if it was not used
+    private int loadSnapshot(Path file, List<Block> chain) {
+        if (file == null)
+            return 0;
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+            DataInputStream in = new DataInputStream(is);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a chain index snapshot: " + file);
+            }
+            int height = in.readInt();
+            byte[] hash = new byte[Hash256.BYTES];
+            in.readFully(hash);
+            if (height > chain.size()
+                    || (height > 0 && !chain.get(height - 1).getHash().equals(Hash256.fromBytes(hash)))) {
+                System.err.println("Chain index snapshot does not match the chain; reading all blocks.");
+                return 0;
+            }
+
+            int hashCount = in.readInt();
+            for (int i = 0; i < hashCount; i++) {
+                in.readFully(hash);
+                positionsByHash.put(Hash256.fromBytes(hash), in.readInt());
+            }
+
+            int used = in.readInt();
+            int[] table = new int[Math.max(1024, used)];
+            for (int i = 0; i < used; i++) {
+                table[i] = in.readInt();
+            }
+            positionsByIndex = table;
+
+            int addressCount = in.readInt();
+            for (int a = 0; a < addressCount; a++) {
+                String address = in.readUTF();
+                int n = in.readInt();
+                Postings postings = new Postings();
+                long[] entries = new long[Math.max(4, n)];
+                for (int i = 0; i < n; i++) {
+                    entries[i] = in.readLong();
+                }
+                postings.entries = entries;
+                postings.size = n;
+                postingsByAddress.put(address, postings);
+            }
+            return height;
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            System.err.println("Failed to load chain index snapshot: " + e);
+            clear();
+            return 0;
+        }
+    }
+
+    private void addUnchecked(int position, Block block) {
+        positionsByHash.put(block.getHash(), position);
+
+        int blockIndex = block.getIndex();
+        if (blockIndex >= 0) {
+            int[] table = positionsByIndex;
+            if (blockIndex >= table.length) {
+                table = Arrays.copyOf(table, Math.max(table.length * 2, blockIndex + 1));
+            }
+            table[blockIndex] = position + 1;
+            positionsByIndex = table;
+        }
+        addPostings(position, block);
+    }
+
+    private void addPostings(int position, Block block) {
+        List<Transaction> txs = block.getTransactions();
+        if (txs == null)
+            return;
+        for (int t = 0; t < txs.size(); t++) {
+            Transaction tx = txs.get(t);
+            addPosting(tx.getSender(), position, t);
+            if (!Objects.equals(tx.getSender(), tx.getRecipient())) {
+                addPosting(tx.getRecipient(), position, t);
+            }
+        }
+    }
+
+    private void addPosting(String address, int position, int txPosition) {
+        if (address == null)
+            return;
+        postingsByAddress.computeIfAbsent(address, a -> new Postings()).add(position, txPosition);
+    }
+
+    private void insertPosting(String address, int position, int txPosition) {
+        if (address == null)
+            return;
+        Postings postings = postingsByAddress.get(address);
+        if (postings == null) {
+            addPosting(address, position, txPosition);
+            return;
+        }
+        Postings sorted = postings.with(position, txPosition);
+        if (sorted != null) {
+            postingsByAddress.put(address, sorted);
+        }
+    }
+
+    private void truncatePostings(String address, int position) {
+        if (address == null)
+            return;
+        Postings postings = postingsByAddress.get(address);
+        if (postings != null) {
+            postings.truncate(position);
+        }
+    }
+
+    private void clear() {
+        positionsByHash.clear();
+        postingsByAddress.clear();
+        positionsByIndex = new int[1024];
+    }
+
+    // Applies the queued writer changes, then lets the writer change the
+    // tables directly. Called by the build thread.
+    private void applyPending() {
+        while (true) {
+            List<Runnable> batch;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    ready = true;
+                    return;
+                }
+                batch = new ArrayList<>(pending);
+                pending.clear();
+            }
+            for (Runnable change : batch) {
+                change.run();
+            }
+        }
+    }
+
+    // Runs a writer change now, or queues it if the initial build is still
+    // running
+    private void update(Runnable change) {
+        if (!ready) {
+            synchronized (pending) {
+                checkFailure();
+                if (!ready) {
+                    pending.add(change);
+                    return;
+                }
+            }
+        }
+        change.run();
+    }
+
+    private void checkFailure() {
+        RuntimeException e = failure;
+        if (e != null) {
+            throw new IllegalStateException("The chain index could not be built", e);
+        }
+    }
+
+    private static boolean involves(Transaction tx, String address) {
+        return address.equals(tx.getSender()) || address.equals(tx.getRecipient());
+    }
+
+    private void awaitBuilt() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                built.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+    }
+}
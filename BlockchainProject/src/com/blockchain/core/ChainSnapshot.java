@@ -0,0 +1,179 @@
+package com.blockchain.core;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * An immutable view of the chain at one point in time.
+ * 
+ * A snapshot is made of the blocks loaded from the store (decoded lazily),
+ * the blocks appended since, and any blocks replaced by tampering. Appending
+ * creates a new snapshot that shares the tail array with the old one: the
+ * new block is written into a slot the old snapshot never reads, so existing
+ * snapshots stay valid without copying. Readers can therefore use a snapshot
+ * from any thread without locking.
+ * 
+ * Removing blocks from the end (when the chain switches to another branch)
+ * copies the tail array, so the slots it frees are never shared. A snapshot
+ * taken before such a switch may fail to read stored blocks that were removed
+ * from the store.
+ */
+public final class ChainSnapshot extends AbstractList<Block> implements RandomAccess {
+
+    private static final int INITIAL_TAIL_CAPACITY = 64;
+
+    private final List<Block> stored;
+    private final int storedCount;
+    private final Block[] tail;
+    private final int tailSize;
+    private final Map<Integer, Block> replaced;
+    private final Hash256 latestHash;
+    private final int latestIndex;
+    // Number of replacements made up to this snapshot; equal counts mean the
+    // shared prefix of two snapshots holds the same blocks
+    private final int replaceCount;
+
+    private ChainSnapshot(List<Block> stored, int storedCount, Block[] tail, int tailSize,
+            Map<Integer, Block> replaced, int latestIndex, Hash256 latestHash, int replaceCount) {
+        this.replaceCount = replaceCount;
+        this.stored = stored;
+        this.storedCount = storedCount;
+        this.tail = tail;
+        this.tailSize = tailSize;
+        this.replaced = replaced;
+        this.latestIndex = latestIndex;
+        this.latestHash = latestHash;
+    }
+
+    /**
+     * Creates the initial snapshot over the blocks loaded from the store.
+     * 
+     * @param stored The stored blocks. The list must not change afterwards.
+     */
+    static ChainSnapshot of(List<Block> stored) {
+        int count = stored.size();
+        Block last = count > 0 ? stored.get(count - 1) : null;
+        return new ChainSnapshot(stored, count, new Block[INITIAL_TAIL_CAPACITY], 0,
+                Collections.emptyMap(), last != null ? last.getIndex() : -1,
+                last != null ? last.getHash() : Hash256.ZERO, 0);
+    }
+
+    /**
+     * Returns a snapshot with {@code block} added at the end. Must only be
+     * called by the chain's writer, on the latest snapshot.
+     */
+    ChainSnapshot append(Block block) {
+        Block[] array = tail;
+        if (tailSize == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[tailSize] = block;
+        return new ChainSnapshot(stored, storedCount, array, tailSize + 1, replaced, block.getIndex(),
+                block.getHash(), replaceCount);
+    }
+
+    /**
+     * Returns a snapshot with the block at {@code position} replaced. Earlier
+     * snapshots keep the original block.
+     */
+    ChainSnapshot replace(int position, Block block) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Position: " + position);
+        }
+        Block[] array = tail;
+        Map<Integer, Block> map = replaced;
+        if (position >= storedCount) {
+            array = tail.clone(); // Older snapshots share the tail array
+            array[position - storedCount] = block;
+        } else {
+            map = new HashMap<>(replaced);
+            map.put(position, block);
+        }
+        Block last = position == size() - 1 ? block : null;
+        return new ChainSnapshot(stored, storedCount, array, tailSize, map,
+                last != null ? last.getIndex() : latestIndex, last != null ? last.getHash() : latestHash,
+                replaceCount + 1);
+    }
+
+    /**
+     * Returns a snapshot of the first {@code size} blocks. Counts as a
+     * replacement, since the blocks appended next differ from the ones removed.
+     * Must only be called by the chain's writer, on the latest snapshot.
+     */
+    ChainSnapshot truncate(int size) {
+        if (size < 0 || size > size()) {
+            throw new IndexOutOfBoundsException("Size: " + size);
+        }
+        Block last = size > 0 ? get(size - 1) : null;
+        int lastIndex = last != null ? last.getIndex() : -1;
+        Hash256 lastHash = last != null ? last.getHash() : Hash256.ZERO;
+        if (size >= storedCount) {
+            Block[] array = Arrays.copyOf(tail, Math.max(tail.length, INITIAL_TAIL_CAPACITY));
+            Arrays.fill(array, size - storedCount, tailSize, null);
+            return new ChainSnapshot(stored, storedCount, array, size - storedCount, replaced, lastIndex, lastHash,
+                    replaceCount + 1);
+        }
+        Map<Integer, Block> map = replaced;
+        if (!map.isEmpty()) {
+            map = new HashMap<>(replaced);
+            map.keySet().removeIf(position -> position >= size);
+        }
+        return new ChainSnapshot(stored, size, new Block[INITIAL_TAIL_CAPACITY], 0, map, lastIndex, lastHash,
+                replaceCount + 1);
+    }
+
+    @Override
+    public Block get(int position) {
+        if (position >= storedCount) {
+            int t = position - storedCount;
+            if (t >= tailSize) {
+                throw new IndexOutOfBoundsException("Position: " + position + ", Size: " + size());
+            }
+            return tail[t];
+        }
+        if (!replaced.isEmpty()) {
+            Block b = replaced.get(position);
+            if (b != null)
+                return b;
+        }
+        return stored.get(position);
+    }
+
+    /**
+     * @return Whether the block at {@code position} is read from the store
+     *         unchanged, rather than held in memory.
+     */
+    public boolean isStored(int position) {
+        return position >= 0 && position < storedCount && !replaced.containsKey(position);
+    }
+
+    @Override
+    public int size() {
+        return storedCount + tailSize;
+    }
+
+    /** @return The index stored in the last block, or -1 for an empty chain. */
+    public int getLatestIndex() {
+        return latestIndex;
+    }
+
+    /** @return The hash of the last block, or {@link Hash256#ZERO} if empty. */
+    public Hash256 getLatestHash() {
+        return latestHash;
+    }
+
+    /**
+     * @return The number of block replacements made up to this snapshot. Two
+     *         snapshots with the same count agree on the blocks they share.
+     */
+    public int getReplaceCount() {
+        return replaceCount;
+    }
+}
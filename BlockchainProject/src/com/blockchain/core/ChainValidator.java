@@ -0,0 +1,265 @@
+package com.blockchain.core;
+
+import com.blockchain.ds.MerkleTreeCache;
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Validates blocks of a chain in parallel.
+ * 
+ * Every block is checked independently: its header hash is recomputed, its
+ * Merkle root is rebuilt from its transactions, and its previous hash and
+ * index are compared with the block before it. Mined blocks must also meet
+ * their difficulty, and blocks from the position where the chain started to
+ * require proof of work must declare at least the required difficulty (see
+ * {@link #setRequiredDifficulty}). The chain is split into chunks that run as
+ * fork-join tasks, and all problems are collected rather than stopping at the
+ * first one. Progress is reported per chunk, and a {@link ValidationProgress} can
+ * cancel a long validation between blocks.
+ */
+public class ChainValidator {
+
+    /** Ranges at or below this many blocks are checked on one thread. */
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    // The difficulty blocks must declare from a chain position on; replaced
+    // as a whole so a validation sees both values from the same call
+    private static final class Target {
+        static final Target NONE = new Target(0, 0);
+
+        final int bits;
+        final int fromPosition;
+
+        Target(int bits, int fromPosition) {
+            this.bits = bits;
+            this.fromPosition = fromPosition;
+        }
+
+        int at(int position) {
+            return position >= fromPosition ? bits : 0;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private volatile Target target = Target.NONE;
+
+    public ChainValidator() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChainValidator(ForkJoinPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Sets the difficulty that blocks at {@code fromPosition} and later must
+     * declare. Blocks before it were accepted under an earlier target and are
+     * only checked against their own difficulty. With {@code bits} above 0,
+     * blocks that are not mined, which declare 0, are rejected from that
+     * position on.
+     */
+    public void setRequiredDifficulty(int bits, int fromPosition) {
+        this.target = bits > 0 ? new Target(bits, fromPosition) : Target.NONE;
+    }
+
+    /**
+     * Validates the whole chain.
+     */
+    public ValidationReport validate(List<Block> chain) {
+        return validate(chain, 0, chain.size());
+    }
+
+    /**
+     * Validates the blocks at positions {@code from} (inclusive) to {@code to}
+     * (exclusive). The block before {@code from} is only used for the linkage
+     * check.
+     */
+    public ValidationReport validate(List<Block> chain, int from, int to) {
+        return validate(chain, from, to, ValidationProgress.NONE);
+    }
+
+    /**
+     * Validates the blocks at positions {@code from} (inclusive) to {@code to}
+     * (exclusive), reporting progress as it goes.
+     * 
+     * @throws CancellationException If {@code progress} cancelled the
+     *                               validation.
+     */
+    public ValidationReport validate(List<Block> chain, int from, int to, ValidationProgress progress) {
+        Target target = this.target;
+        List<ValidationIssue> issues;
+        if (to - from <= chunkSize) {
+            issues = validateRange(chain, from, to, target, progress, true);
+        } else {
+            issues = pool.invoke(new ValidateTask(chain, from, to, target, progress));
+        }
+        return new ValidationReport(from, to, issues);
+    }
+
+    /**
+     * Validates like {@link #validate(List, int, int, ValidationProgress)} on
+     * this validator's pool, so the calling thread does not wait.
+     */
+    public CompletableFuture<ValidationReport> validateAsync(List<Block> chain, int from, int to,
+            ValidationProgress progress) {
+        return CompletableFuture.supplyAsync(() -> validate(chain, from, to, progress), pool);
+    }
+
+    /**
+     * Validates blocks that are about to be appended to a chain, e.g. blocks
+     * received from another node. Issues are reported at the chain positions
+     * the blocks would get.
+     * 
+     * @param previous      The current last block of the chain, or null if it
+     *                      is empty.
+     * @param blocks        The blocks to append, in order.
+     * @param firstPosition The position the first block would get.
+     */
+    public ValidationReport validateAppend(Block previous, List<Block> blocks, int firstPosition) {
+        // Only the previous block and the new ones are ever read
+        List<Block> extended = new AbstractList<Block>() {
+            @Override
+            public Block get(int position) {
+                if (position == firstPosition - 1 && previous != null) {
+                    return previous;
+                }
+                if (position < firstPosition) {
+                    throw new IndexOutOfBoundsException("Position: " + position);
+                }
+                return blocks.get(position - firstPosition);
+            }
+
+            @Override
+            public int size() {
+                return firstPosition + blocks.size();
+            }
+        };
+        return validate(extended, firstPosition, extended.size());
+    }
+
+    private class ValidateTask extends RecursiveTask<List<ValidationIssue>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Block> chain;
+        private final int from;
+        private final int to;
+        private final Target target;
+        private final ValidationProgress progress;
+
+        ValidateTask(List<Block> chain, int from, int to, Target target, ValidationProgress progress) {
+            this.chain = chain;
+            this.from = from;
+            this.to = to;
+            this.target = target;
+            this.progress = progress;
+        }
+
+        @Override
+        protected List<ValidationIssue> compute() {
+            if (to - from <= chunkSize) {
+                // Trees built for a long scan are not kept, so the trees of
+                // recent blocks stay cached
+                return validateRange(chain, from, to, target, progress, false);
+            }
+            int mid = (from + to) >>> 1;
+            ValidateTask left = new ValidateTask(chain, from, mid, target, progress);
+            ValidateTask right = new ValidateTask(chain, mid, to, target, progress);
+            left.fork();
+            List<ValidationIssue> rightIssues = right.compute();
+            List<ValidationIssue> leftIssues = left.join();
+            if (rightIssues.isEmpty())
+                return leftIssues;
+            if (leftIssues.isEmpty())
+                return rightIssues;
+            List<ValidationIssue> merged = new ArrayList<>(leftIssues.size() + rightIssues.size());
+            merged.addAll(leftIssues);
+            merged.addAll(rightIssues);
+            return merged;
+        }
+    }
+
+    private static List<ValidationIssue> validateRange(List<Block> chain, int from, int to, Target target,
+            ValidationProgress progress, boolean cacheTrees) {
+        List<ValidationIssue> issues = new ArrayList<>(0);
+        Block previous = from > 0 ? chain.get(from - 1) : null;
+        for (int i = from; i < to; i++) {
+            if (progress.isCancelled()) {
+                throw new CancellationException("Validation cancelled at block position " + i);
+            }
+            Block current = chain.get(i);
+            validateBlock(i, current, previous, target.at(i), issues, cacheTrees);
+            previous = current;
+        }
+        progress.blocksChecked(to - from);
+        return issues;
+    }
+
+    /**
+     * Checks one block against the block before it.
+     * 
+     * @param previous           The previous block, or null for the genesis
+     *                           block.
+     * @param requiredDifficulty The difficulty the block must declare at least.
+     */
+    static void validateBlock(int position, Block current, Block previous, int requiredDifficulty,
+            List<ValidationIssue> issues, boolean cacheTree) {
+        int index = current.getIndex();
+
+        // 1. Check if the hash is actually correct (re-calculate)
+        Hash256 calculated = current.calculateHash();
+        if (!current.getHash().equals(calculated)) {
+            issues.add(new ValidationIssue(position, index, ValidationIssue.Type.HASH_MISMATCH,
+                    current.getHash().toString(), calculated.toString()));
+        }
+
+        // 2. Check previous hash linkage (except for Genesis block)
+        if (previous != null) {
+            if (!current.getPreviousHash().equals(previous.getHash())) {
+                issues.add(new ValidationIssue(position, index, ValidationIssue.Type.CHAIN_BREAKAGE,
+                        current.getPreviousHash().toString(), previous.getHash().toString()));
+            }
+        } else if (!current.getPreviousHash().isZero()) {
+            issues.add(new ValidationIssue(position, index, ValidationIssue.Type.INVALID_GENESIS,
+                    current.getPreviousHash().toString(), Hash256.ZERO.toString()));
+        }
+
+        // 3. Check that indexes count up from 0; the index of a received block
+        // sizes lookup tables, so a gap must never get past validation
+        int expectedIndex = previous != null ? previous.getIndex() + 1 : 0;
+        if (index != expectedIndex) {
+            issues.add(new ValidationIssue(position, index, ValidationIssue.Type.INDEX_MISMATCH,
+                    Integer.toString(index), Integer.toString(expectedIndex)));
+        }
+
+        // 4. Check the proof of work of mined blocks
+        if (!current.meetsDifficulty()) {
+            issues.add(new ValidationIssue(position, index, ValidationIssue.Type.INSUFFICIENT_WORK,
+                    current.getHash().toString(), Integer.toString(current.getDifficulty())));
+        }
+        // A block only has to meet the difficulty it declares, so the
+        // declared difficulty is checked against the chain's target too
+        if (current.getDifficulty() < requiredDifficulty) {
+            issues.add(new ValidationIssue(position, index, ValidationIssue.Type.DIFFICULTY_BELOW_TARGET,
+                    Integer.toString(current.getDifficulty()), Integer.toString(requiredDifficulty)));
+        }
+
+        // 5. Check Merkle Root Integrity
+        // Trees are cached per block and transaction list, so a block that was
+        // just created or checked before is not rehashed
+        MerkleTreeCache cache = MerkleTreeCache.shared();
+        Hash256 root = (cacheTree ? cache.get(current) : cache.peekOrBuild(current)).getRoot();
+        if (!root.equals(current.getMerkleRoot())) {
+            issues.add(new ValidationIssue(position, index, ValidationIssue.Type.MERKLE_ROOT_MISMATCH,
+                    current.getMerkleRoot().toString(), root.toString()));
+        }
+    }
+}
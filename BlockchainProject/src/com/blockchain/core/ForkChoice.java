@@ -0,0 +1,36 @@
+package com.blockchain.core;
+
+import com.blockchain.model.Block;
+
+/**
+ * Decides which of two competing branches is the main chain: the one whose
+ * blocks add up to more work. A branch only replaces the main chain if it has
+ * strictly more, so on a tie the branch seen first stays.
+ */
+public enum ForkChoice {
+
+    /** Every block counts the same, so the longest chain wins. */
+    LONGEST {
+        @Override
+        public double work(Block block) {
+            return 1.0;
+        }
+    },
+
+    /**
+     * A mined block counts the expected number of hashes needed to find it,
+     * 2^difficulty; an unmined block counts 1. Without mining this is the same
+     * as {@link #LONGEST}.
+     */
+    MOST_WORK {
+        @Override
+        public double work(Block block) {
+            return Math.scalb(1.0, block.getDifficulty());
+        }
+    };
+
+    /**
+     * @return The amount one block adds to the work of its branch.
+     */
+    public abstract double work(Block block);
+}
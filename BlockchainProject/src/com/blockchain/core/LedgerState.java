@@ -0,0 +1,427 @@
+package com.blockchain.core;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The balance of every address, kept up to date as blocks are appended.
+ * 
+ * Each address is interned to a small integer id the first time it is seen,
+ * and balances live in a primitive array indexed by that id, so a balance
+ * lookup is a map probe and an array read. A transaction moves its amount
+ * from the sender to the recipient; addresses start at zero.
+ * 
+ * The state can be written to a snapshot file together with the height and
+ * hash of the last applied block, so that opening the chain only replays the
+ * blocks added after the snapshot. Only the chain's writer applies blocks;
+ * balance lookups take no lock. Blocks applied before the state has been
+ * restored are queued and applied by the restore, so the writer does not wait
+ * for it, while lookups made before then wait. If the restore fails, every
+ * later call throws {@link IllegalStateException}.
+ * 
+ * For the last {@code undoDepth} applied blocks the previous balance of every
+ * address they touched is kept, so that they can be rolled back when the
+ * chain switches to another branch without replaying the chain. These undo
+ * records are saved with the snapshot, so blocks applied before a restart
+ * can still be rolled back.
+ */
+public class LedgerState {
+
+    private static final int MAGIC = 0x4c454432; // "LED2"
+    private static final int MAGIC_V1 = 0x4c454431; // "LED1", without undo records
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> addresses = new ArrayList<>(); // Writer only
+    // Balances by address id, stored as double bits so updates are atomic
+    private volatile AtomicLongArray balances = new AtomicLongArray(1024);
+    private volatile int height;
+    private volatile Hash256 tipHash = Hash256.ZERO;
+    private final CountDownLatch built = new CountDownLatch(1);
+    // Blocks applied while the state is restored; guarded by itself
+    private final List<Block> pending = new ArrayList<>();
+    private volatile boolean ready;
+    private volatile RuntimeException failure;
+    private final int undoDepth;
+    // Most recent last; writer only
+    private final ArrayDeque<Undo> undoLog = new ArrayDeque<>();
+
+    // What applying one block changed
+    private static class Undo {
+        final Hash256 previousTip;
+        // Pairs of (address id, previous balance bits), in the order applied
+        final long[] changes;
+
+        Undo(Hash256 previousTip, long[] changes) {
+            this.previousTip = previousTip;
+            this.changes = changes;
+        }
+    }
+
+    public LedgerState() {
+        this(0);
+    }
+
+    /**
+     * @param undoDepth The number of most recent blocks that can be rolled
+     *                  back.
+     */
+    public LedgerState(int undoDepth) {
+        this.undoDepth = undoDepth;
+    }
+
+    /**
+     * Restores the state on a background thread: from the snapshot file if it
+     * matches the chain, then by replaying the blocks after it.
+     * 
+     * @param chain    The blocks to apply. Must not change while building.
+     * @param snapshot The snapshot file, which may not exist.
+     */
+    public void buildAsync(List<Block> chain, Path snapshot) {
+        Thread t = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                if (!loadSnapshot(snapshot, chain)) {
+                    clear();
+                }
+                for (int i = height; i < chain.size(); i++) {
+                    applyUnchecked(chain.get(i), i >= chain.size() - undoDepth);
+                }
+                applyPending();
+                com.blockchain.metrics.MetricsRegistry.global()
+                        .timer("ledger_build_seconds", "Time to restore the ledger state on startup")
+                        .recordNanosSince(start);
+            } catch (RuntimeException e) {
+                System.err.println("Failed to build ledger state: " + e);
+                failure = e;
+            } finally {
+                built.countDown();
+            }
+        }, "ledger-build");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return Whether the state has been restored successfully.
+     */
+    public boolean isBuilt() {
+        return ready && failure == null;
+    }
+
+    /**
+     * Applies the transactions of the next block.
+     */
+    public void apply(Block block) {
+        if (!ready) {
+            synchronized (pending) {
+                checkFailure();
+                if (!ready) {
+                    pending.add(block);
+                    return;
+                }
+            }
+        }
+        applyUnchecked(block, undoDepth > 0);
+    }
+
+    /**
+     * @return The number of most recent blocks that can be rolled back now.
+     */
+    public int getUndoableCount() {
+        awaitBuilt();
+        return undoLog.size();
+    }
+
+    /**
+     * Restores the balances from before the last {@code blocks} blocks were
+     * applied.
+     * 
+     * @throws IllegalStateException If fewer blocks can be rolled back.
+     */
+    public void rollback(int blocks) {
+        awaitBuilt();
+        if (blocks > undoLog.size()) {
+            throw new IllegalStateException("Only " + undoLog.size() + " blocks can be rolled back, not " + blocks);
+        }
+        AtomicLongArray b = balances;
+        for (int i = 0; i < blocks; i++) {
+            Undo undo = undoLog.removeLast();
+            long[] changes = undo.changes;
+            for (int c = changes.length - 2; c >= 0; c -= 2) {
+                b.set((int) changes[c], changes[c + 1]);
+            }
+            tipHash = undo.previousTip;
+            height = height - 1;
+        }
+    }
+
+    /**
+     * @return The balance of the address; zero if it has never been used.
+     */
+    public double getBalance(String address) {
+        awaitBuilt();
+        Integer id = ids.get(address);
+        if (id == null)
+            return 0.0;
+        AtomicLongArray b = balances;
+        return id < b.length() ? Double.longBitsToDouble(b.get(id)) : 0.0;
+    }
+
+    /**
+     * @return The number of blocks applied.
+     */
+    public int getHeight() {
+        awaitBuilt();
+        return height;
+    }
+
+    /**
+     * @return The number of distinct addresses seen.
+     */
+    public int getAddressCount() {
+        awaitBuilt();
+        return ids.size();
+    }
+
+    /**
+     * Splits transactions into those the senders can afford, applied in order
+     * on top of the current balances, and those that would overdraw.
+     * 
+     * @param accepted Receives the transactions that can be included.
+     * @param rejected Receives the transactions that would overdraw.
+     */
+    public void selectAffordable(List<Transaction> transactions, List<Transaction> accepted,
+            List<Transaction> rejected) {
+        awaitBuilt();
+        Map<String, Double> pending = new HashMap<>();
+        for (Transaction tx : transactions) {
+            String sender = tx.getSender();
+            double available = pending.containsKey(sender) ? pending.get(sender) : getBalance(sender);
+            if (tx.getAmount() < 0 || available < tx.getAmount()) {
+                rejected.add(tx);
+                continue;
+            }
+            accepted.add(tx);
+            pending.put(sender, available - tx.getAmount());
+            String recipient = tx.getRecipient();
+            double received = pending.containsKey(recipient) ? pending.get(recipient) : getBalance(recipient);
+            pending.put(recipient, received + tx.getAmount());
+        }
+    }
+
+    /**
+     * Writes the balances to a snapshot file (through a temporary file).
+     */
+    public void saveSnapshot(Path file) throws IOException {
+        awaitBuilt();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            DataOutputStream out = new DataOutputStream(os);
+            out.writeInt(MAGIC);
+            out.writeInt(height);
+            out.write(tipHash.toBytes());
+            AtomicLongArray b = balances;
+            int count = addresses.size();
+            out.writeInt(count);
+            for (int id = 0; id < count; id++) {
+                out.writeUTF(addresses.get(id));
+                out.writeLong(b.get(id));
+            }
+            out.writeInt(undoLog.size());
+            for (Undo undo : undoLog) {
+                out.write(undo.previousTip.toBytes());
+                out.writeInt(undo.changes.length);
+                for (long change : undo.changes) {
+                    out.writeLong(change);
+                }
+            }
+            out.flush();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads the snapshot if it ends at a block of this chain
+    private boolean loadSnapshot(Path file, List<Block> chain) {
+        if (file == null)
+            return false;
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+            DataInputStream in = new DataInputStream(is);
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("Not a ledger snapshot: " + file);
+            }
+            int snapshotHeight = in.readInt();
+            byte[] hash = new byte[Hash256.BYTES];
+            in.readFully(hash);
+            Hash256 snapshotTip = Hash256.fromBytes(hash);
+            if (snapshotHeight > chain.size()
+                    || (snapshotHeight > 0 && !chain.get(snapshotHeight - 1).getHash().equals(snapshotTip))) {
+                System.err.println("Ledger snapshot does not match the chain; replaying all blocks.");
+                return false;
+            }
+
+            int count = in.readInt();
+            for (int id = 0; id < count; id++) {
+                int assigned = intern(in.readUTF());
+                balances.set(assigned, in.readLong());
+            }
+            if (magic == MAGIC) {
+                int undoCount = in.readInt();
+                for (int u = 0; u < undoCount; u++) {
+                    in.readFully(hash);
+                    long[] changes = new long[in.readInt()];
+                    for (int c = 0; c < changes.length; c++) {
+                        changes[c] = in.readLong();
+                    }
+                    undoLog.addLast(new Undo(Hash256.fromBytes(hash), changes));
+                }
+                while (undoLog.size() > undoDepth) {
+                    undoLog.removeFirst();
+                }
+            }
+            height = snapshotHeight;
+            tipHash = snapshotTip;
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            System.err.println("Failed to load ledger snapshot: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Applies the blocks queued while building, then lets the writer apply
+    // blocks directly. Called by the build thread.
+    private void applyPending() {
+        while (true) {
+            List<Block> batch;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    ready = true;
+                    return;
+                }
+                batch = new ArrayList<>(pending);
+                pending.clear();
+            }
+            for (Block block : batch) {
+                applyUnchecked(block, undoDepth > 0);
+            }
+        }
+    }
+
+    private void checkFailure() {
+        RuntimeException e = failure;
+        if (e != null) {
+            throw new IllegalStateException("The ledger state could not be built", e);
+        }
+    }
+
+    private void clear() {
+        undoLog.clear();
+        ids.clear();
+        addresses.clear();
+        balances = new AtomicLongArray(1024);
+        height = 0;
+        tipHash = Hash256.ZERO;
+    }
+
+    private void applyUnchecked(Block block, boolean keepUndo) {
+        List<Transaction> txs = block.getTransactions();
+        long[] changes = null;
+        int changeCount = 0;
+        if (txs != null) {
+            if (keepUndo) {
+                changes = new long[txs.size() * 4];
+            }
+            for (Transaction tx : txs) {
+                if (tx.getSender() != null)
+                    changeCount = add(intern(tx.getSender()), -tx.getAmount(), changes, changeCount);
+                if (tx.getRecipient() != null)
+                    changeCount = add(intern(tx.getRecipient()), tx.getAmount(), changes, changeCount);
+            }
+        }
+        if (!keepUndo) {
+            // Older records would no longer end at the current tip
+            undoLog.clear();
+        } else {
+            if (changes == null) {
+                changes = new long[0];
+            } else if (changeCount < changes.length) {
+                changes = Arrays.copyOf(changes, changeCount);
+            }
+            undoLog.addLast(new Undo(tipHash, changes));
+            if (undoLog.size() > undoDepth) {
+                undoLog.removeFirst();
+            }
+        }
+        tipHash = block.getHash();
+        height = height + 1;
+    }
+
+    // Records the previous balance in 'changes' if it is not null
+    private int add(int id, double delta, long[] changes, int changeCount) {
+        AtomicLongArray b = balances;
+        long previous = b.get(id);
+        if (changes != null) {
+            changes[changeCount++] = id;
+            changes[changeCount++] = previous;
+        }
+        b.set(id, Double.doubleToRawLongBits(Double.longBitsToDouble(previous) + delta));
+        return changeCount;
+    }
+
+    private int intern(String address) {
+        Integer id = ids.get(address);
+        if (id != null)
+            return id;
+        int assigned = addresses.size();
+        AtomicLongArray b = balances;
+        if (assigned == b.length()) {
+            AtomicLongArray grown = new AtomicLongArray(b.length() * 2);
+            for (int i = 0; i < b.length(); i++) {
+                grown.set(i, b.get(i));
+            }
+            balances = grown;
+        }
+        addresses.add(address);
+        ids.put(address, assigned);
+        return assigned;
+    }
+
+    private void awaitBuilt() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                built.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+    }
+}
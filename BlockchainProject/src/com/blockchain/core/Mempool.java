@@ -0,0 +1,124 @@
+package com.blockchain.core;
+
+import com.blockchain.metrics.Gauge;
+import com.blockchain.metrics.MetricsRegistry;
+import com.blockchain.model.Transaction;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pending transactions waiting to be put into a block.
+ * 
+ * Any number of threads may submit at once; the queue is lock-free, so
+ * submitters never block each other. Transactions are drained in arrival
+ * order by a single consumer, normally a {@link BlockProducer}.
+ */
+public class Mempool {
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private final Gauge sizeGauge;
+
+    // Consumer to wake up once 'wakeThreshold' transactions are waiting
+    private volatile Thread waiter;
+    private volatile int wakeThreshold = Integer.MAX_VALUE;
+
+    private static class Entry {
+        final Transaction transaction;
+        final long arrivalNanos;
+
+        Entry(Transaction transaction, long arrivalNanos) {
+            this.transaction = transaction;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
+    public Mempool() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity The maximum number of pending transactions.
+     */
+    public Mempool(int capacity) {
+        this.capacity = capacity;
+        this.sizeGauge = MetricsRegistry.global().gauge("mempool_size", "Transactions waiting in the mempool",
+                size::get);
+    }
+
+    /**
+     * Unregisters the pool's metrics, unless a newer pool has replaced them.
+     * Call once the pool is no longer used.
+     */
+    public void close() {
+        MetricsRegistry.global().remove(sizeGauge);
+    }
+
+    /**
+     * Adds a transaction to the pool.
+     * 
+     * @return false if the pool is full and the transaction was not added.
+     */
+    public boolean submit(Transaction tx) {
+        int n = size.incrementAndGet();
+        if (n > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+        queue.offer(new Entry(tx, System.nanoTime()));
+
+        Thread t = waiter;
+        if (t != null && n >= wakeThreshold) {
+            LockSupport.unpark(t);
+        }
+        return true;
+    }
+
+    /**
+     * Moves up to {@code max} transactions, oldest first, into {@code out}.
+     * 
+     * @return The number of transactions moved.
+     */
+    public int drain(int max, List<Transaction> out) {
+        int drained = 0;
+        Entry e;
+        while (drained < max && (e = queue.poll()) != null) {
+            out.add(e.transaction);
+            drained++;
+        }
+        size.addAndGet(-drained);
+        return drained;
+    }
+
+    /**
+     * @return The number of pending transactions.
+     */
+    public int size() {
+        return Math.max(0, size.get());
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * @return How long the oldest pending transaction has waited, in
+     *         nanoseconds, or -1 if the pool is empty.
+     */
+    public long oldestAgeNanos() {
+        Entry head = queue.peek();
+        return head != null ? System.nanoTime() - head.arrivalNanos : -1;
+    }
+
+    /**
+     * Registers the thread that consumes the pool. It is unparked whenever at
+     * least {@code threshold} transactions are pending after a submit.
+     */
+    void setWaiter(Thread waiter, int threshold) {
+        this.wakeThreshold = threshold;
+        this.waiter = waiter;
+    }
+}
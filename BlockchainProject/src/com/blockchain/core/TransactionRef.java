@@ -0,0 +1,43 @@
+package com.blockchain.core;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Transaction;
+
+/**
+ * A transaction together with the block that holds it.
+ */
+public class TransactionRef {
+
+    private final int blockPosition;
+    private final Block block;
+    private final int transactionPosition;
+
+    public TransactionRef(int blockPosition, Block block, int transactionPosition) {
+        this.blockPosition = blockPosition;
+        this.block = block;
+        this.transactionPosition = transactionPosition;
+    }
+
+    /** @return The position of the block in the chain. */
+    public int getBlockPosition() {
+        return blockPosition;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    /** @return The position of the transaction within its block. */
+    public int getTransactionPosition() {
+        return transactionPosition;
+    }
+
+    public Transaction getTransaction() {
+        return block.getTransactions().get(transactionPosition);
+    }
+
+    @Override
+    public String toString() {
+        return "Block #" + block.getIndex() + " tx " + transactionPosition + ": " + getTransaction();
+    }
+}
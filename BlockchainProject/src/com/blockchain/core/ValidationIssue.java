@@ -0,0 +1,82 @@
+package com.blockchain.core;
+
+/**
+ * A single problem found while validating the chain.
+ */
+public class ValidationIssue {
+
+    public enum Type {
+        HASH_MISMATCH,
+        CHAIN_BREAKAGE,
+        INVALID_GENESIS,
+        MERKLE_ROOT_MISMATCH,
+        INSUFFICIENT_WORK,
+        INDEX_MISMATCH,
+        DIFFICULTY_BELOW_TARGET
+    }
+
+    private final int position;
+    private final int blockIndex;
+    private final Type type;
+    private final String stored;
+    private final String computed;
+
+    public ValidationIssue(int position, int blockIndex, Type type, String stored, String computed) {
+        this.position = position;
+        this.blockIndex = blockIndex;
+        this.type = type;
+        this.stored = stored;
+        this.computed = computed;
+    }
+
+    /** @return The position of the block in the chain list. */
+    public int getPosition() {
+        return position;
+    }
+
+    /** @return The index stored in the block. */
+    public int getBlockIndex() {
+        return blockIndex;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** @return The value stored in the block. */
+    public String getStoredValue() {
+        return stored;
+    }
+
+    /** @return The value recomputed from the block or taken from its neighbour. */
+    public String getComputedValue() {
+        return computed;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case HASH_MISMATCH:
+                return "DATA TAMPERING DETECTED at Block " + blockIndex + "\nStored Hash: " + stored
+                        + "\nCalc Hash:   " + computed;
+            case CHAIN_BREAKAGE:
+                return "CHAIN BREAKAGE DETECTED at Block " + blockIndex + "\nBlock PrevHash: " + stored
+                        + "\nActual PrevHash: " + computed;
+            case INVALID_GENESIS:
+                return "Genesis Block Invalid Previous Hash";
+            case INDEX_MISMATCH:
+                return "INDEX MISMATCH at Block " + blockIndex + "\nBlock Index:    " + stored
+                        + "\nExpected Index: " + computed;
+            case INSUFFICIENT_WORK:
+                return "INSUFFICIENT PROOF OF WORK at Block " + blockIndex + "\nHash: " + stored
+                        + "\nRequired Zero Bits: " + computed;
+            case DIFFICULTY_BELOW_TARGET:
+                return "DIFFICULTY BELOW TARGET at Block " + blockIndex + "\nBlock Difficulty:    " + stored
+                        + "\nRequired Difficulty: " + computed;
+            case MERKLE_ROOT_MISMATCH:
+            default:
+                return "MERKLE ROOT MISMATCH at Block " + blockIndex + "\nStored Root: " + stored
+                        + "\nCalc Root:   " + computed;
+        }
+    }
+}
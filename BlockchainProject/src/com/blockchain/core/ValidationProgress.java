@@ -0,0 +1,33 @@
+package com.blockchain.core;
+
+/**
+ * Receives progress from a running validation and lets the caller stop it.
+ * Both methods may be called from several validation threads at once.
+ */
+public interface ValidationProgress {
+
+    /** Ignores progress and never cancels. */
+    ValidationProgress NONE = new ValidationProgress() {
+        @Override
+        public void blocksChecked(int blocks) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /**
+     * Called each time a run of blocks has been checked.
+     *
+     * @param blocks The number of blocks in that run, not the running total.
+     */
+    void blocksChecked(int blocks);
+
+    /**
+     * Polled while validating; once it returns true the validation stops with
+     * a {@link java.util.concurrent.CancellationException}.
+     */
+    boolean isCancelled();
+}
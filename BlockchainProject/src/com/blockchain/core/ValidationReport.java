@@ -0,0 +1,44 @@
+package com.blockchain.core;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of validating a range of the chain.
+ * Lists every problem found, ordered by block position.
+ */
+public class ValidationReport {
+
+    private final int from;
+    private final int to;
+    private final List<ValidationIssue> issues;
+
+    public ValidationReport(int from, int to, List<ValidationIssue> issues) {
+        this.from = from;
+        this.to = to;
+        this.issues = Collections.unmodifiableList(issues);
+    }
+
+    public boolean isValid() {
+        return issues.isEmpty();
+    }
+
+    public List<ValidationIssue> getIssues() {
+        return issues;
+    }
+
+    /** @return The first checked position. */
+    public int getFrom() {
+        return from;
+    }
+
+    /** @return The position after the last checked block. */
+    public int getTo() {
+        return to;
+    }
+
+    /** @return The number of blocks that were checked. */
+    public int getBlocksChecked() {
+        return to - from;
+    }
+}
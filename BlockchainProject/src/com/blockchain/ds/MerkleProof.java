@@ -0,0 +1,57 @@
+package com.blockchain.ds;
+
+import com.blockchain.model.Hash256;
+
+/**
+ * Proof that a transaction is included in a block: the transaction's hash,
+ * its position, and the sibling hashes from the leaf up to the root. A client
+ * holding only the block header can check it with
+ * {@link MerkleTree#verify(MerkleProof, Hash256)}.
+ */
+public class MerkleProof {
+
+    private final int version;
+    private final int index;
+    private final Hash256 leaf;
+    private final byte[] siblings;
+
+    public MerkleProof(int version, int index, Hash256 leaf, byte[] siblings) {
+        if (siblings.length % Hash256.BYTES != 0) {
+            throw new IllegalArgumentException("Sibling hashes must be " + Hash256.BYTES + " bytes each");
+        }
+        this.version = version;
+        this.index = index;
+        this.leaf = leaf;
+        this.siblings = siblings.clone();
+    }
+
+    /** @return The block version, which decides how nodes are hashed. */
+    public int getVersion() {
+        return version;
+    }
+
+    /** @return The position of the transaction in the block. */
+    public int getIndex() {
+        return index;
+    }
+
+    /** @return The hash of the transaction. */
+    public Hash256 getLeaf() {
+        return leaf;
+    }
+
+    /** @return The number of sibling hashes, i.e. the height of the tree. */
+    public int getDepth() {
+        return siblings.length / Hash256.BYTES;
+    }
+
+    /** @return The sibling on the given level, counting from the leaves. */
+    public Hash256 getSibling(int level) {
+        return Hash256.fromBytes(siblings, level * Hash256.BYTES);
+    }
+
+    @Override
+    public String toString() {
+        return "MerkleProof [Index: " + index + ", Leaf: " + leaf + ", Depth: " + getDepth() + "]";
+    }
+}
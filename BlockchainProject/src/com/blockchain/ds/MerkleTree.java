@@ -1,55 +1,221 @@
 package com.blockchain.ds;
 
+import com.blockchain.metrics.Histogram;
+import com.blockchain.metrics.MetricsRegistry;
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
 import com.blockchain.util.HashUtil;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * The Merkle tree of a block's transactions.
+ * 
+ * Every level is kept, leaves first and the root last, as 32-byte nodes in
+ * one flat byte array. When a level has an odd number of nodes, the last node
+ * is paired with itself. Keeping the levels allows inclusion proofs to be
+ * produced for any transaction.
+ * 
+ * The tree is built level by level into a preallocated array. For large
+ * blocks, the leaves and the pairs of each level are hashed in parallel on
+ * the common fork-join pool; the result is the same as hashing sequentially.
+ */
 public class MerkleTree {
 
-    private String root;
+    /** Levels with at least this many nodes to compute are hashed in parallel. */
+    public static final int PARALLEL_THRESHOLD = 1024;
+    // Nodes hashed by one fork-join task
+    private static final int CHUNK_SIZE = 256;
 
-    public MerkleTree(List<com.blockchain.model.Transaction> transactions) {
-        this.root = calculateMerkleRoot(transactions);
+    private static final Histogram BUILD_TIME = MetricsRegistry.global().timer("merkle_build_seconds",
+            "Time to build the Merkle tree of a block");
+
+    private final int version;
+    private final byte[] nodes;
+    // Index of the first node of each level; the last entry is the root
+    private final int[] levelStart;
+    private final int leafCount;
+
+    public MerkleTree(List<Transaction> transactions) {
+        this(transactions, Block.CURRENT_VERSION);
     }
 
-    public String getRoot() {
-        return root;
+    /**
+     * @param transactions The transactions of a block.
+     * @param version      The block version, which decides how nodes are hashed.
+     */
+    public MerkleTree(List<Transaction> transactions, int version) {
+        this.version = version;
+        this.leafCount = transactions == null ? 0 : transactions.size();
+        if (leafCount == 0) {
+            this.nodes = new byte[0];
+            this.levelStart = new int[0];
+            return;
+        }
+
+        int levels = 1;
+        int total = leafCount;
+        for (int n = leafCount; n > 1; n = (n + 1) / 2) {
+            total += (n + 1) / 2;
+            levels++;
+        }
+        long buildStart = System.nanoTime();
+        this.nodes = new byte[total * Hash256.BYTES];
+        this.levelStart = new int[levels];
+
+        forRange(leafCount, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                transactions.get(i).calculateHash().writeTo(nodes, i * Hash256.BYTES);
+            }
+        });
+
+        int start = 0;
+        int size = leafCount;
+        for (int level = 1; level < levels; level++) {
+            int next = start + size;
+            levelStart[level] = next;
+            hashLevel(start, size, next);
+            start = next;
+            size = (size + 1) / 2;
+        }
+        BUILD_TIME.recordNanosSince(buildStart);
+    }
+
+    // Hashes the pairs of the level at node index 'start' into the level at 'next'
+    private void hashLevel(int start, int size, int next) {
+        int parents = (size + 1) / 2;
+        forRange(parents, (from, to) -> {
+            for (int p = from; p < to; p++) {
+                int i = p * 2;
+                int left = (start + i) * Hash256.BYTES;
+                int out = (next + p) * Hash256.BYTES;
+                if (i + 1 < size) {
+                    // Siblings are adjacent, so the pair is hashed in place
+                    hashPair(nodes, left, nodes, out, version);
+                } else {
+                    // Duplicate last if odd
+                    byte[] pair = new byte[Hash256.BYTES * 2];
+                    System.arraycopy(nodes, left, pair, 0, Hash256.BYTES);
+                    System.arraycopy(nodes, left, pair, Hash256.BYTES, Hash256.BYTES);
+                    hashPair(pair, 0, nodes, out, version);
+                }
+            }
+        });
     }
 
-    private String calculateMerkleRoot(List<com.blockchain.model.Transaction> transactions) {
-        if (transactions == null || transactions.isEmpty()) {
-            return "";
+    // Runs op over [0, count), split across the common fork-join pool when
+    // there is enough work. Each slot is written by exactly one task.
+    private static void forRange(int count, RangeOp op) {
+        if (count < PARALLEL_THRESHOLD) {
+            op.run(0, count);
+        } else {
+            ForkJoinPool.commonPool().invoke(new RangeTask(op, 0, count));
         }
+    }
+
+    private interface RangeOp {
+        void run(int from, int to);
+    }
 
-        List<com.blockchain.model.Transaction> tempTxList = new ArrayList<>(transactions);
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-        // Convert all transactions to their hashes
-        List<String> hashes = new ArrayList<>();
-        for (com.blockchain.model.Transaction tx : tempTxList) {
-            hashes.add(tx.calculateHash());
+        private final RangeOp op;
+        private final int from;
+        private final int to;
+
+        RangeTask(RangeOp op, int from, int to) {
+            this.op = op;
+            this.from = from;
+            this.to = to;
         }
 
-        // Recursively find the Merkle Root
-        return findMerkleRoot(hashes);
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                op.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(op, from, mid), new RangeTask(op, mid, to));
+        }
     }
 
-    private String findMerkleRoot(List<String> hashes) {
-        if (hashes.size() == 1) {
-            return hashes.get(0);
+    public Hash256 getRoot() {
+        if (leafCount == 0) {
+            return Hash256.ZERO;
         }
+        return Hash256.fromBytes(nodes, nodes.length - Hash256.BYTES);
+    }
 
-        List<String> newHashes = new ArrayList<>();
+    public int getLeafCount() {
+        return leafCount;
+    }
 
-        // Process pairs
-        for (int i = 0; i < hashes.size(); i += 2) {
-            String left = hashes.get(i);
-            String right = (i + 1 < hashes.size()) ? hashes.get(i + 1) : left; // Duplicate last if odd
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The approximate memory used by the tree's nodes, in bytes.
+     */
+    public int getSizeInBytes() {
+        return nodes.length;
+    }
 
-            String combined = left + right;
-            String computedHash = HashUtil.applySha256(combined);
-            newHashes.add(computedHash);
+    /**
+     * Builds the proof that the transaction at {@code txIndex} is part of this
+     * tree: the sibling of its node on every level below the root.
+     */
+    public MerkleProof getProof(int txIndex) {
+        if (txIndex < 0 || txIndex >= leafCount) {
+            throw new IndexOutOfBoundsException("Transaction index " + txIndex + " of " + leafCount);
         }
+        int depth = levelStart.length - 1;
+        byte[] siblings = new byte[depth * Hash256.BYTES];
+        int index = txIndex;
+        int size = leafCount;
+        for (int level = 0; level < depth; level++) {
+            int sibling = (index % 2 == 0) ? Math.min(index + 1, size - 1) : index - 1;
+            System.arraycopy(nodes, (levelStart[level] + sibling) * Hash256.BYTES, siblings,
+                    level * Hash256.BYTES, Hash256.BYTES);
+            index /= 2;
+            size = (size + 1) / 2;
+        }
+        return new MerkleProof(version, txIndex, Hash256.fromBytes(nodes, txIndex * Hash256.BYTES), siblings);
+    }
+
+    /**
+     * Checks that a proof leads from its transaction hash to the given root.
+     */
+    public static boolean verify(MerkleProof proof, Hash256 root) {
+        byte[] pair = new byte[Hash256.BYTES * 2];
+        byte[] current = proof.getLeaf().toBytes();
+        int index = proof.getIndex();
+        for (int level = 0; level < proof.getDepth(); level++) {
+            if (index % 2 == 0) {
+                System.arraycopy(current, 0, pair, 0, Hash256.BYTES);
+                proof.getSibling(level).writeTo(pair, Hash256.BYTES);
+            } else {
+                proof.getSibling(level).writeTo(pair, 0);
+                System.arraycopy(current, 0, pair, Hash256.BYTES, Hash256.BYTES);
+            }
+            hashPair(pair, 0, current, 0, proof.getVersion());
+            index /= 2;
+        }
+        return index == 0 && Hash256.fromBytes(current).equals(root);
+    }
 
-        return findMerkleRoot(newHashes);
+    // Hashes the 64 bytes at in[inOffset] into 32 bytes at out[outOffset]
+    private static void hashPair(byte[] in, int inOffset, byte[] out, int outOffset, int version) {
+        if (version == Block.VERSION_LEGACY) {
+            // Legacy blocks hash the concatenated hex strings
+            Hash256.fromHex(HashUtil.applySha256(HashUtil.toHex(in, inOffset, Hash256.BYTES * 2)))
+                    .writeTo(out, outOffset);
+            return;
+        }
+        HashUtil.sha256(in, inOffset, Hash256.BYTES * 2, out, outOffset);
     }
 }
@@ -0,0 +1,163 @@
+package com.blockchain.ds;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of Merkle trees by block hash, evicting the least recently
+ * used trees once their total size exceeds the budget.
+ * 
+ * A cached tree is only returned for a block that holds the very same
+ * transaction list object it was built from, so a block whose transactions
+ * were replaced (e.g. tampered with) under the same hash always gets a tree
+ * built from its current transactions. Transaction lists must not be modified
+ * after a block is created.
+ * 
+ * The cache is split into {@value #STRIPES} stripes by hash, each with its
+ * own lock, LRU order and share of the budget, so parallel validators rarely
+ * wait for each other. Scans over many blocks use {@link #peekOrBuild} and do
+ * not push out the trees of recent blocks.
+ */
+public class MerkleTreeCache {
+
+    /** Default budget for the shared cache, in bytes of tree nodes. */
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    static final int STRIPES = 16;
+
+    private static final MerkleTreeCache SHARED = new MerkleTreeCache(DEFAULT_MAX_BYTES);
+
+    private static class Entry {
+        final List<Transaction> transactions;
+        final MerkleTree tree;
+
+        Entry(List<Transaction> transactions, MerkleTree tree) {
+            this.transactions = transactions;
+            this.tree = tree;
+        }
+    }
+
+    private static class Stripe {
+        final LinkedHashMap<Hash256, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        long currentBytes;
+    }
+
+    private final long maxBytesPerStripe;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public MerkleTreeCache(long maxBytes) {
+        this.maxBytesPerStripe = maxBytes / STRIPES;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return The cache shared by blocks and the validator.
+     */
+    public static MerkleTreeCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the tree of the block's transactions, building and caching it if
+     * needed.
+     */
+    public MerkleTree get(Block block) {
+        MerkleTree tree = getIfPresent(block);
+        if (tree != null)
+            return tree;
+        // Built outside the lock, so concurrent validators do not serialize
+        tree = new MerkleTree(block.getTransactions(), block.getVersion());
+        put(block, tree);
+        return tree;
+    }
+
+    /**
+     * Returns the cached tree of the block, or builds one without caching it.
+     * For scans over many blocks, whose trees are not needed again soon.
+     */
+    public MerkleTree peekOrBuild(Block block) {
+        MerkleTree tree = getIfPresent(block);
+        return tree != null ? tree : new MerkleTree(block.getTransactions(), block.getVersion());
+    }
+
+    /**
+     * @return The cached tree of the block, or null.
+     */
+    public MerkleTree getIfPresent(Block block) {
+        Stripe stripe = stripeOf(block.getHash());
+        Entry e;
+        synchronized (stripe) {
+            e = stripe.entries.get(block.getHash());
+        }
+        if (e != null && e.transactions == block.getTransactions() && e.tree.getVersion() == block.getVersion()) {
+            hits.increment();
+            return e.tree;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches a tree built from the block's transactions.
+     */
+    public void put(Block block, MerkleTree tree) {
+        long size = tree.getSizeInBytes();
+        if (size > maxBytesPerStripe)
+            return;
+        Stripe stripe = stripeOf(block.getHash());
+        synchronized (stripe) {
+            Entry old = stripe.entries.put(block.getHash(), new Entry(block.getTransactions(), tree));
+            if (old != null) {
+                stripe.currentBytes -= old.tree.getSizeInBytes();
+            }
+            stripe.currentBytes += size;
+            Iterator<Map.Entry<Hash256, Entry>> it = stripe.entries.entrySet().iterator();
+            while (stripe.currentBytes > maxBytesPerStripe && it.hasNext()) {
+                stripe.currentBytes -= it.next().getValue().tree.getSizeInBytes();
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.entries.clear();
+                stripe.currentBytes = 0;
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private Stripe stripeOf(Hash256 hash) {
+        int h = hash.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
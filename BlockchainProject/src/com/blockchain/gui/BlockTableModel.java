@@ -0,0 +1,102 @@
+package com.blockchain.gui;
+
+import com.blockchain.core.Blockchain;
+import com.blockchain.core.ChainSnapshot;
+import com.blockchain.model.Block;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table rows over a snapshot of the chain, one block per row.
+ *
+ * A {@code JTable} only asks for the rows it is painting, and stored blocks
+ * are decoded the first time they are read, so the cost of showing the table
+ * depends on the window height rather than the chain length. The snapshot is
+ * swapped for the latest one by {@link #refresh()}.
+ */
+public class BlockTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMNS = { "Index", "Timestamp", "Transactions", "Hash", "Previous Hash",
+            "Merkle Root" };
+
+    private final transient Blockchain blockchain;
+    private transient ChainSnapshot snapshot;
+
+    /**
+     * Must be used on the event dispatch thread.
+     */
+    public BlockTableModel(Blockchain blockchain) {
+        this.blockchain = blockchain;
+        this.snapshot = blockchain.getSnapshot();
+    }
+
+    /**
+     * Picks up blocks added or replaced since the last call.
+     */
+    public void refresh() {
+        ChainSnapshot latest = blockchain.getSnapshot();
+        if (latest == snapshot)
+            return;
+        ChainSnapshot previous = snapshot;
+        snapshot = latest;
+        if (latest.getReplaceCount() == previous.getReplaceCount() && latest.size() > previous.size()) {
+            fireTableRowsInserted(previous.size(), latest.size() - 1);
+        } else {
+            fireTableDataChanged();
+        }
+    }
+
+    /**
+     * @return The block shown in this row.
+     */
+    public Block getBlock(int row) {
+        return snapshot.get(row);
+    }
+
+    @Override
+    public int getRowCount() {
+        return snapshot.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == 0 || column == 2 ? Integer.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Block block;
+        try {
+            block = snapshot.get(row);
+        } catch (UncheckedIOException e) {
+            return column == 0 || column == 2 ? null : "(unreadable)";
+        }
+        switch (column) {
+            case 0:
+                return block.getIndex();
+            case 1:
+                return Instant.ofEpochMilli(block.getTimestamp()).toString();
+            case 2:
+                return block.getTransactions().size();
+            case 3:
+                return block.getHash().toString();
+            case 4:
+                return block.getPreviousHash().toString();
+            default:
+                return block.getMerkleRoot().toString();
+        }
+    }
+}
@@ -1,14 +1,53 @@
 package com.blockchain.gui;
 
 import com.blockchain.core.Blockchain;
+import com.blockchain.core.ValidationProgress;
+import com.blockchain.core.ValidationReport;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.*;
 import javax.swing.text.DefaultCaret;
 
+/**
+ * The operator console. Chain operations never run on the event dispatch
+ * thread: opening and closing the chain, adding and tampering run one at a
+ * time, in click order, on a background thread, and validation runs in a
+ * {@link SwingWorker} that shows its progress and can be cancelled.
+ * 
+ * The log keeps only the most recent lines, and the chain is shown in a
+ * table that only reads the blocks on screen.
+ */
 public class BlockchainGUI extends JFrame {
-    private Blockchain blockchain;
+    private static final int TABLE_REFRESH_MS = 250;
+
+    // Set on the actions thread once the chain is loaded
+    private volatile Blockchain blockchain;
     private JTextArea logArea;
+    private LogSink logSink;
+    private JTable blockTable;
+    private BlockTableModel blockModel;
+    private JTabbedPane tabs;
+
+    private volatile Thread actionThread;
+    private final ThreadPoolExecutor actions = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "gui-actions");
+                t.setDaemon(true);
+                actionThread = t;
+                return t;
+            });
+    private ValidationWorker validation;
+    private JButton validateButton;
+    private JButton cancelButton;
+    private JProgressBar progressBar;
 
     // Add Block Fields
     private JTextField senderField;
@@ -24,15 +63,10 @@ public class BlockchainGUI extends JFrame {
     public BlockchainGUI() {
         setTitle("Blockchain Conceptualization");
         setSize(900, 700);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // Exits once the chain is closed, see windowClosing
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         setLocationRelativeTo(null);
 
-        // Initialize Blockchain with a logger that appends to our text area
-        blockchain = new Blockchain(this::log);
-
-        // Layout
-        setLayout(new BorderLayout());
-
         // --- Output Log Area ---
         logArea = new JTextArea();
         logArea.setEditable(false);
@@ -40,10 +74,82 @@ public class BlockchainGUI extends JFrame {
         // Auto-scroll
         DefaultCaret caret = (DefaultCaret) logArea.getCaret();
         caret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
+        logSink = new LogSink(logArea, LogSink.DEFAULT_MAX_LINES);
+
+        // Initialize Blockchain with a logger that appends to our text area.
+        // Loading it reads the store, so it runs before any queued action but
+        // off the EDT
+        runInBackground("load blockchain", () -> {
+            Blockchain chain = new Blockchain(this::log);
+            blockchain = chain;
+            SwingUtilities.invokeLater(() -> chainLoaded(chain));
+        });
+        // Make queued blocks durable before the JVM exits
+        addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosing(java.awt.event.WindowEvent e) {
+                if (actions.isShutdown())
+                    return;
+                if (validation != null) {
+                    validation.cancel(false);
+                }
+                setVisible(false);
+                // Blocks still queued are dropped, and one that is being mined is stopped
+                List<Runnable> dropped = new ArrayList<>();
+                actions.getQueue().drainTo(dropped);
+                if (!dropped.isEmpty()) {
+                    System.err.println("Discarded " + dropped.size() + " pending actions on exit");
+                }
+                // Not while the chain is loading, which an interrupt would break
+                Thread t = actionThread;
+                if (t != null && blockchain != null) {
+                    t.interrupt();
+                }
+                actions.execute(() -> {
+                    Blockchain chain = blockchain;
+                    if (chain != null) {
+                        chain.close();
+                    }
+                    logSink.stop();
+                    System.exit(0);
+                });
+                actions.shutdown();
+            }
+        });
+
+        // Layout
+        setLayout(new BorderLayout());
 
         JScrollPane scrollPane = new JScrollPane(logArea);
         scrollPane.setBorder(BorderFactory.createTitledBorder("System Log & Blockchain Output"));
-        add(scrollPane, BorderLayout.CENTER);
+
+        // --- Block Table ---
+        // The model is set once the chain is loaded
+        blockTable = new JTable();
+        blockTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        JTextArea blockDetails = new JTextArea();
+        blockDetails.setEditable(false);
+        blockDetails.setFont(new Font("Monospaced", Font.PLAIN, 13));
+        blockTable.getSelectionModel().addListSelectionListener(e -> {
+            int row = blockTable.getSelectedRow();
+            if (!e.getValueIsAdjusting() && row >= 0) {
+                blockDetails.setText(blockModel.getBlock(blockTable.convertRowIndexToModel(row)).toString());
+                blockDetails.setCaretPosition(0);
+            }
+        });
+        JSplitPane blockPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, new JScrollPane(blockTable),
+                new JScrollPane(blockDetails));
+        blockPane.setResizeWeight(0.7);
+        new Timer(TABLE_REFRESH_MS, e -> {
+            if (blockModel != null) {
+                blockModel.refresh();
+            }
+        }).start();
+
+        tabs = new JTabbedPane();
+        tabs.addTab("Log", scrollPane);
+        tabs.addTab("Blocks", blockPane);
+        add(tabs, BorderLayout.CENTER);
 
         // --- Controls Panel ---
         JPanel controlsPanel = new JPanel();
@@ -75,13 +181,33 @@ public class BlockchainGUI extends JFrame {
         JPanel actionPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         actionPanel.setBorder(BorderFactory.createTitledBorder("Actions"));
         JButton displayButton = new JButton("Display Chain");
-        displayButton.addActionListener(e -> blockchain.displayChain());
+        displayButton.addActionListener(e -> {
+            if (blockModel != null) {
+                blockModel.refresh();
+            }
+            tabs.setSelectedIndex(1);
+        });
         actionPanel.add(displayButton);
 
-        JButton validateButton = new JButton("Validate Blockchain");
+        validateButton = new JButton("Validate Blockchain");
+        validateButton.setEnabled(false); // Until the chain is loaded
         validateButton.addActionListener(this::onValidate);
         actionPanel.add(validateButton);
 
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        actionPanel.add(progressBar);
+
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(e -> {
+            if (validation != null) {
+                validation.cancel(false);
+            }
+        });
+        actionPanel.add(cancelButton);
+
         controlsPanel.add(actionPanel);
 
         // 3. Tamper Panel
@@ -112,12 +238,28 @@ public class BlockchainGUI extends JFrame {
 
         add(controlsPanel, BorderLayout.SOUTH);
 
+        log("Loading blockchain...");
+    }
+
+    private void chainLoaded(Blockchain chain) {
+        blockModel = new BlockTableModel(chain);
+        blockTable.setModel(blockModel);
+        validateButton.setEnabled(validation == null);
         log("System Ready. Add a block to start.");
     }
 
     private void log(String message) {
-        SwingUtilities.invokeLater(() -> {
-            logArea.append(message + "\n");
+        logSink.log(message);
+    }
+
+    // Runs a chain operation after the ones queued before it, off the EDT
+    private void runInBackground(String description, Runnable action) {
+        actions.execute(() -> {
+            try {
+                action.run();
+            } catch (RuntimeException ex) {
+                log("Failed to " + description + ": " + ex.getMessage());
+            }
         });
     }
 
@@ -133,7 +275,7 @@ public class BlockchainGUI extends JFrame {
 
         try {
             double amount = Double.parseDouble(amountStr);
-            blockchain.addBlock(sender, recipient, amount);
+            runInBackground("add block", () -> blockchain.addBlock(sender, recipient, amount));
 
             senderField.setText("");
             recipientField.setText("");
@@ -144,14 +286,69 @@ public class BlockchainGUI extends JFrame {
     }
 
     private void onValidate(ActionEvent e) {
-        boolean valid = blockchain.isChainValid();
-        String result = valid ? "VALID" : "INVALID";
-        log("\nBlockchain Integrity Check: " + result);
-        if (!valid) {
-            JOptionPane.showMessageDialog(this, "Blockchain Validation Failed! Check logs.", "Security Alert",
-                    JOptionPane.ERROR_MESSAGE);
-        } else {
-            JOptionPane.showMessageDialog(this, "Blockchain is Valid.", "Success", JOptionPane.INFORMATION_MESSAGE);
+        if (validation != null || blockchain == null)
+            return;
+        validation = new ValidationWorker(blockchain.size());
+        validation.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName())) {
+                progressBar.setValue((Integer) event.getNewValue());
+            }
+        });
+        validateButton.setEnabled(false);
+        cancelButton.setEnabled(true);
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        validation.execute();
+    }
+
+    /**
+     * Validates the whole chain in the background. Doubles as the
+     * {@link ValidationProgress} of that validation, so cancelling the worker
+     * stops the validation threads too.
+     */
+    private class ValidationWorker extends SwingWorker<ValidationReport, Void> implements ValidationProgress {
+        private final int total;
+        private final AtomicInteger checked = new AtomicInteger();
+
+        ValidationWorker(int total) {
+            this.total = Math.max(1, total);
+        }
+
+        @Override
+        protected ValidationReport doInBackground() {
+            return blockchain.validateChain(this);
+        }
+
+        @Override
+        public void blocksChecked(int blocks) {
+            // Blocks added after the start are not counted in the total
+            setProgress((int) Math.min(100, checked.addAndGet(blocks) * 100L / total));
+        }
+
+        @Override
+        protected void done() {
+            validation = null;
+            validateButton.setEnabled(true);
+            cancelButton.setEnabled(false);
+            progressBar.setVisible(false);
+            try {
+                boolean valid = get().isValid();
+                String result = valid ? "VALID" : "INVALID";
+                log("\nBlockchain Integrity Check: " + result);
+                if (!valid) {
+                    JOptionPane.showMessageDialog(BlockchainGUI.this, "Blockchain Validation Failed! Check logs.",
+                            "Security Alert", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(BlockchainGUI.this, "Blockchain is Valid.", "Success",
+                            JOptionPane.INFORMATION_MESSAGE);
+                }
+            } catch (CancellationException ex) {
+                log("\nBlockchain Integrity Check cancelled.");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                log("Failed to validate blockchain: " + ex.getCause().getMessage());
+            }
         }
     }
 
@@ -168,7 +365,7 @@ public class BlockchainGUI extends JFrame {
             }
 
             double amount = Double.parseDouble(amountStr);
-            blockchain.tamperBlock(index, sender, recipient, amount);
+            runInBackground("tamper block", () -> blockchain.tamperBlock(index, sender, recipient, amount));
 
             tamperIndexField.setText("");
             tamperSenderField.setText("");
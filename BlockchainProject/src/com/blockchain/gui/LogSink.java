@@ -0,0 +1,109 @@
+package com.blockchain.gui;
+
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Collects log messages from any thread and shows them in a text area.
+ *
+ * Messages wait in a fixed-size ring buffer and are appended in one batch per
+ * timer tick, so a burst of messages costs one text update instead of one EDT
+ * task each. Only the most recent {@code maxLines} are kept: if more arrive
+ * between ticks the oldest are dropped (and counted), and the text area is
+ * trimmed from the top once it holds more lines than that.
+ */
+public class LogSink {
+
+    public static final int DEFAULT_MAX_LINES = 5000;
+    private static final int FLUSH_INTERVAL_MS = 100;
+
+    private final JTextArea area;
+    private final int maxLines;
+    private final Timer timer;
+
+    // Guarded by 'pending'
+    private final String[] pending;
+    private int pendingStart;
+    private int pendingCount;
+    private long dropped;
+
+    /**
+     * Must be created on the event dispatch thread.
+     */
+    public LogSink(JTextArea area, int maxLines) {
+        if (maxLines < 1) {
+            throw new IllegalArgumentException("maxLines must be at least 1");
+        }
+        this.area = area;
+        this.maxLines = maxLines;
+        this.pending = new String[maxLines];
+        this.timer = new Timer(FLUSH_INTERVAL_MS, e -> flush());
+        this.timer.start();
+    }
+
+    /**
+     * Queues a message for the next batch. May be called from any thread.
+     */
+    public void log(String message) {
+        synchronized (pending) {
+            if (pendingCount == pending.length) {
+                // Overwrite the oldest waiting message
+                pending[pendingStart] = message;
+                pendingStart = (pendingStart + 1) % pending.length;
+                dropped++;
+            } else {
+                pending[(pendingStart + pendingCount) % pending.length] = message;
+                pendingCount++;
+            }
+        }
+    }
+
+    /**
+     * Appends everything queued so far. Runs on the event dispatch thread.
+     */
+    void flush() {
+        StringBuilder text = new StringBuilder();
+        synchronized (pending) {
+            if (pendingCount == 0)
+                return;
+            if (dropped > 0) {
+                text.append("... ").append(dropped).append(" earlier messages not shown ...\n");
+                dropped = 0;
+            }
+            for (int i = 0; i < pendingCount; i++) {
+                int slot = (pendingStart + i) % pending.length;
+                text.append(pending[slot]).append('\n');
+                pending[slot] = null;
+            }
+            pendingStart = 0;
+            pendingCount = 0;
+        }
+        area.append(text.toString());
+        trim();
+    }
+
+    // Once there are more than maxLines lines, removes lines from the top
+    // until 7/8 of maxLines remain. Removing a few lines on every flush costs
+    // as much as removing many, so the slack keeps most flushes append-only.
+    // The text always ends with a newline, so the last line reported is empty.
+    private void trim() {
+        int lines = area.getLineCount() - 1;
+        if (lines <= maxLines)
+            return;
+        int excess = lines - (maxLines - maxLines / 8);
+        try {
+            area.replaceRange("", 0, area.getLineEndOffset(excess - 1));
+        } catch (BadLocationException e) {
+            area.setText("");
+        }
+    }
+
+    /**
+     * Stops the flush timer. Messages queued afterwards are not shown.
+     */
+    public void stop() {
+        timer.stop();
+        flush();
+    }
+}
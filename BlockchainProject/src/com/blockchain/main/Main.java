@@ -1,11 +1,153 @@
 package com.blockchain.main;
 
+import com.blockchain.core.BlockProducer;
+import com.blockchain.core.Blockchain;
+import com.blockchain.core.Mempool;
 import com.blockchain.gui.BlockchainGUI;
+import com.blockchain.metrics.MetricsHttpServer;
+import com.blockchain.metrics.MetricsMBean;
+import com.blockchain.metrics.MetricsRegistry;
+import com.blockchain.net.PeerReplicator;
+import com.blockchain.net.PeerServer;
+import com.blockchain.server.ApiServer;
+import com.blockchain.storage.SyncPolicy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import javax.swing.SwingUtilities;
 
 public class Main {
+
+    private static final int DEFAULT_API_PORT = 8080;
+    // Headless block production: up to this many transactions per block, and
+    // no transaction waits longer than this for its block
+    private static final int BLOCK_MAX_TRANSACTIONS = 1000;
+    private static final long BLOCK_MAX_WAIT_MILLIS = 100;
+    private static final int MEMPOOL_CAPACITY = 100_000;
+    // How often a replica asks its peer for new blocks
+    private static final long REPLICA_POLL_MILLIS = 200;
+
     public static void main(String[] args) {
-        // Launch the GUI
-        SwingUtilities.invokeLater(() -> BlockchainGUI.createAndShowGUI());
+        // Metrics are always available over JMX; --metrics-port also serves
+        // them over HTTP at /metrics
+        MetricsMBean.registerGlobal();
+        boolean headless = false;
+        int apiPort = DEFAULT_API_PORT;
+        int metricsPort = -1;
+        int peerPort = -1;
+        Path dataDir = null;
+        InetSocketAddress syncFrom = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--metrics-port") && i + 1 < args.length) {
+                metricsPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--headless")) {
+                headless = true;
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                apiPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--data-dir") && i + 1 < args.length) {
+                dataDir = Paths.get(args[++i]);
+            } else if (args[i].equals("--peer-port") && i + 1 < args.length) {
+                peerPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--sync-from") && i + 1 < args.length) {
+                syncFrom = parseAddress(args[++i]);
+            }
+        }
+
+        if (headless) {
+            runHeadless(apiPort, dataDir, peerPort, syncFrom);
+        } else {
+            // Launch the GUI
+            SwingUtilities.invokeLater(() -> BlockchainGUI.createAndShowGUI());
+        }
+        // Started after the API server, whose HTTP settings apply to both
+        if (metricsPort >= 0) {
+            startMetricsServer(metricsPort);
+        }
+    }
+
+    /**
+     * Serves the chain over the HTTP API until the JVM is shut down. With
+     * {@code syncFrom}, the node is a read-only replica that copies its blocks
+     * from that peer instead of producing them; with a peer port, other nodes
+     * can replicate from this one.
+     */
+    private static void runHeadless(int port, Path dataDir, int peerPort, InetSocketAddress syncFrom) {
+        Blockchain blockchain = new Blockchain(System.out::println, SyncPolicy.perBlock(), dataDir);
+        Mempool mempool = syncFrom == null ? new Mempool(MEMPOOL_CAPACITY) : null;
+        BlockProducer producer = mempool != null
+                ? new BlockProducer(blockchain, mempool, BLOCK_MAX_TRANSACTIONS, BLOCK_MAX_WAIT_MILLIS)
+                : null;
+        PeerReplicator replicator = syncFrom != null
+                ? new PeerReplicator(blockchain, syncFrom, System.out::println)
+                : null;
+        ApiServer server;
+        PeerServer peerServer = null;
+        try {
+            server = new ApiServer(blockchain, mempool, port, Runtime.getRuntime().availableProcessors() * 2);
+            if (peerPort >= 0) {
+                peerServer = new PeerServer(blockchain, peerPort);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to start server: " + e.getMessage());
+            blockchain.close();
+            return;
+        }
+        if (producer != null) {
+            producer.start();
+        }
+        if (replicator != null) {
+            replicator.start(REPLICA_POLL_MILLIS);
+            System.out.println("Replicating blocks from " + syncFrom);
+        }
+        server.start();
+        System.out.println("Serving the blockchain API at http://localhost:" + server.getPort() + "/");
+        if (peerServer != null) {
+            peerServer.start();
+            System.out.println("Serving blocks to other nodes on port " + peerServer.getPort());
+        }
+
+        // Stop taking requests, turn what is queued into blocks, then make
+        // them durable
+        PeerServer peers = peerServer;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            if (peers != null) {
+                peers.stop();
+            }
+            if (replicator != null) {
+                replicator.close();
+            }
+            if (producer != null) {
+                try {
+                    producer.stop();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (mempool != null) {
+                mempool.close();
+            }
+            blockchain.close();
+        }, "shutdown"));
+    }
+
+    // host:port, or just a port on this machine
+    private static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress("localhost", Integer.parseInt(address));
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    private static void startMetricsServer(int port) {
+        try {
+            MetricsHttpServer server = new MetricsHttpServer(MetricsRegistry.global(), port);
+            server.start();
+            System.out.println("Serving metrics at http://localhost:" + server.getPort() + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Failed to start metrics server: " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,34 @@
+package com.blockchain.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value that is read from its source whenever metrics are exported, such
+ * as the chain length.
+ */
+public class Gauge implements Metric {
+
+    private final String name;
+    private final String help;
+    private final DoubleSupplier source;
+
+    Gauge(String name, String help, DoubleSupplier source) {
+        this.name = name;
+        this.help = help;
+        this.source = source;
+    }
+
+    public double get() {
+        return source.getAsDouble();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getHelp() {
+        return help;
+    }
+}
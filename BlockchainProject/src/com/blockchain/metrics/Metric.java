@@ -0,0 +1,12 @@
+package com.blockchain.metrics;
+
+/**
+ * A named value tracked by a {@link MetricsRegistry}.
+ */
+public interface Metric {
+
+    String getName();
+
+    /** @return A one-line description, exported as the metric's help text. */
+    String getHelp();
+}
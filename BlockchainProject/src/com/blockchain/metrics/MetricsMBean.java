@@ -0,0 +1,129 @@
+package com.blockchain.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes a registry over JMX as read-only attributes: one per counter and
+ * gauge, and {@code .count}, {@code .mean}, {@code .p50}, {@code .p99} and
+ * {@code .max} for each histogram (in the histogram's exported unit).
+ * Metrics registered later show up without re-registering the bean.
+ */
+public class MetricsMBean implements DynamicMBean {
+
+    public static final String OBJECT_NAME = "com.blockchain:type=Metrics";
+
+    private static final String[] HISTOGRAM_FIELDS = { "count", "mean", "p50", "p99", "max" };
+
+    private final MetricsRegistry registry;
+
+    public MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers the global registry with the platform MBean server, once.
+     */
+    public static void registerGlobal() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MetricsMBean(MetricsRegistry.global()), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Already registered
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Metric metric = registry.getMetric(attribute);
+        if (metric instanceof Counter)
+            return ((Counter) metric).get();
+        if (metric instanceof Gauge)
+            return ((Gauge) metric).get();
+
+        int dot = attribute.lastIndexOf('.');
+        if (dot > 0 && registry.getMetric(attribute.substring(0, dot)) instanceof Histogram) {
+            Histogram h = (Histogram) registry.getMetric(attribute.substring(0, dot));
+            double scale = h.getExportScale();
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return h.getCount();
+                case "mean":
+                    return h.getMean() * scale;
+                case "p50":
+                    return h.getValueAtQuantile(0.5) * scale;
+                case "p99":
+                    return h.getValueAtQuantile(0.99) * scale;
+                case "max":
+                    return h.getMax() * scale;
+                default:
+                    break;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                // Skipped, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Metric metric : registry.getMetrics()) {
+            if (metric instanceof Counter) {
+                attributes.add(attribute(metric.getName(), "long", metric.getHelp()));
+            } else if (metric instanceof Gauge) {
+                attributes.add(attribute(metric.getName(), "double", metric.getHelp()));
+            } else if (metric instanceof Histogram) {
+                for (String field : HISTOGRAM_FIELDS) {
+                    attributes.add(attribute(metric.getName() + "." + field, field.equals("count") ? "long" : "double",
+                            metric.getHelp() + " (" + field + ")"));
+                }
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Blockchain runtime metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, String type, String description) {
+        return new MBeanAttributeInfo(name, type, description, true, false, false);
+    }
+}
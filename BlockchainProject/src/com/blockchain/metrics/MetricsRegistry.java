@@ -0,0 +1,90 @@
+package com.blockchain.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Holds metrics by name. Looking up a counter or histogram that already
+ * exists returns the same instance, so classes can fetch their metrics once
+ * into static fields and record on hot paths without any lookup.
+ * 
+ * Names follow the Prometheus conventions: lowercase with underscores,
+ * counters ending in {@code _total} and timers in {@code _seconds}.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * @return The registry the application's metrics are recorded in.
+     */
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    public Counter counter(String name, String help) {
+        return get(name, Counter.class, () -> new Counter(name, help));
+    }
+
+    /**
+     * Returns a histogram of durations recorded in nanoseconds and exported in
+     * seconds.
+     */
+    public Histogram timer(String name, String help) {
+        return get(name, Histogram.class, () -> new Histogram(name, help, 1e-9));
+    }
+
+    /**
+     * Returns a histogram of plain values, exported as recorded.
+     */
+    public Histogram histogram(String name, String help) {
+        return get(name, Histogram.class, () -> new Histogram(name, help, 1.0));
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name (e.g. one
+     * registered by a previous instance of the measured object).
+     */
+    public Gauge gauge(String name, String help, DoubleSupplier source) {
+        Gauge gauge = new Gauge(name, help, source);
+        Metric old = metrics.put(name, gauge);
+        if (old != null && !(old instanceof Gauge)) {
+            metrics.put(name, old);
+            throw new IllegalArgumentException("Metric " + name + " is not a gauge");
+        }
+        return gauge;
+    }
+
+    /**
+     * Removes a metric, if it is the given instance.
+     */
+    public void remove(Metric metric) {
+        metrics.remove(metric.getName(), metric);
+    }
+
+    /**
+     * @return The registered metrics, sorted by name.
+     */
+    public List<Metric> getMetrics() {
+        List<Metric> list = new ArrayList<>(metrics.values());
+        list.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return list;
+    }
+
+    public Metric getMetric(String name) {
+        return metrics.get(name);
+    }
+
+    private <T extends Metric> T get(String name, Class<T> type, java.util.function.Supplier<T> factory) {
+        Metric metric = metrics.computeIfAbsent(name, n -> factory.get());
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+}
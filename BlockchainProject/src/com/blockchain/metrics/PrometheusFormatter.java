@@ -0,0 +1,47 @@
+package com.blockchain.metrics;
+
+/**
+ * Writes metrics in the Prometheus text exposition format. Histograms are
+ * exported as summaries with a few quantiles.
+ */
+public class PrometheusFormatter {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    public static String format(MetricsRegistry registry) {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Metric metric : registry.getMetrics()) {
+            String name = metric.getName();
+            sb.append("# HELP ").append(name).append(' ').append(escapeHelp(metric.getHelp())).append('\n');
+            if (metric instanceof Counter) {
+                sb.append("# TYPE ").append(name).append(" counter\n");
+                sb.append(name).append(' ').append(((Counter) metric).get()).append('\n');
+            } else if (metric instanceof Gauge) {
+                sb.append("# TYPE ").append(name).append(" gauge\n");
+                sb.append(name).append(' ').append(number(((Gauge) metric).get())).append('\n');
+            } else if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                double scale = h.getExportScale();
+                sb.append("# TYPE ").append(name).append(" summary\n");
+                for (double q : QUANTILES) {
+                    sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                            .append(number(h.getValueAtQuantile(q) * scale)).append('\n');
+                }
+                sb.append(name).append("_sum ").append(number(h.getSum() * scale)).append('\n');
+                sb.append(name).append("_count ").append(h.getCount()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String number(double v) {
+        if (v == Math.rint(v) && !Double.isInfinite(v) && Math.abs(v) < 1e15) {
+            return Long.toString((long) v);
+        }
+        return Double.toString(v);
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+}
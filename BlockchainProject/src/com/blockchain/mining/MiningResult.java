@@ -0,0 +1,48 @@
+package com.blockchain.mining;
+
+/**
+ * The outcome of a nonce search.
+ */
+public class MiningResult {
+
+    private final boolean found;
+    private final long nonce;
+    private final long attempts;
+    private final long elapsedNanos;
+
+    public MiningResult(boolean found, long nonce, long attempts, long elapsedNanos) {
+        this.found = found;
+        this.nonce = nonce;
+        this.attempts = attempts;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /** @return Whether a nonce was found; false if the search was cancelled. */
+    public boolean isFound() {
+        return found;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** @return The number of hashes computed by all workers. */
+    public long getAttempts() {
+        return attempts;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /** @return Hashes per second over the whole search. */
+    public double getHashRate() {
+        return elapsedNanos > 0 ? attempts * 1e9 / elapsedNanos : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        return (found ? "Nonce " + nonce : "Cancelled") + " after " + attempts + " hashes in "
+                + (elapsedNanos / 1_000_000) + " ms (" + String.format("%.0f", getHashRate()) + " H/s)";
+    }
+}
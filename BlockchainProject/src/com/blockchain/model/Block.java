@@ -1,59 +1,176 @@
 package com.blockchain.model;
 
-import com.blockchain.util.HashUtil;
 import java.util.Date;
 
 /**
  * Represents a block in the blockchain.
  * This class is immutable.
+ *
+ * The version decides how hashes are computed:
+ * <ul>
+ * <li>{@link #VERSION_LEGACY}: the header hash and Merkle nodes are computed
+ * over hex strings, as in chains saved before binary hashes were used.</li>
+ * <li>{@link #VERSION_BINARY}: the header hash is computed over a fixed binary
+ * layout and Merkle nodes over raw 32-byte digests.</li>
+ * <li>{@link #VERSION_POW}: like {@link #VERSION_BINARY}, with a difficulty
+ * and a nonce appended to the header. The hash must start with at least
+ * {@code difficulty} zero bits.</li>
+ * </ul>
+ * All kinds of block can appear in one chain, so older chains keep validating.
+ * The binary layouts are described in {@link BlockHeader}.
  */
 public class Block {
+    public static final int VERSION_LEGACY = 1;
+    public static final int VERSION_BINARY = 2;
+    public static final int VERSION_POW = 3;
+    /** The version used for newly created blocks. */
+    public static final int CURRENT_VERSION = VERSION_BINARY;
+
+    private final int version;
     private final int index;
     private final long timestamp;
     private final java.util.List<Transaction> transactions;
-    private final String merkleRoot;
-    private final String previousHash;
-    private final String hash;
+    private final Hash256 merkleRoot;
+    private final Hash256 previousHash;
+    private final Hash256 hash;
+    private final int difficulty;
+    private final long nonce;
 
     /**
      * Constructor for a new block.
-     * 
+     *
      * @param index        The position of the block in the chain.
      * @param transactions The list of transactions to be stored.
      * @param previousHash The hash of the previous block.
      */
-    public Block(int index, java.util.List<Transaction> transactions, String previousHash) {
+    public Block(int index, java.util.List<Transaction> transactions, Hash256 previousHash) {
+        this(CURRENT_VERSION, index, transactions, previousHash);
+    }
+
+    /**
+     * Constructor for a new block in a specific format version.
+     */
+    public Block(int version, int index, java.util.List<Transaction> transactions, Hash256 previousHash) {
+        this(version, index, transactions, previousHash, 0);
+    }
+
+    /**
+     * Constructor for a proof-of-work block that still has to be mined: its
+     * nonce is 0. Use {@link #getHeaderPrefix()} to search for a nonce and
+     * {@link #withNonce(long)} to create the mined block.
+     */
+    public Block(int index, java.util.List<Transaction> transactions, Hash256 previousHash, int difficulty) {
+        this(VERSION_POW, index, transactions, previousHash, difficulty);
+    }
+
+    private Block(int version, int index, java.util.List<Transaction> transactions, Hash256 previousHash,
+            int difficulty) {
+        checkVersion(version);
+        checkDifficulty(version, difficulty);
+        this.version = version;
         this.index = index;
         this.transactions = transactions;
         this.previousHash = previousHash;
+        this.difficulty = difficulty;
+        this.nonce = 0;
         this.timestamp = new Date().getTime();
-        this.merkleRoot = calculateMerkleRoot();
+        com.blockchain.ds.MerkleTree tree = new com.blockchain.ds.MerkleTree(transactions, version);
+        this.merkleRoot = tree.getRoot();
         this.hash = calculateHash();
+        // The block is usually validated right after it is created
+        com.blockchain.ds.MerkleTreeCache.shared().put(this, tree);
     }
 
     // Additional constructor mainly for 'tampering' purposes where we force a
     // specific hash or data state
-    public Block(int index, java.util.List<Transaction> transactions, String previousHash, long timestamp, String hash,
-            String merkleRoot) {
+    public Block(int index, java.util.List<Transaction> transactions, Hash256 previousHash, long timestamp,
+            Hash256 hash, Hash256 merkleRoot, int version) {
+        this(index, transactions, previousHash, timestamp, hash, merkleRoot, version, 0, 0);
+    }
+
+    public Block(int index, java.util.List<Transaction> transactions, Hash256 previousHash, long timestamp,
+            Hash256 hash, Hash256 merkleRoot, int version, int difficulty, long nonce) {
+        checkVersion(version);
+        checkDifficulty(version, difficulty);
+        this.version = version;
         this.index = index;
         this.transactions = transactions;
         this.previousHash = previousHash;
         this.timestamp = timestamp;
         this.hash = hash;
         this.merkleRoot = merkleRoot;
+        this.difficulty = difficulty;
+        this.nonce = nonce;
+    }
+
+    private Block(Block template, long nonce) {
+        this.version = template.version;
+        this.index = template.index;
+        this.transactions = template.transactions;
+        this.previousHash = template.previousHash;
+        this.timestamp = template.timestamp;
+        this.merkleRoot = template.merkleRoot;
+        this.difficulty = template.difficulty;
+        this.nonce = nonce;
+        this.hash = calculateHash();
+    }
+
+    /**
+     * Returns this block with a different nonce and the hash recomputed, e.g.
+     * once a miner has found a nonce that meets the difficulty.
+     */
+    public Block withNonce(long nonce) {
+        Block mined = new Block(this, nonce);
+        com.blockchain.ds.MerkleTree tree = com.blockchain.ds.MerkleTreeCache.shared().getIfPresent(this);
+        if (tree != null) {
+            com.blockchain.ds.MerkleTreeCache.shared().put(mined, tree);
+        }
+        return mined;
+    }
+
+    public Hash256 calculateHash() {
+        return getHeader().calculateHash();
+    }
+
+    /**
+     * @return The fields the block hash is computed from.
+     */
+    public BlockHeader getHeader() {
+        return new BlockHeader(version, index, timestamp, previousHash, merkleRoot, difficulty, nonce);
     }
 
-    public String calculateHash() {
-        return HashUtil.applySha256(
-                index +
-                        Long.toString(timestamp) +
-                        previousHash +
-                        merkleRoot);
+    /**
+     * Returns the proof-of-work header without the nonce. The hash of the block
+     * is the SHA-256 of these bytes followed by the nonce (big-endian).
+     */
+    public byte[] getHeaderPrefix() {
+        return getHeader().toPrefixBytes();
+    }
+
+    /**
+     * @return Whether the hash starts with at least {@code difficulty} zero bits.
+     */
+    public boolean meetsDifficulty() {
+        return hash.getLeadingZeroBits() >= difficulty;
     }
 
-    private String calculateMerkleRoot() {
-        com.blockchain.ds.MerkleTree tree = new com.blockchain.ds.MerkleTree(transactions);
-        return tree.getRoot();
+    private static void checkVersion(int version) {
+        if (version != VERSION_LEGACY && version != VERSION_BINARY && version != VERSION_POW) {
+            throw new IllegalArgumentException("Unknown block version: " + version);
+        }
+    }
+
+    private static void checkDifficulty(int version, int difficulty) {
+        if (difficulty < 0 || difficulty > Hash256.BYTES * 8) {
+            throw new IllegalArgumentException("Difficulty must be between 0 and 256: " + difficulty);
+        }
+        if (difficulty != 0 && version != VERSION_POW) {
+            throw new IllegalArgumentException("Block version " + version + " has no difficulty");
+        }
+    }
+
+    public int getVersion() {
+        return version;
     }
 
     public int getIndex() {
@@ -68,21 +185,34 @@ public class Block {
         return transactions;
     }
 
-    public String getPreviousHash() {
+    public Hash256 getPreviousHash() {
         return previousHash;
     }
 
-    public String getHash() {
+    public Hash256 getHash() {
         return hash;
     }
 
-    public String getMerkleRoot() {
+    public Hash256 getMerkleRoot() {
         return merkleRoot;
     }
 
+    /**
+     * @return The number of leading zero bits the hash must have; 0 if the
+     *         block was not mined.
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
     @Override
     public String toString() {
         return "Block #" + index + " [Hash: " + hash + ", Prev: " + previousHash + ", MerkleRoot: " + merkleRoot
+                + (version == VERSION_POW ? ", Difficulty: " + difficulty + ", Nonce: " + nonce : "")
                 + ", TxCount: " + (transactions != null ? transactions.size() : 0) + "]";
     }
 }
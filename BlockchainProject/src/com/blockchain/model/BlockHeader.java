@@ -0,0 +1,164 @@
+package com.blockchain.model;
+
+import com.blockchain.util.HashUtil;
+
+/**
+ * The fields of a block that its hash is computed from, and their fixed
+ * binary layout (big-endian):
+ * 
+ * <pre>
+ * offset  size  field
+ *      0     4  version
+ *      4     4  index
+ *      8     8  timestamp
+ *     16    32  previous hash
+ *     48    32  Merkle root
+ *     80     4  difficulty   (proof-of-work blocks only)
+ *     84     8  nonce        (proof-of-work blocks only)
+ * </pre>
+ * 
+ * The nonce is last, so a miner can hash the constant prefix once and only
+ * vary the final eight bytes. Legacy blocks have no binary layout; their
+ * hash is computed over the concatenated decimal and hex strings instead.
+ */
+public final class BlockHeader {
+
+    /** Size of the layout of {@link Block#VERSION_BINARY} blocks. */
+    public static final int BINARY_BYTES = 4 + 4 + 8 + Hash256.BYTES + Hash256.BYTES;
+    /** Size of the proof-of-work layout without the nonce. */
+    public static final int POW_PREFIX_BYTES = BINARY_BYTES + 4;
+    /** Size of the proof-of-work layout, which ends with the nonce. */
+    public static final int POW_BYTES = POW_PREFIX_BYTES + 8;
+
+    private final int version;
+    private final int index;
+    private final long timestamp;
+    private final Hash256 previousHash;
+    private final Hash256 merkleRoot;
+    private final int difficulty;
+    private final long nonce;
+
+    public BlockHeader(int version, int index, long timestamp, Hash256 previousHash, Hash256 merkleRoot,
+            int difficulty, long nonce) {
+        this.version = version;
+        this.index = index;
+        this.timestamp = timestamp;
+        this.previousHash = previousHash;
+        this.merkleRoot = merkleRoot;
+        this.difficulty = difficulty;
+        this.nonce = nonce;
+    }
+
+    /**
+     * @return The size of the binary layout for a block version.
+     */
+    public static int size(int version) {
+        switch (version) {
+            case Block.VERSION_BINARY:
+                return BINARY_BYTES;
+            case Block.VERSION_POW:
+                return POW_BYTES;
+            default:
+                throw new IllegalArgumentException("Block version " + version + " has no binary header");
+        }
+    }
+
+    /**
+     * Writes the binary layout into {@code out} at {@code offset}.
+     * 
+     * @return The number of bytes written.
+     */
+    public int writeTo(byte[] out, int offset) {
+        int size = size(version);
+        writeInt(out, offset, version);
+        writeInt(out, offset + 4, index);
+        writeLong(out, offset + 8, timestamp);
+        previousHash.writeTo(out, offset + 16);
+        merkleRoot.writeTo(out, offset + 48);
+        if (version == Block.VERSION_POW) {
+            writeInt(out, offset + BINARY_BYTES, difficulty);
+            writeLong(out, offset + POW_PREFIX_BYTES, nonce);
+        }
+        return size;
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[size(version)];
+        writeTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Returns the proof-of-work layout without the nonce. The block hash is
+     * the SHA-256 of these bytes followed by the nonce.
+     */
+    public byte[] toPrefixBytes() {
+        if (version != Block.VERSION_POW) {
+            throw new IllegalStateException("Block version " + version + " has no nonce");
+        }
+        byte[] bytes = new byte[POW_BYTES];
+        writeTo(bytes, 0);
+        return java.util.Arrays.copyOf(bytes, POW_PREFIX_BYTES);
+    }
+
+    public Hash256 calculateHash() {
+        if (version == Block.VERSION_LEGACY) {
+            return Hash256.fromHex(HashUtil.applySha256(
+                    index +
+                            Long.toString(timestamp) +
+                            legacyString(previousHash, "0") +
+                            legacyString(merkleRoot, "")));
+        }
+        byte[] header = new byte[POW_BYTES];
+        int length = writeTo(header, 0);
+        byte[] hash = new byte[Hash256.BYTES];
+        HashUtil.sha256(header, 0, length, hash, 0);
+        return Hash256.fromBytes(hash);
+    }
+
+    // The string form used by the legacy format, where an all-zero hash was
+    // written as "0" (genesis previous hash) or "" (no transactions)
+    private static String legacyString(Hash256 h, String zeroForm) {
+        return h.isZero() ? zeroForm : h.toHex();
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Hash256 getPreviousHash() {
+        return previousHash;
+    }
+
+    public Hash256 getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void writeLong(byte[] b, int off, long v) {
+        writeInt(b, off, (int) (v >>> 32));
+        writeInt(b, off + 4, (int) v);
+    }
+}
@@ -0,0 +1,168 @@
+package com.blockchain.model;
+
+import com.blockchain.util.HashUtil;
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable 32-byte hash value (e.g. a SHA-256 digest).
+ * The bytes are held in four longs, big-endian, which makes equality checks
+ * and hashing cheap and uses far less memory than a 64-character hex string.
+ */
+public final class Hash256 implements Comparable<Hash256> {
+
+    public static final int BYTES = 32;
+
+    /** The all-zero hash, used as the previous hash of the genesis block. */
+    public static final Hash256 ZERO = new Hash256(0, 0, 0, 0);
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+
+    private Hash256(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    public static Hash256 fromBytes(byte[] bytes) {
+        if (bytes.length != BYTES) {
+            throw new IllegalArgumentException("Expected " + BYTES + " bytes, got " + bytes.length);
+        }
+        return fromBytes(bytes, 0);
+    }
+
+    public static Hash256 fromBytes(byte[] bytes, int offset) {
+        return new Hash256(readLong(bytes, offset), readLong(bytes, offset + 8), readLong(bytes, offset + 16),
+                readLong(bytes, offset + 24));
+    }
+
+    /**
+     * Reads 32 bytes from the buffer's current position.
+     */
+    public static Hash256 read(ByteBuffer buffer) {
+        return new Hash256(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Parses a 64-character hexadecimal string.
+     */
+    public static Hash256 fromHex(String hex) {
+        if (hex == null || hex.length() != BYTES * 2) {
+            throw new IllegalArgumentException("Not a 64-character hex hash: " + hex);
+        }
+        return new Hash256(parseHexLong(hex, 0), parseHexLong(hex, 16), parseHexLong(hex, 32),
+                parseHexLong(hex, 48));
+    }
+
+    /**
+     * Parses a hash as written by the original string-based format, where the
+     * genesis previous hash is "0" and the Merkle root of a block without
+     * transactions is "". Both map to {@link #ZERO}.
+     */
+    public static Hash256 fromLegacyString(String s) {
+        if (s == null || s.isEmpty() || s.equals("0")) {
+            return ZERO;
+        }
+        return fromHex(s);
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[BYTES];
+        writeTo(bytes, 0);
+        return bytes;
+    }
+
+    public void writeTo(byte[] bytes, int offset) {
+        writeLong(bytes, offset, w0);
+        writeLong(bytes, offset + 8, w1);
+        writeLong(bytes, offset + 16, w2);
+        writeLong(bytes, offset + 24, w3);
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putLong(w0).putLong(w1).putLong(w2).putLong(w3);
+    }
+
+    public boolean isZero() {
+        return (w0 | w1 | w2 | w3) == 0;
+    }
+
+    /**
+     * @return The number of leading zero bits, from 0 to 256.
+     */
+    public int getLeadingZeroBits() {
+        if (w0 != 0)
+            return Long.numberOfLeadingZeros(w0);
+        if (w1 != 0)
+            return 64 + Long.numberOfLeadingZeros(w1);
+        if (w2 != 0)
+            return 128 + Long.numberOfLeadingZeros(w2);
+        return 192 + Long.numberOfLeadingZeros(w3);
+    }
+
+    public String toHex() {
+        return HashUtil.toHex(toBytes());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Hash256))
+            return false;
+        Hash256 other = (Hash256) o;
+        return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        // The words of a digest are already uniformly distributed
+        return (int) (w0 ^ (w0 >>> 32));
+    }
+
+    @Override
+    public int compareTo(Hash256 other) {
+        int c = Long.compareUnsigned(w0, other.w0);
+        if (c == 0)
+            c = Long.compareUnsigned(w1, other.w1);
+        if (c == 0)
+            c = Long.compareUnsigned(w2, other.w2);
+        if (c == 0)
+            c = Long.compareUnsigned(w3, other.w3);
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    private static long readLong(byte[] b, int off) {
+        return ((long) (b[off] & 0xFF) << 56) | ((long) (b[off + 1] & 0xFF) << 48)
+                | ((long) (b[off + 2] & 0xFF) << 40) | ((long) (b[off + 3] & 0xFF) << 32)
+                | ((long) (b[off + 4] & 0xFF) << 24) | ((long) (b[off + 5] & 0xFF) << 16)
+                | ((long) (b[off + 6] & 0xFF) << 8) | (b[off + 7] & 0xFF);
+    }
+
+    private static void writeLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long parseHexLong(String hex, int start) {
+        long v = 0;
+        for (int i = start; i < start + 16; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Not a 64-character hex hash: " + hex);
+            }
+            v = (v << 4) | digit;
+        }
+        return v;
+    }
+}
@@ -1,6 +1,7 @@
 package com.blockchain.model;
 
 import com.blockchain.util.HashUtil;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 public class Transaction {
@@ -45,7 +46,7 @@ public class Transaction {
         return sender + ":" + recipient + ":" + amount + ":" + timestamp;
     }
 
-    public String calculateHash() {
-        return HashUtil.applySha256(toString());
+    public Hash256 calculateHash() {
+        return Hash256.fromBytes(HashUtil.sha256(toString().getBytes(StandardCharsets.UTF_8)));
     }
 }
@@ -0,0 +1,74 @@
+package com.blockchain.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The messages nodes exchange to replicate blocks. Every message is a frame:
+ *
+ * <pre>
+ * int     length of the rest of the frame
+ * byte    type
+ * ...     payload
+ *
+ * STATUS_REQUEST  (empty)
+ * STATUS          int height, 32 bytes hash of the last block (zero if empty)
+ * GET_BLOCKS      int first position, int count
+ * BLOCKS          int first position, int count, byte 1 if more BLOCKS
+ *                 frames follow for the same request, then per block:
+ *                 int length, the block in the {@link com.blockchain.storage.BlockCodec} format
+ * ERROR           UTF-8 message
+ * </pre>
+ *
+ * A GET_BLOCKS request is answered with as many BLOCKS frames as it takes to
+ * keep each one near {@link #TARGET_FRAME_BYTES}; blocks past the end of the
+ * chain are left out. Requests are answered in the order they were sent, so a
+ * node can send several before reading the first answer.
+ */
+public final class PeerProtocol {
+
+    public static final byte STATUS_REQUEST = 1;
+    public static final byte STATUS = 2;
+    public static final byte GET_BLOCKS = 3;
+    public static final byte BLOCKS = 4;
+    public static final byte ERROR = 5;
+
+    /** Frames larger than this are refused. */
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    /** BLOCKS frames are split once they reach about this size. */
+    public static final int TARGET_FRAME_BYTES = 1024 * 1024;
+    /** The most blocks a single GET_BLOCKS request may ask for. */
+    public static final int MAX_REQUEST_BLOCKS = 16 * 1024;
+
+    // Frame length and type
+    static final int HEADER_BYTES = 5;
+
+    private PeerProtocol() {
+    }
+
+    /**
+     * Allocates a frame and writes its header. The caller writes exactly
+     * {@code payloadLength} bytes and flips the buffer.
+     */
+    static ByteBuffer newFrame(byte type, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + payloadLength);
+        frame.putInt(1 + payloadLength);
+        frame.put(type);
+        return frame;
+    }
+
+    /**
+     * Reads the header of the next frame.
+     *
+     * @return The payload length; the type is left in {@code type[0]}.
+     */
+    static int readHeader(DataInputStream in, byte[] type) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        type[0] = in.readByte();
+        return length - 1;
+    }
+}
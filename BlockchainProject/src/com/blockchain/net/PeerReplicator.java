@@ -0,0 +1,415 @@
+package com.blockchain.net;
+
+import com.blockchain.core.BlockStatus;
+import com.blockchain.core.Blockchain;
+import com.blockchain.core.ChainSnapshot;
+import com.blockchain.metrics.Counter;
+import com.blockchain.metrics.Histogram;
+import com.blockchain.metrics.MetricsRegistry;
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.storage.BlockCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a chain in step with the chain of another node (see
+ * {@link PeerServer}).
+ *
+ * A sync asks the peer for its height and then requests the missing blocks in
+ * batches, keeping up to {@code window} requests in flight so the peer never
+ * waits for the next request. Received batches are decoded on the connection
+ * thread and handed to a second thread that validates them (in parallel, see
+ * {@link Blockchain#appendBlocks}) and appends them in order, so network,
+ * decoding and validation overlap. At most {@code window} decoded batches
+ * wait to be appended; beyond that the connection thread stops reading.
+ *
+ * Every sync also fetches the peer's copy of this chain's last block. If it
+ * differs, the chains have forked: the last {@link Blockchain#MAX_REORG_DEPTH}
+ * blocks of the peer are then passed one by one to
+ * {@link Blockchain#acceptBlock}, which switches to the peer's branch if it
+ * has more work. Pipelined appends resume on the next sync.
+ */
+public class PeerReplicator implements AutoCloseable {
+
+    public static final int DEFAULT_BATCH_BLOCKS = 1024;
+    public static final int DEFAULT_WINDOW = 4;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private static final MetricsRegistry METRICS = MetricsRegistry.global();
+    private static final Counter BLOCKS_RECEIVED = METRICS.counter("peer_blocks_received_total",
+            "Blocks received from other nodes and appended");
+    private static final Histogram SYNC_TIME = METRICS.timer("peer_sync_seconds",
+            "Time to catch up with a peer, for syncs that received blocks");
+
+    private final Blockchain blockchain;
+    private final InetSocketAddress peer;
+    private final int batchBlocks;
+    private final int window;
+    private final Consumer<String> logger;
+    private final ExecutorService applier;
+
+    private SocketChannel channel;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private Thread thread;
+    private volatile boolean running;
+
+    public PeerReplicator(Blockchain blockchain, InetSocketAddress peer, Consumer<String> logger) {
+        this(blockchain, peer, DEFAULT_BATCH_BLOCKS, DEFAULT_WINDOW, logger);
+    }
+
+    /**
+     * @param batchBlocks The number of blocks asked for per request.
+     * @param window      The number of requests kept in flight.
+     */
+    public PeerReplicator(Blockchain blockchain, InetSocketAddress peer, int batchBlocks, int window,
+            Consumer<String> logger) {
+        if (batchBlocks < 1 || batchBlocks > PeerProtocol.MAX_REQUEST_BLOCKS) {
+            throw new IllegalArgumentException("batchBlocks must be between 1 and " + PeerProtocol.MAX_REQUEST_BLOCKS);
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        this.blockchain = blockchain;
+        this.peer = peer;
+        this.batchBlocks = batchBlocks;
+        this.window = window;
+        this.logger = logger;
+        this.applier = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "peer-applier");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Keeps syncing on a background thread, checking the peer for new blocks
+     * every {@code pollMillis}. Connection failures are logged and retried.
+     */
+    public synchronized void start(long pollMillis) {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(() -> follow(pollMillis), "peer-replicator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void follow(long pollMillis) {
+        while (running) {
+            try {
+                syncOnce();
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    log("Sync with " + peer + " failed: " + e.getMessage());
+                }
+            }
+            try {
+                Thread.sleep(channel == null ? Math.max(pollMillis, 1000) : pollMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends every block the peer has that this chain does not.
+     *
+     * @return The number of blocks appended.
+     * @throws IOException              If the peer cannot be reached or sends
+     *                                  something malformed.
+     * @throws IllegalArgumentException If the peer's blocks do not extend this
+     *                                  chain or are invalid.
+     */
+    public int syncOnce() throws IOException {
+        try {
+            return sync();
+        } catch (IOException | RuntimeException e) {
+            // Answers to the requests still in flight would be misread
+            disconnect();
+            throw e;
+        }
+    }
+
+    private int sync() throws IOException {
+        long start = System.nanoTime();
+        connect();
+        out.writeInt(1);
+        out.writeByte(PeerProtocol.STATUS_REQUEST);
+        out.flush();
+        byte[] type = new byte[1];
+        int length = PeerProtocol.readHeader(in, type);
+        expect(type[0], PeerProtocol.STATUS, length);
+        if (length != 4 + Hash256.BYTES) {
+            throw new IOException("Invalid STATUS length: " + length);
+        }
+        int peerHeight = in.readInt();
+        byte[] tip = new byte[Hash256.BYTES];
+        in.readFully(tip);
+
+        ChainSnapshot chain = blockchain.getSnapshot();
+        int height = chain.size();
+        if (peerHeight <= height) {
+            // Nothing to fetch; a peer that is behind or on another branch
+            // is noticed once it has blocks to offer
+            return 0;
+        }
+
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Semaphore unapplied = new Semaphore(window);
+        Future<?> lastApplied = null;
+        AtomicReference<CompletableFuture<Block>> durable = new AtomicReference<>();
+
+        // The first request starts at this chain's last block, to check that
+        // both chains agree on it
+        int next = Math.max(0, height - 1);
+        int received = next;
+        boolean checkFirst = height > 0;
+        int inFlight = 0;
+        List<Block> batch = new ArrayList<>();
+        while (received < peerHeight) {
+            while (inFlight < window && next < peerHeight) {
+                int count = Math.min(batchBlocks, peerHeight - next);
+                requestBlocks(next, count);
+                next += count;
+                inFlight++;
+            }
+            out.flush();
+
+            int before = batch.size();
+            boolean more = readBlocks(received, batch);
+            received += batch.size() - before;
+            if (checkFirst && !batch.isEmpty()) {
+                checkFirst = false;
+                if (!batch.get(0).getHash().equals(chain.getLatestHash())) {
+                    // Answers to the other requests are of no use now
+                    disconnect();
+                    return switchBranch(height, peerHeight);
+                }
+                batch.remove(0);
+            }
+            if (more)
+                continue;
+            inFlight--;
+            if (received < peerHeight && next >= peerHeight && inFlight == 0) {
+                // The peer shrank or lost blocks while answering
+                throw new IOException("Peer sent " + (received - height) + " of " + (peerHeight - height)
+                        + " blocks");
+            }
+            if (batch.isEmpty())
+                continue;
+
+            List<Block> blocks = batch;
+            batch = new ArrayList<>();
+            acquire(unapplied);
+            if (failure.get() != null)
+                throw failure.get();
+            lastApplied = applier.submit(() -> {
+                try {
+                    if (failure.get() == null) {
+                        durable.set(blockchain.appendBlocks(blocks));
+                        BLOCKS_RECEIVED.add(blocks.size());
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    unapplied.release();
+                }
+            });
+        }
+
+        if (lastApplied != null) {
+            try {
+                lastApplied.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while appending blocks");
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        if (failure.get() != null)
+            throw failure.get();
+        CompletableFuture<Block> lastDurable = durable.get();
+        if (lastDurable != null) {
+            lastDurable.join();
+        }
+        int added = received - height;
+        SYNC_TIME.recordNanosSince(start);
+        log("Synced " + added + " blocks from " + peer + " in " + (System.nanoTime() - start) / 1_000_000
+                + " ms, height " + blockchain.size());
+        if (!Hash256.fromBytes(tip).equals(blockchain.getLatestHash())) {
+            log("Warning: last block differs from the peer's last block at height " + peerHeight);
+        }
+        return added;
+    }
+
+    // Feeds the peer's most recent blocks through the block tree, which
+    // switches to the peer's branch if it forks off recently enough and has
+    // more work
+    private int switchBranch(int height, int peerHeight) throws IOException {
+        int from = Math.max(0, height - Blockchain.MAX_REORG_DEPTH);
+        int count = Math.min(peerHeight - from, PeerProtocol.MAX_REQUEST_BLOCKS);
+        log("Chain differs from " + peer + " at height " + height + "; fetching its blocks from " + from);
+        connect();
+        requestBlocks(from, count);
+        out.flush();
+        List<Block> blocks = new ArrayList<>();
+        while (readBlocks(from + blocks.size(), blocks)) {
+        }
+
+        int placed = 0;
+        boolean switched = false;
+        for (Block block : blocks) {
+            BlockStatus status = blockchain.acceptBlock(block);
+            if (status == BlockStatus.REORGANIZED) {
+                switched = true;
+            }
+            if (status != BlockStatus.DUPLICATE) {
+                placed++;
+            }
+        }
+        if (!switched) {
+            throw new IllegalArgumentException("Kept this chain: the peer's branch forks off more than "
+                    + Blockchain.MAX_REORG_DEPTH + " blocks back or has no more work");
+        }
+        BLOCKS_RECEIVED.add(placed);
+        log("Switched to the branch of " + peer + ", height " + blockchain.size());
+        return placed;
+    }
+
+    private void requestBlocks(int from, int count) throws IOException {
+        out.writeInt(9);
+        out.writeByte(PeerProtocol.GET_BLOCKS);
+        out.writeInt(from);
+        out.writeInt(count);
+    }
+
+    /**
+     * Reads one BLOCKS frame, which must start at {@code expectedFirst}, and
+     * adds its blocks to {@code into}.
+     * 
+     * @return True if more frames follow for the same request.
+     */
+    private boolean readBlocks(int expectedFirst, List<Block> into) throws IOException {
+        byte[] type = new byte[1];
+        int length = PeerProtocol.readHeader(in, type);
+        expect(type[0], PeerProtocol.BLOCKS, length);
+        int first = in.readInt();
+        int count = in.readInt();
+        boolean more = in.readByte() != 0;
+        if (first != expectedFirst || count < 0 || count > length) {
+            throw new IOException("Expected blocks from " + expectedFirst + ", got " + first + " + " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            int size = in.readInt();
+            if (size < 1 || size > length) {
+                throw new IOException("Invalid block length: " + size);
+            }
+            byte[] data = new byte[size];
+            in.readFully(data);
+            into.add(BlockCodec.decode(data, 0, size));
+        }
+        return more;
+    }
+
+    private void connect() throws IOException {
+        if (channel != null)
+            return;
+        SocketChannel socket = SocketChannel.open();
+        try {
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            socket.socket().connect(peer, CONNECT_TIMEOUT_MS);
+            // The socket's own streams honour the read timeout; channel
+            // streams would wait forever on a silent peer
+            socket.socket().setSoTimeout(READ_TIMEOUT_MS);
+            in = new DataInputStream(new BufferedInputStream(socket.socket().getInputStream(), BUFFER_BYTES));
+            out = new DataOutputStream(new BufferedOutputStream(socket.socket().getOutputStream(), 256));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        channel = socket;
+    }
+
+    private void expect(byte type, byte expected, int length) throws IOException {
+        if (type == PeerProtocol.ERROR) {
+            byte[] message = new byte[length];
+            in.readFully(message);
+            throw new IOException("Peer error: " + new String(message, StandardCharsets.UTF_8));
+        }
+        if (type != expected) {
+            throw new IOException("Expected message type " + expected + ", got " + type);
+        }
+    }
+
+    private static void acquire(Semaphore semaphore) throws IOException {
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for blocks to be appended");
+        }
+    }
+
+    private void disconnect() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+        in = null;
+        out = null;
+    }
+
+    private void log(String message) {
+        if (logger != null) {
+            logger.accept(message);
+        }
+    }
+
+    /**
+     * Stops following the peer and closes the connection. Blocks already
+     * received are still appended.
+     */
+    @Override
+    public void close() {
+        Thread following;
+        synchronized (this) {
+            running = false;
+            following = thread;
+        }
+        if (following != null) {
+            following.interrupt();
+            try {
+                following.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        disconnect();
+        applier.shutdown();
+    }
+}
@@ -0,0 +1,362 @@
+package com.blockchain.net;
+
+import com.blockchain.core.Blockchain;
+import com.blockchain.core.ChainSnapshot;
+import com.blockchain.metrics.Counter;
+import com.blockchain.metrics.MetricsRegistry;
+import com.blockchain.model.Hash256;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves blocks to other nodes (see {@link PeerProtocol}).
+ *
+ * One thread multiplexes every connection with a selector. Responses are
+ * built from a snapshot of the chain, so replicas never hold up writers.
+ * Block responses are built on a separate thread, which sends stored blocks
+ * as their stored bytes, so reading blocks never holds up the selector; a
+ * connection's next request is read once its block response is queued.
+ * While more than {@link #MAX_QUEUED_BYTES} of responses wait to be sent on a
+ * connection, its requests are not read; a replica that pipelines faster than
+ * it reads is slowed down by TCP instead of filling this node's memory.
+ */
+public class PeerServer {
+
+    private static final int MAX_REQUEST_BYTES = 64;
+    private static final long MAX_QUEUED_BYTES = 8L * PeerProtocol.TARGET_FRAME_BYTES;
+
+    private static final MetricsRegistry METRICS = MetricsRegistry.global();
+    private static final Counter BLOCKS_SERVED = METRICS.counter("peer_blocks_served_total",
+            "Blocks sent to other nodes");
+    private static final Counter CONNECTIONS = METRICS.counter("peer_connections_total",
+            "Connections accepted from other nodes");
+
+    private final Blockchain blockchain;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "peer-server-blocks");
+        t.setDaemon(true);
+        return t;
+    });
+    // Block responses built for the selector thread to queue
+    private final Queue<Response> built = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+    private volatile boolean running;
+
+    private static class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES * 16);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long queuedBytes;
+        boolean paused;
+        // A block response is being built
+        boolean building;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static class Response {
+        final Connection connection;
+        final List<ByteBuffer> frames;
+        final int blocks;
+        final Exception failure;
+
+        Response(Connection connection, List<ByteBuffer> frames, int blocks, Exception failure) {
+            this.connection = connection;
+            this.frames = frames;
+            this.blocks = blocks;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * @param port The port to listen on, or 0 for any free port.
+     */
+    public PeerServer(Blockchain blockchain, int port) throws IOException {
+        this.blockchain = blockchain;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this::run, "peer-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes every connection and stops listening.
+     */
+    public synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return The port the server listens on. */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                queueBuiltResponses();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException | UncheckedIOException e) {
+                        // One peer's failure never stops the others
+                        System.err.println("Closing peer connection: " + e.getMessage());
+                        close(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("Peer server stopped: " + e.getMessage());
+        } finally {
+            builder.shutdownNow();
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void queueBuiltResponses() {
+        Response response;
+        while ((response = built.poll()) != null) {
+            Connection connection = response.connection;
+            SelectionKey key = connection.channel.keyFor(selector);
+            if (key == null || !key.isValid())
+                continue; // Closed meanwhile
+            try {
+                if (response.failure != null) {
+                    throw new IOException("Failed to read blocks: " + response.failure.getMessage(),
+                            response.failure);
+                }
+                connection.building = false;
+                for (ByteBuffer frame : response.frames) {
+                    enqueue(connection, frame);
+                }
+                BLOCKS_SERVED.add(response.blocks);
+                handleRequests(key, connection);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Closing peer connection: " + e.getMessage());
+                close(key);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        CONNECTIONS.increment();
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.channel.read(connection.in) < 0) {
+            close(key);
+            return;
+        }
+        handleRequests(key, connection);
+    }
+
+    // Answers the complete requests in the input buffer, stopping early if
+    // the responses waiting to be sent are over the limit
+    private void handleRequests(SelectionKey key, Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 4 && connection.queuedBytes <= MAX_QUEUED_BYTES && !connection.building) {
+            int length = in.getInt(in.position());
+            if (length < 1 || length > MAX_REQUEST_BYTES) {
+                throw new IOException("Invalid request length: " + length);
+            }
+            if (in.remaining() < 4 + length)
+                break;
+            in.getInt();
+            byte type = in.get();
+            ByteBuffer payload = in.slice();
+            payload.limit(length - 1);
+            in.position(in.position() + length - 1);
+            handleRequest(connection, type, payload);
+        }
+        in.compact();
+        write(key);
+    }
+
+    private void handleRequest(Connection connection, byte type, ByteBuffer payload) {
+        switch (type) {
+            case PeerProtocol.STATUS_REQUEST:
+                ChainSnapshot chain = blockchain.getSnapshot();
+                ByteBuffer status = PeerProtocol.newFrame(PeerProtocol.STATUS, 4 + Hash256.BYTES);
+                status.putInt(chain.size());
+                (chain.isEmpty() ? Hash256.ZERO : chain.getLatestHash()).writeTo(status);
+                enqueue(connection, status);
+                break;
+            case PeerProtocol.GET_BLOCKS:
+                if (payload.remaining() < 8) {
+                    enqueueError(connection, "GET_BLOCKS needs a position and a count");
+                    break;
+                }
+                int from = payload.getInt();
+                int count = payload.getInt();
+                if (from < 0 || count < 0 || count > PeerProtocol.MAX_REQUEST_BLOCKS) {
+                    enqueueError(connection, "Invalid block range: " + from + " + " + count);
+                    break;
+                }
+                buildBlocks(connection, blockchain.getSnapshot(), from, count);
+                break;
+            default:
+                enqueueError(connection, "Unknown request type: " + type);
+        }
+    }
+
+    // Builds the response on the builder thread; the snapshot is taken now so
+    // the blocks sent are those of the chain when the request was read
+    private void buildBlocks(Connection connection, ChainSnapshot chain, int from, int count) {
+        connection.building = true;
+        builder.execute(() -> {
+            Response response;
+            try {
+                int served = (int) Math.max(0, Math.min((long) from + count, chain.size()) - from);
+                response = new Response(connection, blocksFrames(chain, from, count), served, null);
+            } catch (IOException | RuntimeException e) {
+                response = new Response(connection, null, 0, e);
+            }
+            built.add(response);
+            selector.wakeup();
+        });
+    }
+
+    private List<ByteBuffer> blocksFrames(ChainSnapshot chain, int from, int count) throws IOException {
+        int end = (int) Math.min((long) from + count, chain.size());
+        int first = from;
+        List<ByteBuffer> frames = new ArrayList<>();
+        List<byte[]> encoded = new ArrayList<>();
+        int bytes = 0;
+        for (int position = from; position < end; position++) {
+            byte[] block = blockchain.getEncodedBlock(chain, position);
+            encoded.add(block);
+            bytes += 4 + block.length;
+            if (bytes >= PeerProtocol.TARGET_FRAME_BYTES && position + 1 < end) {
+                frames.add(blocksFrame(first, encoded, bytes, true));
+                first = position + 1;
+                encoded.clear();
+                bytes = 0;
+            }
+        }
+        frames.add(blocksFrame(first, encoded, bytes, false));
+        return frames;
+    }
+
+    private static ByteBuffer blocksFrame(int first, List<byte[]> blocks, int blockBytes, boolean more) {
+        ByteBuffer frame = PeerProtocol.newFrame(PeerProtocol.BLOCKS, 9 + blockBytes);
+        frame.putInt(first);
+        frame.putInt(blocks.size());
+        frame.put((byte) (more ? 1 : 0));
+        for (byte[] block : blocks) {
+            frame.putInt(block.length);
+            frame.put(block);
+        }
+        return frame;
+    }
+
+    private static void enqueueError(Connection connection, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        enqueue(connection, PeerProtocol.newFrame(PeerProtocol.ERROR, text.length).put(text));
+    }
+
+    private static void enqueue(Connection connection, ByteBuffer frame) {
+        frame.flip();
+        connection.out.add(frame);
+        connection.queuedBytes += frame.remaining();
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        while (!connection.out.isEmpty()) {
+            ByteBuffer frame = connection.out.peek();
+            int written = connection.channel.write(frame);
+            connection.queuedBytes -= written;
+            if (frame.hasRemaining())
+                break;
+            connection.out.poll();
+        }
+        boolean backlogged = connection.queuedBytes > MAX_QUEUED_BYTES;
+        boolean resume = connection.paused && !backlogged;
+        connection.paused = backlogged;
+        key.interestOps((backlogged || connection.building ? 0 : SelectionKey.OP_READ)
+                | (connection.out.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        // Requests read before the connection was paused are still buffered
+        if (resume) {
+            handleRequests(key, connection);
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+}
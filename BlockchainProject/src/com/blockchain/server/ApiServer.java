@@ -0,0 +1,306 @@
+package com.blockchain.server;
+
+import com.blockchain.core.Blockchain;
+import com.blockchain.core.ChainSnapshot;
+import com.blockchain.core.Mempool;
+import com.blockchain.core.ValidationIssue;
+import com.blockchain.core.ValidationProgress;
+import com.blockchain.core.ValidationReport;
+import com.blockchain.metrics.Counter;
+import com.blockchain.metrics.Histogram;
+import com.blockchain.metrics.MetricsHttpServer;
+import com.blockchain.metrics.MetricsRegistry;
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import com.blockchain.util.JsonBlockReader;
+import com.blockchain.util.JsonUtil;
+import com.blockchain.util.PersistenceManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A JSON API over HTTP for running the chain without the GUI.
+ *
+ * <pre>
+ * POST /transactions         a transaction object, or an array of them
+ * GET  /blocks/{index|hash}  one block ("latest" for the last one)
+ * GET  /status               chain height, latest hash, pending transactions
+ * GET  /validation           how much of the chain is known to be valid, and
+ *                            the result of the last re-validation
+ * POST /validation           starts re-validating the whole chain (202)
+ * GET  /metrics              all metrics, in the Prometheus text format
+ * </pre>
+ *
+ * Submitted transactions only go into the {@link Mempool}; a
+ * {@link com.blockchain.core.BlockProducer} turns them into blocks in
+ * batches. A submission is answered with 202 once it is queued, or 503 if the
+ * mempool is full. Requests are handled on a fixed pool of threads, and never
+ * wait for the chain's writer: status is read from a snapshot, and a
+ * re-validation runs on the validator's pool.
+ *
+ * Without a mempool the server is read-only, as on a replica that copies its
+ * blocks from another node: submissions are refused with 403.
+ */
+public class ApiServer {
+
+    public static final int MAX_BODY_BYTES = 1024 * 1024;
+    private static final int BACKLOG = 1024;
+    private static final String JSON = "application/json; charset=utf-8";
+
+    private static final MetricsRegistry METRICS = MetricsRegistry.global();
+    private static final Histogram REQUEST_TIME = METRICS.timer("api_request_seconds",
+            "Time to handle an API request");
+    private static final Counter TRANSACTIONS_ACCEPTED = METRICS.counter("api_transactions_accepted_total",
+            "Transactions queued through the API");
+    private static final Counter TRANSACTIONS_REJECTED = METRICS.counter("api_transactions_rejected_total",
+            "Transactions refused because the mempool was full");
+
+    static {
+        // The JDK server leaves Nagle's algorithm on, which holds back small
+        // responses on keep-alive connections for ~40 ms. It is read once,
+        // when the first server in the JVM is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final Blockchain blockchain;
+    private final Mempool mempool;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicBoolean validating = new AtomicBoolean();
+    private volatile ValidationReport lastValidation;
+
+    /**
+     * @param mempool Where submitted transactions go, or null to refuse them.
+     * @param port    The port to listen on, or 0 for any free port.
+     * @param threads The number of request handler threads.
+     */
+    public ApiServer(Blockchain blockchain, Mempool mempool, int port, int threads) throws IOException {
+        this.blockchain = blockchain;
+        this.mempool = mempool;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "api-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        server.setExecutor(executor);
+        server.createContext("/transactions", timed(this::handleTransactions));
+        server.createContext("/blocks/", timed(this::handleBlock));
+        server.createContext("/status", timed(this::handleStatus));
+        server.createContext("/validation", timed(this::handleValidation));
+        server.createContext("/metrics", timed(exchange -> MetricsHttpServer.handle(exchange, METRICS)));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waits up to {@code delaySeconds} for the ones
+     * in progress, and stops the handler threads.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return The port the server listens on. */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private static HttpHandler timed(HttpHandler handler) {
+        return exchange -> {
+            long start = System.nanoTime();
+            try {
+                handler.handle(exchange);
+            } catch (RuntimeException e) {
+                System.err.println("Failed to handle " + exchange.getRequestURI() + ": " + e);
+                send(exchange, 500, error("Internal error"));
+            } finally {
+                exchange.close();
+                REQUEST_TIME.recordNanosSince(start);
+            }
+        };
+    }
+
+    private void handleTransactions(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, error("Use POST"));
+            return;
+        }
+        if (mempool == null) {
+            send(exchange, 403, error("This node is a read-only replica"));
+            return;
+        }
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            send(exchange, 413, error("Request body larger than " + MAX_BODY_BYTES + " bytes"));
+            return;
+        }
+
+        List<Transaction> transactions;
+        try (JsonBlockReader reader = new JsonBlockReader(new ByteArrayInputStream(body))) {
+            transactions = reader.readTransactionList();
+        } catch (IOException e) {
+            send(exchange, 400, error("Invalid JSON: " + e.getMessage()));
+            return;
+        }
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            if (isBlank(tx.getSender()) || isBlank(tx.getRecipient()) || !Double.isFinite(tx.getAmount())) {
+                send(exchange, 400, error("Transaction " + i + " needs a sender, a recipient and a numeric amount"));
+                return;
+            }
+            if (tx.getTimestamp() == 0) {
+                transactions.set(i, new Transaction(tx.getSender(), tx.getRecipient(), tx.getAmount()));
+            }
+        }
+
+        // Transactions are queued in order; once the pool is full the rest
+        // are refused so the client can retry them
+        int accepted = 0;
+        while (accepted < transactions.size() && mempool.submit(transactions.get(accepted))) {
+            accepted++;
+        }
+        int rejected = transactions.size() - accepted;
+        TRANSACTIONS_ACCEPTED.add(accepted);
+        TRANSACTIONS_REJECTED.add(rejected);
+        String result = "{\"accepted\":" + accepted + ",\"rejected\":" + rejected + ",\"pending\":"
+                + mempool.size() + "}";
+        send(exchange, rejected == 0 ? 202 : 503, result);
+    }
+
+    private void handleBlock(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, error("Use GET"));
+            return;
+        }
+        String key = exchange.getRequestURI().getPath().substring("/blocks/".length());
+        Block block;
+        try {
+            if (key.equals("latest")) {
+                ChainSnapshot chain = blockchain.getSnapshot();
+                block = chain.isEmpty() ? null : chain.get(chain.size() - 1);
+            } else if (key.length() == Hash256.BYTES * 2) {
+                block = blockchain.getBlockByHash(Hash256.fromHex(key));
+            } else {
+                block = blockchain.getBlockByIndex(Integer.parseInt(key));
+            }
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, error("Expected a block index, a block hash or 'latest'"));
+            return;
+        }
+        if (block == null) {
+            send(exchange, 404, error("Block not found"));
+            return;
+        }
+        send(exchange, 200, PersistenceManager.blockToJson(block));
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, error("Use GET"));
+            return;
+        }
+        ChainSnapshot chain = blockchain.getSnapshot();
+        Hash256 latestHash = chain.isEmpty() ? Hash256.ZERO : chain.getLatestHash();
+        String result = "{\"height\":" + chain.size() + ",\"latestHash\":\"" + latestHash.toHex()
+                + "\",\"pending\":" + (mempool != null ? mempool.size() : 0) + ",\"difficulty\":"
+                + blockchain.getDifficulty() + "}";
+        send(exchange, 200, result);
+    }
+
+    private void handleValidation(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if ("GET".equals(method)) {
+            int size = blockchain.getSnapshot().size();
+            int validated = Math.min(blockchain.getValidatedCount(), size);
+            ValidationReport last = lastValidation;
+            send(exchange, 200, "{\"height\":" + size + ",\"validated\":" + validated + ",\"running\":"
+                    + validating.get() + ",\"last\":" + (last != null ? reportToJson(last) : "null") + "}");
+            return;
+        }
+        if (!"POST".equals(method)) {
+            send(exchange, 405, error("Use GET or POST"));
+            return;
+        }
+        // A full validation keeps every core busy, so only one runs at a time
+        if (!validating.compareAndSet(false, true)) {
+            send(exchange, 409, error("A validation is already running"));
+            return;
+        }
+        blockchain.validateChainAsync(ValidationProgress.NONE).whenComplete((report, error) -> {
+            if (error != null) {
+                System.err.println("Validation failed: " + error);
+            } else {
+                lastValidation = report;
+            }
+            validating.set(false);
+        });
+        send(exchange, 202, "{\"running\":true}");
+    }
+
+    private static String reportToJson(ValidationReport report) {
+        StringBuilder result = new StringBuilder();
+        result.append("{\"valid\":").append(report.isValid()).append(",\"blocksChecked\":")
+                .append(report.getBlocksChecked()).append(",\"issues\":[");
+        List<ValidationIssue> issues = report.getIssues();
+        for (int i = 0; i < issues.size(); i++) {
+            ValidationIssue issue = issues.get(i);
+            if (i > 0)
+                result.append(",");
+            result.append("{\"position\":").append(issue.getPosition()).append(",\"index\":")
+                    .append(issue.getBlockIndex()).append(",\"type\":\"")
+                    .append(issue.getType()).append("\"}");
+        }
+        return result.append("]}").toString();
+    }
+
+    // Returns null if the body is larger than MAX_BODY_BYTES
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+            return body.length > MAX_BODY_BYTES ? null : body;
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":\"" + JsonUtil.escape(message) + "\"}";
+    }
+
+    private static boolean isBlank(String s) {
+        return s == null || s.trim().isEmpty();
+    }
+}
@@ -0,0 +1,433 @@
+package com.blockchain.storage;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of blocks used for store records.
+ * Every encoded block starts with a format version byte so that older records
+ * stay readable when the layout changes.
+ * <ul>
+ * <li>Version 1: hashes written as strings (legacy blocks only).</li>
+ * <li>Version 2: block version byte and raw 32-byte hashes; proof-of-work
+ * blocks add the difficulty and nonce after the Merkle root.</li>
+ * <li>Version 3 (written by default): compact. Integers are unsigned
+ * varints, hashes raw, transaction timestamps are stored relative to the
+ * block timestamp, and each distinct address is written once per block in a
+ * dictionary that transactions refer to by number. Amounts are the 8 bytes
+ * of the double, so they round-trip exactly.</li>
+ * </ul>
+ * 
+ * <pre>
+ * version 3 block:
+ *   byte    3
+ *   varint  block version, index, timestamp
+ *   32      previous hash, hash, Merkle root
+ *   varint  difficulty, nonce          (proof-of-work blocks only)
+ *   varint  address count, then per address: varint length, UTF-8 bytes
+ *   varint  transaction count, then per transaction:
+ *     varint  sender, recipient        (0 = null, n = address n - 1)
+ *     8       amount (IEEE 754 bits)
+ *     varint  timestamp - block timestamp, zigzag-encoded
+ * </pre>
+ * 
+ * This is the format of store records and of blocks sent between nodes; the
+ * JSON format remains available for export.
+ */
+public class BlockCodec {
+
+    public static final byte VERSION_1 = 1;
+    public static final byte VERSION_2 = 2;
+    public static final byte VERSION_3 = 3;
+
+    /**
+     * Encodes a block in the current format ({@link #VERSION_3}).
+     */
+    public static byte[] encode(Block block) {
+        return encodeCompact(block);
+    }
+
+    /**
+     * Encodes a block in a specific format, e.g. for comparisons or for readers
+     * that predate the current one.
+     */
+    public static byte[] encode(Block block, byte format) {
+        switch (format) {
+            case VERSION_2:
+                return encodeVersion2(block);
+            case VERSION_3:
+                return encodeCompact(block);
+            default:
+                throw new IllegalArgumentException("Cannot encode block format version " + format);
+        }
+    }
+
+    private static byte[] encodeVersion2(Block block) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION_2);
+            out.writeByte(block.getVersion());
+            out.writeInt(block.getIndex());
+            out.writeLong(block.getTimestamp());
+            writeHash(out, block.getPreviousHash());
+            writeHash(out, block.getHash());
+            writeHash(out, block.getMerkleRoot());
+            if (block.getVersion() == Block.VERSION_POW) {
+                out.writeInt(block.getDifficulty());
+                out.writeLong(block.getNonce());
+            }
+
+            List<Transaction> txs = block.getTransactions();
+            int count = txs != null ? txs.size() : 0;
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                Transaction tx = txs.get(i);
+                writeString(out, tx.getSender());
+                writeString(out, tx.getRecipient());
+                out.writeDouble(tx.getAmount());
+                out.writeLong(tx.getTimestamp());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Writing to a byte array cannot fail
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static Block decode(byte[] data, int offset, int length) throws IOException {
+        if (length > 0 && data[offset] == VERSION_3) {
+            return decodeCompact(data, offset, length);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        byte format = in.readByte();
+        if (format != VERSION_1 && format != VERSION_2) {
+            throw new IOException("Unsupported block format version: " + format);
+        }
+
+        int blockVersion;
+        int index;
+        long timestamp;
+        Hash256 previousHash;
+        Hash256 hash;
+        Hash256 merkleRoot;
+        int difficulty = 0;
+        long nonce = 0;
+        if (format == VERSION_1) {
+            blockVersion = Block.VERSION_LEGACY;
+            index = in.readInt();
+            timestamp = in.readLong();
+            previousHash = readLegacyHash(in);
+            hash = readLegacyHash(in);
+            merkleRoot = readLegacyHash(in);
+        } else {
+            blockVersion = in.readByte();
+            index = in.readInt();
+            timestamp = in.readLong();
+            previousHash = readHash(in);
+            hash = readHash(in);
+            merkleRoot = readHash(in);
+            if (blockVersion == Block.VERSION_POW) {
+                difficulty = in.readInt();
+                nonce = in.readLong();
+            }
+        }
+
+        int count = in.readInt();
+        List<Transaction> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String sender = readString(in);
+            String recipient = readString(in);
+            double amount = in.readDouble();
+            long txTimestamp = in.readLong();
+            transactions.add(new Transaction(sender, recipient, amount, txTimestamp));
+        }
+        try {
+            return new Block(index, transactions, previousHash, timestamp, hash, merkleRoot, blockVersion, difficulty,
+                    nonce);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static byte[] encodeCompact(Block block) {
+        List<Transaction> txs = block.getTransactions();
+        int count = txs != null ? txs.size() : 0;
+
+        // Number each distinct address in order of first use
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> addresses = new ArrayList<>();
+        int[] refs = new int[count * 2];
+        for (int i = 0; i < count; i++) {
+            Transaction tx = txs.get(i);
+            refs[i * 2] = addressRef(tx.getSender(), ids, addresses);
+            refs[i * 2 + 1] = addressRef(tx.getRecipient(), ids, addresses);
+        }
+
+        ByteWriter out = new ByteWriter(128 + count * 16);
+        out.writeByte(VERSION_3);
+        out.writeVarLong(block.getVersion());
+        out.writeVarLong(block.getIndex() & 0xFFFFFFFFL);
+        out.writeVarLong(block.getTimestamp());
+        out.writeHash(block.getPreviousHash());
+        out.writeHash(block.getHash());
+        out.writeHash(block.getMerkleRoot());
+        if (block.getVersion() == Block.VERSION_POW) {
+            out.writeVarLong(block.getDifficulty());
+            out.writeVarLong(block.getNonce());
+        }
+
+        out.writeVarLong(addresses.size());
+        for (String address : addresses) {
+            byte[] bytes = address.getBytes(StandardCharsets.UTF_8);
+            out.writeVarLong(bytes.length);
+            out.writeBytes(bytes);
+        }
+
+        out.writeVarLong(count);
+        for (int i = 0; i < count; i++) {
+            Transaction tx = txs.get(i);
+            out.writeVarLong(refs[i * 2]);
+            out.writeVarLong(refs[i * 2 + 1]);
+            out.writeLong(Double.doubleToRawLongBits(tx.getAmount()));
+            long delta = tx.getTimestamp() - block.getTimestamp();
+            out.writeVarLong((delta << 1) ^ (delta >> 63));
+        }
+        return out.toByteArray();
+    }
+
+    private static int addressRef(String address, Map<String, Integer> ids, List<String> addresses) {
+        if (address == null)
+            return 0;
+        Integer id = ids.get(address);
+        if (id == null) {
+            id = addresses.size();
+            ids.put(address, id);
+            addresses.add(address);
+        }
+        return id + 1;
+    }
+
+    private static Block decodeCompact(byte[] data, int offset, int length) throws IOException {
+        ByteReader in = new ByteReader(data, offset, length);
+        in.readByte(); // Format version
+        int blockVersion = (int) in.readVarLong();
+        int index = (int) in.readVarLong();
+        long timestamp = in.readVarLong();
+        Hash256 previousHash = in.readHash();
+        Hash256 hash = in.readHash();
+        Hash256 merkleRoot = in.readHash();
+        int difficulty = 0;
+        long nonce = 0;
+        if (blockVersion == Block.VERSION_POW) {
+            difficulty = (int) in.readVarLong();
+            nonce = in.readVarLong();
+        }
+
+        String[] addresses = new String[in.readCount()];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = in.readString();
+        }
+
+        int count = in.readCount();
+        List<Transaction> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String sender = address(addresses, in.readVarLong());
+            String recipient = address(addresses, in.readVarLong());
+            double amount = Double.longBitsToDouble(in.readLong());
+            long zigzag = in.readVarLong();
+            long txTimestamp = timestamp + ((zigzag >>> 1) ^ -(zigzag & 1));
+            transactions.add(new Transaction(sender, recipient, amount, txTimestamp));
+        }
+        if (in.remaining() != 0) {
+            throw new IOException("Trailing bytes after block " + index);
+        }
+        try {
+            return new Block(index, transactions, previousHash, timestamp, hash, merkleRoot, blockVersion, difficulty,
+                    nonce);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static String address(String[] addresses, long ref) throws IOException {
+        if (ref == 0)
+            return null;
+        if (ref > addresses.length) {
+            throw new IOException("Address reference out of range: " + ref);
+        }
+        return addresses[(int) ref - 1];
+    }
+
+    // Growable output buffer for the compact format
+    private static final class ByteWriter {
+        private byte[] buf;
+        private int pos;
+
+        ByteWriter(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        // Unsigned LEB128: 7 bits per byte, high bit set on all but the last
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[pos + i] = (byte) v;
+                v >>>= 8;
+            }
+            pos += 8;
+        }
+
+        void writeHash(Hash256 h) {
+            ensure(Hash256.BYTES);
+            h.writeTo(buf, pos);
+            pos += Hash256.BYTES;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    // Bounds-checked reader over a record, for the compact format
+    private static final class ByteReader {
+        private final byte[] data;
+        private int pos;
+        private final int end;
+
+        ByteReader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        int remaining() {
+            return end - pos;
+        }
+
+        private void need(int n) throws IOException {
+            if (end - pos < n) {
+                throw new EOFException("Block record is truncated");
+            }
+        }
+
+        byte readByte() throws IOException {
+            need(1);
+            return data[pos++];
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0)
+                    return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        // A count of items that each take at least one byte
+        int readCount() throws IOException {
+            long n = readVarLong();
+            if (n < 0 || n > remaining()) {
+                throw new IOException("Invalid count: " + n);
+            }
+            return (int) n;
+        }
+
+        long readLong() throws IOException {
+            need(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (data[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        Hash256 readHash() throws IOException {
+            need(Hash256.BYTES);
+            Hash256 h = Hash256.fromBytes(data, pos);
+            pos += Hash256.BYTES;
+            return h;
+        }
+
+        String readString() throws IOException {
+            int length = readCount();
+            String s = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+
+    private static void writeHash(DataOutputStream out, Hash256 h) throws IOException {
+        byte[] bytes = new byte[Hash256.BYTES];
+        h.writeTo(bytes, 0);
+        out.write(bytes);
+    }
+
+    private static Hash256 readHash(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[Hash256.BYTES];
+        in.readFully(bytes);
+        return Hash256.fromBytes(bytes);
+    }
+
+    private static Hash256 readLegacyHash(DataInputStream in) throws IOException {
+        try {
+            return Hash256.fromLegacyString(readString(in));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // Strings are written with a presence flag so null fields survive a round trip
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,79 @@
+package com.blockchain.storage;
+
+import com.blockchain.model.Block;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Append-only storage for blocks.
+ * Blocks are addressed by their position in the store (0, 1, 2, ...), which
+ * matches their position in the chain.
+ */
+public interface BlockStore extends Closeable {
+
+    /**
+     * Appends a single block to the end of the store. The block is not
+     * guaranteed to be on disk until {@link #sync()} is called.
+     * 
+     * @param block The block to append.
+     */
+    void append(Block block) throws IOException;
+
+    /**
+     * Appends several blocks and makes them durable with a single sync.
+     * 
+     * @param blocks The blocks to append, in chain order.
+     */
+    void appendAll(List<Block> blocks) throws IOException;
+
+    /**
+     * Reads the block stored at the given position.
+     * 
+     * @param position The position of the block in the store.
+     * @return The decoded block.
+     */
+    Block read(int position) throws IOException;
+
+    /**
+     * Reads the stored bytes of the block at the given position, in the
+     * {@link BlockCodec} format, after checking them against their checksum.
+     * The block is not decoded.
+     * 
+     * @param position The position of the block in the store.
+     * @return The encoded block.
+     */
+    byte[] readEncoded(int position) throws IOException;
+
+    /**
+     * Returns the checksum stored with the block at the given position,
+     * without reading or decoding the block itself.
+     * 
+     * @param position The position of the block in the store.
+     * @return The CRC-32 of the block's stored bytes.
+     */
+    int checksum(int position) throws IOException;
+
+    /**
+     * Removes every block from {@code size} on and makes the removal
+     * durable, e.g. when the chain switches to another branch.
+     * 
+     * @param size The number of blocks to keep.
+     */
+    void truncate(int size) throws IOException;
+
+    /**
+     * @return The number of blocks in the store.
+     */
+    int size();
+
+    /**
+     * Forces all appended blocks to disk.
+     */
+    void sync() throws IOException;
+
+    /**
+     * @return The number of bytes the store occupies on disk.
+     */
+    long sizeInBytes();
+}
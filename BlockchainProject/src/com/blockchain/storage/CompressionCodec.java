@@ -0,0 +1,63 @@
+package com.blockchain.storage;
+
+import java.io.IOException;
+
+/**
+ * Compresses the chunks of sealed block segments.
+ *
+ * Each compressed segment records the {@link #getId() id} of the codec that
+ * wrote it, so a store can still read segments written with a different
+ * codec as long as that codec is one of the built-in ones or the one the
+ * store was opened with. Implementations must be thread-safe.
+ */
+public interface CompressionCodec {
+
+    /** Id of the built-in Deflate codec. Custom codecs should use ids above 127. */
+    int DEFLATE_ID = 1;
+
+    /**
+     * @return The id stored in segments written by this codec (0-255).
+     */
+    int getId();
+
+    /**
+     * @return A short name used in messages.
+     */
+    String getName();
+
+    /**
+     * Compresses {@code length} bytes of {@code data} starting at
+     * {@code offset}.
+     */
+    byte[] compress(byte[] data, int offset, int length);
+
+    /**
+     * Restores data written by {@link #compress}.
+     *
+     * @param rawLength The length of the original data.
+     * @throws IOException If the data is corrupt or does not inflate to
+     *                     exactly {@code rawLength} bytes.
+     */
+    byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException;
+
+    /**
+     * The JDK's Deflate at its default level.
+     */
+    static CompressionCodec deflate() {
+        return new DeflateCodec(java.util.zip.Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * The JDK's Deflate at the given level (1 = fastest, 9 = smallest).
+     */
+    static CompressionCodec deflate(int level) {
+        return new DeflateCodec(level);
+    }
+
+    /**
+     * @return The built-in codec with this id, or null if there is none.
+     */
+    static CompressionCodec forId(int id) {
+        return id == DEFLATE_ID ? deflate() : null;
+    }
+}
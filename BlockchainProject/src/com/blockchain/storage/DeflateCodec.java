@@ -0,0 +1,81 @@
+package com.blockchain.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link CompressionCodec} backed by {@link Deflater} and {@link Inflater}.
+ * A new (de)compressor is used per call and released straight away, since
+ * both hold native memory that is otherwise only freed by the GC.
+ */
+class DeflateCodec implements CompressionCodec {
+
+    private final int level;
+
+    DeflateCodec(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Deflate level must be between 1 and 9");
+        }
+        this.level = level;
+    }
+
+    @Override
+    public int getId() {
+        return DEFLATE_ID;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            byte[] raw = new byte[rawLength];
+            int filled = 0;
+            while (filled < rawLength) {
+                int n = inflater.inflate(raw, filled, rawLength - filled);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                filled += n;
+            }
+            // The end of the stream may only be seen once the output is full
+            if (filled == rawLength && !inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                filled++;
+            }
+            if (filled != rawLength || !inflater.finished()) {
+                throw new IOException("Compressed chunk does not inflate to " + rawLength + " bytes");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
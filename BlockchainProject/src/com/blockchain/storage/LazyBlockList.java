@@ -0,0 +1,66 @@
+package com.blockchain.storage;
+
+import com.blockchain.model.Block;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list of the blocks in a {@link BlockStore}, decoded only when a
+ * block is accessed.
+ * 
+ * The list covers the blocks that were in the store when it was created.
+ * Recently decoded blocks are held in a small fixed-size cache. The list is
+ * safe to read from many threads at once.
+ */
+public class LazyBlockList extends AbstractList<Block> implements RandomAccess {
+
+    private static final int CACHE_SIZE = 256; // Must be a power of two
+
+    private final BlockStore store;
+    private final int storedCount;
+    private final CachedBlock[] cache = new CachedBlock[CACHE_SIZE];
+
+    // Position and block are kept in one object so concurrent readers never
+    // see a block paired with the wrong position
+    private static class CachedBlock {
+        final int position;
+        final Block block;
+
+        CachedBlock(int position, Block block) {
+            this.position = position;
+            this.block = block;
+        }
+    }
+
+    public LazyBlockList(BlockStore store) {
+        this.store = store;
+        this.storedCount = store.size();
+    }
+
+    @Override
+    public Block get(int index) {
+        if (index < 0 || index >= storedCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + storedCount);
+        }
+
+        int slot = index & (CACHE_SIZE - 1);
+        CachedBlock cached = cache[slot];
+        if (cached != null && cached.position == index) {
+            return cached.block;
+        }
+        try {
+            Block block = store.read(index);
+            cache[slot] = new CachedBlock(index, block);
+            return block;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read block " + index, e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return storedCount;
+    }
+}
@@ -0,0 +1,221 @@
+package com.blockchain.storage;
+
+import com.blockchain.model.Block;
+import java.io.Closeable;
+import java.io.IOException;
+import com.blockchain.metrics.Histogram;
+import com.blockchain.metrics.MetricsRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes blocks to a {@link BlockStore} on a background thread.
+ * 
+ * Callers queue blocks with {@link #submit(Block)} and get a future that
+ * completes once the block is durable. The writer drains whatever is queued,
+ * appends it, and syncs according to the {@link SyncPolicy}, so blocks that
+ * arrive together share one fsync (group commit). If a write fails, the
+ * future of that block and of every later block completes exceptionally.
+ * Truncations are queued the same way, so they apply after the blocks
+ * submitted before them.
+ */
+public class PersistencePipeline implements Closeable {
+
+    private static final int MAX_BATCH = 1024;
+
+    private static final Histogram SYNC_TIME = MetricsRegistry.global().timer("store_sync_seconds",
+            "Time to force appended blocks to disk");
+    private static final Histogram SYNC_BATCH = MetricsRegistry.global().histogram("store_sync_batch_blocks",
+            "Blocks made durable by one sync (group commit size)");
+
+    private final BlockStore store;
+    private final SyncPolicy policy;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    // A block to write, or (block == null) a request to sync everything
+    // queued, after truncating the store if truncateTo >= 0
+    private static class Request {
+        final Block block;
+        final int truncateTo;
+        final CompletableFuture<Block> future = new CompletableFuture<>();
+        long queuedNanos;
+
+        Request(Block block) {
+            this(block, -1);
+        }
+
+        Request(Block block, int truncateTo) {
+            this.block = block;
+            this.truncateTo = truncateTo;
+        }
+    }
+
+    public PersistencePipeline(BlockStore store, SyncPolicy policy) {
+        this.store = store;
+        this.policy = policy;
+        this.writer = new Thread(this::run, "block-writer");
+        this.writer.start();
+    }
+
+    /**
+     * Queues a block to be appended after all blocks submitted before it.
+     * 
+     * @return A future completed with the block once it has been synced.
+     */
+    public CompletableFuture<Block> submit(Block block) {
+        return enqueue(new Request(block));
+    }
+
+    /**
+     * Forces everything submitted so far to disk, regardless of the policy.
+     * 
+     * @return A future completed once all earlier blocks are durable.
+     */
+    public CompletableFuture<Void> flush() {
+        return enqueue(new Request(null)).thenApply(b -> null);
+    }
+
+    /**
+     * Removes the stored blocks from position {@code size} on, once the
+     * blocks submitted before have been written.
+     * 
+     * @return A future completed once the truncation is durable.
+     */
+    public CompletableFuture<Void> truncate(int size) {
+        return enqueue(new Request(null, size)).thenApply(b -> null);
+    }
+
+    public SyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return The number of blocks waiting to be written or synced.
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    private CompletableFuture<Block> enqueue(Request request) {
+        if (closed) {
+            request.future.completeExceptionally(new IOException("Persistence pipeline is closed"));
+            return request.future;
+        }
+        IOException f = failure;
+        if (f != null) {
+            request.future.completeExceptionally(f);
+            return request.future;
+        }
+        request.queuedNanos = System.nanoTime();
+        queue.add(request);
+        return request.future;
+    }
+
+    /**
+     * Syncs all queued blocks and stops the writer thread. The store itself is
+     * not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        CompletableFuture<Void> done = flush();
+        closed = true;
+        try {
+            done.join();
+        } catch (RuntimeException e) {
+            // The failure was already reported to the block futures
+        }
+        // Wake the writer so it sees 'closed'. Interrupting it instead could
+        // close the store's channels in the middle of a write.
+        queue.add(new Request(null));
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void run() {
+        List<Request> unsynced = new ArrayList<>();
+        List<Request> batch = new ArrayList<>();
+        while (!(closed && queue.isEmpty() && unsynced.isEmpty())) {
+            try {
+                long oldestAge = unsynced.isEmpty() ? 0 : System.nanoTime() - unsynced.get(0).queuedNanos;
+                long wait = unsynced.isEmpty() ? TimeUnit.MILLISECONDS.toNanos(100) : policy.maxWaitNanos(oldestAge);
+                Request first = wait == Long.MAX_VALUE ? queue.take() : queue.poll(wait, TimeUnit.NANOSECONDS);
+
+                boolean forceSync = false;
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Request r : batch) {
+                        if (r.block == null) {
+                            if (r.truncateTo >= 0 && failure == null) {
+                                store.truncate(r.truncateTo);
+                            }
+                            forceSync = true;
+                        } else if (failure == null) {
+                            store.append(r.block);
+                        }
+                        unsynced.add(r);
+                    }
+                    batch.clear();
+                }
+
+                if (failure != null) {
+                    failAll(unsynced, failure);
+                    continue;
+                }
+                oldestAge = unsynced.isEmpty() ? 0 : System.nanoTime() - unsynced.get(0).queuedNanos;
+                if (forceSync || policy.shouldSync(countBlocks(unsynced), oldestAge)) {
+                    long start = System.nanoTime();
+                    store.sync();
+                    SYNC_TIME.recordNanosSince(start);
+                    SYNC_BATCH.record(countBlocks(unsynced));
+                    for (Request r : unsynced) {
+                        r.future.complete(r.block);
+                    }
+                    unsynced.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                System.err.println("Failed to persist blocks: " + e.getMessage());
+                failure = e;
+                failAll(batch, e);
+                failAll(unsynced, e);
+                List<Request> rest = new ArrayList<>();
+                queue.drainTo(rest);
+                failAll(rest, e);
+            }
+        }
+    }
+
+    private static int countBlocks(List<Request> requests) {
+        int n = 0;
+        for (Request r : requests) {
+            if (r.block != null)
+                n++;
+        }
+        return n;
+    }
+
+    private static void failAll(List<Request> requests, IOException e) {
+        for (Request r : requests) {
+            r.future.completeExceptionally(e);
+        }
+        requests.clear();
+    }
+}
@@ -0,0 +1,65 @@
+package com.blockchain.storage;
+
+import com.blockchain.model.Hash256;
+import com.blockchain.util.HashUtil;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * A running SHA-256 over the stored checksums of the first blocks of a store.
+ *
+ * Every record of the prefix contributes, so replacing any stored block
+ * changes the digest, not only replacing the last one. Only the record
+ * headers are read; no block is decoded. Extending the prefix hashes just the
+ * new records, while going back below the records already hashed starts over.
+ */
+public class PrefixDigest {
+
+    private final BlockStore store;
+    private final MessageDigest digest = HashUtil.newSha256();
+    private final byte[] checksum = new byte[4];
+    private int count;
+
+    public PrefixDigest(BlockStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @param count The number of leading blocks to cover.
+     * @return The digest of the checksums of blocks {@code 0..count-1}.
+     */
+    public synchronized Hash256 digestOf(int count) throws IOException {
+        if (count < this.count) {
+            reset();
+        }
+        while (this.count < count) {
+            int crc = store.checksum(this.count);
+            checksum[0] = (byte) (crc >>> 24);
+            checksum[1] = (byte) (crc >>> 16);
+            checksum[2] = (byte) (crc >>> 8);
+            checksum[3] = (byte) crc;
+            digest.update(checksum);
+            this.count++;
+        }
+        try {
+            return Hash256.fromBytes(((MessageDigest) digest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Forgets the records from {@code size} on, e.g. after the store was
+     * truncated and other blocks written in their place.
+     */
+    public synchronized void truncate(int size) {
+        if (size < count) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        digest.reset();
+        count = 0;
+    }
+}
@@ -0,0 +1,994 @@
+package com.blockchain.storage;
+
+import com.blockchain.metrics.Counter;
+import com.blockchain.metrics.MetricsRegistry;
+import com.blockchain.model.Block;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link BlockStore} that keeps blocks in append-only segment files.
+ * 
+ * Each block is written as one record:
+ * 
+ * <pre>
+ * [int payloadLength][int crc32(payload)][payload]
+ * </pre>
+ * 
+ * Appending a block only writes its own record, so the cost does not depend
+ * on the length of the chain. When the active segment reaches
+ * {@code maxSegmentBytes} a new segment file is started. A torn record at the
+ * end of the last segment (e.g. after a crash) is cut off when the store is
+ * opened.
+ * 
+ * Sealed segments are memory-mapped. Opening the store only walks the record
+ * headers to build the position index; payloads are checksummed and decoded
+ * when a block is read. Readers hold a reference on a mapping while they use
+ * it, and before a mapped file is truncated, replaced or deleted its mapping
+ * is unmapped once the last reader is done, since Windows refuses to change a
+ * file that is still mapped.
+ * 
+ * If the store is opened with a {@link CompressionCodec}, each segment is
+ * rewritten in compressed form after it is sealed ({@code segment-N.clog}).
+ * Compression runs on a background thread, so appends never wait for it; the
+ * compressed file replaces the sealed segment once it is complete, and
+ * segments left uncompressed by a shutdown are compressed after the next
+ * open.
+ * The records are grouped into chunks of about {@value #CHUNK_BYTES} bytes
+ * that are compressed independently, and an index of chunk and record offsets
+ * is kept at the end of the file:
+ * 
+ * <pre>
+ * [int magic][byte codecId]
+ * [compressed chunk]...
+ * [int chunkCount]([long fileOffset][int compressedLength][int rawLength])...
+ * [int recordCount]([int rawOffset])...
+ * [long indexOffset][int indexLength][int crc32(index)][int magic]
+ * </pre>
+ * 
+ * Opening the store only reads that index, and reading a block inflates just
+ * the chunk that holds it. Recently inflated chunks are cached, so reading
+ * blocks in order inflates each chunk once. The active segment is never
+ * compressed, so appends and crash recovery work as before.
+ * 
+ * {@link #truncate(int)} deletes the segments after the new end and cuts the
+ * segment holding it back to a record boundary. A compressed segment is
+ * first rewritten uncompressed, since it becomes the active segment again.
+ * 
+ * Appends are serialized, while reads take no lock and may run on many
+ * threads at once (e.g. during parallel validation).
+ */
+public class SegmentedBlockStore implements BlockStore {
+
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPRESSED_SUFFIX = ".clog";
+    private static final int COMPRESSED_MAGIC = 0x42534331; // "BSC1"
+    private static final int COMPRESSED_HEADER_BYTES = 5;
+    private static final int COMPRESSED_TRAILER_BYTES = 20;
+    static final int CHUNK_BYTES = 16 * 1024;
+    private static final int CHUNK_CACHE_SLOTS = 64;
+
+    private static final Counter CHUNKS_INFLATED = MetricsRegistry.global().counter("store_chunks_inflated_total",
+            "Compressed segment chunks inflated to read blocks");
+    // Record locations are packed as (segment number << 40 | offset in segment)
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    // Unmaps a buffer right away; without it a mapping is only released once
+    // the buffer is garbage collected
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Block segments cannot be unmapped explicitly: " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final CompressionCodec codec;
+    // Compresses sealed segments, or null without a codec
+    private final ExecutorService compressor;
+    // Held while a sealed segment is read for compression, so it is never
+    // truncated underneath its mapping
+    private final Object compressionLock = new Object();
+    private volatile boolean closed;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    // Direct-mapped cache of inflated chunks, shared by all readers
+    private final AtomicReferenceArray<Chunk> chunkCache = new AtomicReferenceArray<>(CHUNK_CACHE_SLOTS);
+
+    // A location is written before 'count' is raised, so a reader that sees a
+    // count also sees the locations below it
+    private volatile long[] locations = new long[1024];
+    private volatile int count;
+
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        long size;
+        // Set once the segment is sealed and no longer written
+        volatile Mapping mapping;
+        // Set for segments stored in compressed form; such a segment is
+        // replaced as a whole, so this never changes after publication
+        CompressedIndex compressed;
+
+        Segment(Path path, FileChannel channel, long size) {
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A mapping of a segment file that is unmapped when it has been retired
+     * and no reader uses it any more.
+     */
+    private static class Mapping {
+        final MappedByteBuffer buffer;
+        // One for the segment plus one per reader; 0 once unmapped
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private final AtomicBoolean retired = new AtomicBoolean();
+        private boolean unmapped; // Guarded by this
+
+        Mapping(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /** @return False if the mapping was already unmapped. */
+        boolean acquire() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0)
+                    return false;
+                if (refs.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                unmap(buffer);
+                synchronized (this) {
+                    unmapped = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        // Drops the segment's reference and waits until the last reader is
+        // done and the file is no longer mapped
+        void retire() {
+            if (!retired.compareAndSet(false, true))
+                return;
+            release();
+            boolean interrupted = false;
+            synchronized (this) {
+                while (!unmapped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // A record header, and its payload if it was read
+    private static class Record {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final int crc;
+
+        Record(byte[] data, int offset, int length, int crc) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * The chunk table of a compressed segment. Raw offsets are offsets in the
+     * uncompressed records, so they match the offsets the records had before
+     * the segment was compressed.
+     */
+    private static class CompressedIndex {
+        final CompressionCodec codec;
+        final long[] fileOffsets;
+        final int[] compressedLengths;
+        final int[] rawStarts;
+        final int[] rawLengths;
+        final int[] recordOffsets;
+
+        CompressedIndex(CompressionCodec codec, int chunks, int records) {
+            this.codec = codec;
+            this.fileOffsets = new long[chunks];
+            this.compressedLengths = new int[chunks];
+            this.rawStarts = new int[chunks];
+            this.rawLengths = new int[chunks];
+            this.recordOffsets = new int[records];
+        }
+
+        // The chunk holding the record at this raw offset
+        int chunkAt(long rawOffset) {
+            int lo = 0;
+            int hi = rawStarts.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (rawStarts[mid] <= rawOffset) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private static class Chunk {
+        final CompressedIndex owner;
+        final int number;
+        final byte[] raw;
+
+        Chunk(CompressedIndex owner, int number, byte[] raw) {
+            this.owner = owner;
+            this.number = number;
+            this.raw = raw;
+        }
+    }
+
+    public SegmentedBlockStore(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    public SegmentedBlockStore(Path directory, long maxSegmentBytes) throws IOException {
+        this(directory, maxSegmentBytes, null);
+    }
+
+    /**
+     * @param codec Compresses segments as they are sealed, or null to keep
+     *              them uncompressed. Segments that are already compressed are
+     *              read either way.
+     */
+    public SegmentedBlockStore(Path directory, long maxSegmentBytes, CompressionCodec codec) throws IOException {
+        if (maxSegmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments larger than 2GB cannot be memory-mapped");
+        }
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.codec = codec;
+        Files.createDirectories(directory);
+        openSegments();
+        if (codec == null) {
+            compressor = null;
+            return;
+        }
+        compressor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "segment-compressor");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Segment segment = segments.get(i);
+            if (segment.compressed == null) {
+                scheduleCompression(i, segment);
+            }
+        }
+    }
+
+    @Override
+    public synchronized long sizeInBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.size;
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized void append(Block block) throws IOException {
+        writeRecord(BlockCodec.encode(block));
+    }
+
+    @Override
+    public synchronized void appendAll(List<Block> blocks) throws IOException {
+        for (Block block : blocks) {
+            writeRecord(BlockCodec.encode(block));
+        }
+        sync();
+    }
+
+    @Override
+    public Block read(int position) throws IOException {
+        Record record = readRecord(position, true);
+        if (crc32(record.data, record.offset, record.length) != record.crc) {
+            throw new IOException("Checksum mismatch for block at position " + position);
+        }
+        return BlockCodec.decode(record.data, record.offset, record.length);
+    }
+
+    @Override
+    public byte[] readEncoded(int position) throws IOException {
+        Record record = readRecord(position, true);
+        if (crc32(record.data, record.offset, record.length) != record.crc) {
+            throw new IOException("Checksum mismatch for block at position " + position);
+        }
+        if (record.offset == 0 && record.length == record.data.length) {
+            return record.data;
+        }
+        return java.util.Arrays.copyOfRange(record.data, record.offset, record.offset + record.length);
+    }
+
+    @Override
+    public int checksum(int position) throws IOException {
+        return readRecord(position, false).crc;
+    }
+
+    private Record readRecord(int position, boolean withPayload) throws IOException {
+        long location = locate(position);
+        int number = (int) (location >>> OFFSET_BITS);
+        long offset = location & OFFSET_MASK;
+        while (true) {
+            Segment segment = segments.get(number);
+            Mapping mapping = segment.mapping;
+            if (mapping != null && !mapping.acquire()) {
+                if (segments.get(number) != segment)
+                    continue; // Replaced by its compressed form
+                mapping = null;
+            }
+            try {
+                return readRecord(segment, mapping, offset, withPayload);
+            } finally {
+                if (mapping != null) {
+                    mapping.release();
+                }
+            }
+        }
+    }
+
+    // 'mapping' is the segment's mapping with a reference held, or null to
+    // read through the channel
+    private Record readRecord(Segment segment, Mapping mapping, long offset, boolean withPayload)
+            throws IOException {
+        CompressedIndex compressed = segment.compressed;
+        if (compressed != null) {
+            if (mapping == null) {
+                throw new IOException("Block segment " + segment.path + " is closed");
+            }
+            int chunkNumber = compressed.chunkAt(offset);
+            byte[] raw = inflateChunk(mapping, compressed, chunkNumber);
+            int pos = (int) (offset - compressed.rawStarts[chunkNumber]);
+            ByteBuffer record = ByteBuffer.wrap(raw);
+            int length = record.getInt(pos);
+            if (length < 0 || pos + HEADER_BYTES + length > raw.length) {
+                throw new IOException("Corrupt record at offset " + offset + " in " + segment.path);
+            }
+            return new Record(raw, pos + HEADER_BYTES, length, record.getInt(pos + 4));
+        } else if (mapping != null) {
+            // Absolute gets do not touch the buffer position, so sharing is safe
+            int pos = (int) offset;
+            int length = mapping.buffer.getInt(pos);
+            byte[] data = null;
+            if (withPayload) {
+                data = new byte[length];
+                mapping.buffer.get(pos + HEADER_BYTES, data);
+            }
+            return new Record(data, 0, length, mapping.buffer.getInt(pos + 4));
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(segment.channel, header, offset);
+            int length = header.getInt(0);
+            byte[] data = null;
+            if (withPayload) {
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(segment.channel, payload, offset + HEADER_BYTES);
+                data = payload.array();
+            }
+            return new Record(data, 0, length, header.getInt(4));
+        }
+    }
+
+    private long locate(int position) {
+        int size = count;
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Block position " + position + " out of range, size " + size);
+        }
+        return locations[position];
+    }
+
+    // The caller holds a reference on the mapping
+    private byte[] inflateChunk(Mapping mapping, CompressedIndex index, int chunkNumber) throws IOException {
+        int slot = (System.identityHashCode(index) * 31 + chunkNumber) & (CHUNK_CACHE_SLOTS - 1);
+        Chunk cached = chunkCache.get(slot);
+        if (cached != null && cached.owner == index && cached.number == chunkNumber) {
+            return cached.raw;
+        }
+
+        byte[] packed = new byte[index.compressedLengths[chunkNumber]];
+        mapping.buffer.get((int) index.fileOffsets[chunkNumber], packed);
+        byte[] raw = index.codec.decompress(packed, 0, packed.length, index.rawLengths[chunkNumber]);
+        CHUNKS_INFLATED.increment();
+        chunkCache.set(slot, new Chunk(index, chunkNumber, raw));
+        return raw;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized void truncate(int size) throws IOException {
+        if (size < 0 || size > count) {
+            throw new IndexOutOfBoundsException("Cannot truncate to " + size + " blocks, size " + count);
+        }
+        if (size == count)
+            return;
+        int keepSegment;
+        long keepBytes;
+        if (size == 0) {
+            keepSegment = 0;
+            keepBytes = 0;
+        } else {
+            long location = locations[size];
+            keepSegment = (int) (location >>> OFFSET_BITS);
+            keepBytes = location & OFFSET_MASK;
+        }
+        // Readers check positions against the count first
+        count = size;
+
+        // A segment being compressed stays mapped until the compressor is done
+        synchronized (compressionLock) {
+            truncateSegments(keepSegment, keepBytes);
+        }
+    }
+
+    private void truncateSegments(int keepSegment, long keepBytes) throws IOException {
+        // Later segments go first, so a crash leaves a shorter but complete chain
+        while (segments.size() > keepSegment + 1) {
+            Segment removed = segments.remove(segments.size() - 1);
+            retire(removed);
+            removed.channel.close();
+            Files.delete(removed.path);
+        }
+        if (segments.isEmpty())
+            return;
+        Segment last = segments.get(keepSegment);
+        if (last.compressed != null) {
+            last = decompressSegment(keepSegment, keepBytes);
+        }
+        retire(last);
+        last.channel.truncate(keepBytes);
+        last.channel.force(true);
+        last.size = keepBytes;
+    }
+
+    /**
+     * Rewrites the first {@code rawBytes} of a compressed segment as a plain
+     * segment, so it can be truncated and appended to. The plain file is moved
+     * into place before the compressed one is deleted; a crash in between
+     * leaves both, and the compressed one is kept when the store is opened.
+     */
+    private Segment decompressSegment(int number, long rawBytes) throws IOException {
+        Segment compressedSegment = segments.get(number);
+        CompressedIndex index = compressedSegment.compressed;
+        Path target = directory.resolve(segmentName(number, SEGMENT_SUFFIX));
+        Path temp = directory.resolve(segmentName(number, SEGMENT_SUFFIX) + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            for (int c = 0; c < index.rawStarts.length && written < rawBytes; c++) {
+                // The store's locks keep the mapping from being retired
+                byte[] raw = inflateChunk(compressedSegment.mapping, index, c);
+                int length = (int) Math.min(raw.length, rawBytes - written);
+                written += writeFully(out, ByteBuffer.wrap(raw, 0, length), written);
+            }
+            out.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        FileChannel channel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment plain = new Segment(target, channel, channel.size());
+        segments.set(number, plain);
+        retire(compressedSegment);
+        compressedSegment.channel.close();
+        Files.delete(compressedSegment.path);
+        return plain;
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            if (last.compressed == null) {
+                last.channel.force(false);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Stops a compression in progress; the segment stays uncompressed
+        closed = true;
+        if (compressor != null) {
+            compressor.shutdown();
+            try {
+                compressor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeSegments();
+    }
+
+    private synchronized void closeSegments() throws IOException {
+        sync();
+        for (Segment segment : segments) {
+            retire(segment);
+            segment.channel.close();
+        }
+        segments.clear();
+        for (int i = 0; i < CHUNK_CACHE_SLOTS; i++) {
+            chunkCache.set(i, null);
+        }
+    }
+
+    private void writeRecord(byte[] payload) throws IOException {
+        int recordLength = HEADER_BYTES + payload.length;
+        Segment active = activeSegment();
+        if (active.size > 0 && active.size + recordLength > maxSegmentBytes) {
+            active = rollSegment();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(payload.length);
+        record.putInt(crc32(payload, 0, payload.length));
+        record.put(payload);
+        record.flip();
+
+        long offset = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size += recordLength;
+        addLocation(segments.size() - 1, offset);
+    }
+
+    private Segment activeSegment() throws IOException {
+        // A compressed segment is sealed, so appends go to a new one
+        if (segments.isEmpty() || segments.get(segments.size() - 1).compressed != null) {
+            return createSegment(segments.size());
+        }
+        return segments.get(segments.size() - 1);
+    }
+
+    private Segment rollSegment() throws IOException {
+        // The sealed segment is never written again, so make it durable now
+        Segment sealed = activeSegment();
+        sealed.channel.force(false);
+        sealed.mapping = new Mapping(sealed.channel.map(FileChannel.MapMode.READ_ONLY, 0, sealed.size));
+        if (compressor != null) {
+            scheduleCompression(segments.size() - 1, sealed);
+        }
+        return createSegment(segments.size());
+    }
+
+    private void scheduleCompression(int number, Segment sealed) {
+        compressor.execute(() -> {
+            try {
+                compressSegment(number, sealed);
+            } catch (IOException e) {
+                // The uncompressed segment is still complete and readable
+                if (!closed) {
+                    System.err.println("Failed to compress block segment " + sealed.path + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrites a sealed segment in compressed form. The compressed file is
+     * written under a temporary name without holding the store's lock, then
+     * moved into place before the uncompressed one is deleted, so a crash
+     * leaves at least one complete copy. Readers see either the old or the
+     * new segment. Nothing is replaced if the segment was truncated or the
+     * store closed in the meantime.
+     */
+    private void compressSegment(int number, Segment sealed) throws IOException {
+        Path target = directory.resolve(segmentName(number, COMPRESSED_SUFFIX));
+        Path temp = directory.resolve(segmentName(number, COMPRESSED_SUFFIX) + ".tmp");
+        synchronized (compressionLock) {
+            Mapping source = sealed.mapping;
+            if (closed || source == null || !source.acquire())
+                return;
+            try {
+                writeCompressed(source.buffer, (int) sealed.size, temp);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            } finally {
+                source.release();
+            }
+        }
+
+        synchronized (this) {
+            if (closed || number >= segments.size() || segments.get(number) != sealed || sealed.mapping == null) {
+                Files.deleteIfExists(temp);
+                return;
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Segment replacement = openCompressedSegment(target);
+            segments.set(number, replacement);
+            // Readers still on the old segment finish first, then look up the new one
+            retire(sealed);
+            sealed.channel.close();
+            Files.delete(sealed.path);
+        }
+    }
+
+    private void writeCompressed(MappedByteBuffer source, int limit, Path temp) throws IOException {
+
+        int records = 0;
+        for (int offset = 0; offset < limit; offset += HEADER_BYTES + source.getInt(offset)) {
+            records++;
+        }
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream chunkTable = new DataOutputStream(indexBytes);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(records * 4);
+        DataOutputStream recordTable = new DataOutputStream(recordBytes);
+
+        int chunks = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER_BYTES);
+            header.putInt(COMPRESSED_MAGIC).put((byte) codec.getId()).flip();
+            long filePosition = writeFully(out, header, 0);
+
+            byte[] raw = new byte[CHUNK_BYTES];
+            int chunkStart = 0;
+            while (chunkStart < limit) {
+                if (closed) {
+                    throw new IOException("Block store closed");
+                }
+                // A chunk ends at the first record boundary past CHUNK_BYTES
+                int chunkEnd = chunkStart;
+                while (chunkEnd < limit && chunkEnd - chunkStart < CHUNK_BYTES) {
+                    recordTable.writeInt(chunkEnd);
+                    chunkEnd += HEADER_BYTES + source.getInt(chunkEnd);
+                }
+                int rawLength = chunkEnd - chunkStart;
+                if (raw.length < rawLength) {
+                    raw = new byte[rawLength];
+                }
+                source.get(chunkStart, raw, 0, rawLength);
+                byte[] packed = codec.compress(raw, 0, rawLength);
+
+                chunkTable.writeLong(filePosition);
+                chunkTable.writeInt(packed.length);
+                chunkTable.writeInt(rawLength);
+                filePosition += writeFully(out, ByteBuffer.wrap(packed), filePosition);
+                chunks++;
+                chunkStart = chunkEnd;
+            }
+
+            ByteArrayOutputStream indexOut = new ByteArrayOutputStream(4 + indexBytes.size() + 4 + recordBytes.size());
+            DataOutputStream index = new DataOutputStream(indexOut);
+            index.writeInt(chunks);
+            indexBytes.writeTo(index);
+            index.writeInt(records);
+            recordBytes.writeTo(index);
+            byte[] indexData = indexOut.toByteArray();
+
+            ByteBuffer trailer = ByteBuffer.allocate(COMPRESSED_TRAILER_BYTES);
+            trailer.putLong(filePosition).putInt(indexData.length).putInt(crc32(indexData, 0, indexData.length))
+                    .putInt(COMPRESSED_MAGIC).flip();
+            filePosition += writeFully(out, ByteBuffer.wrap(indexData), filePosition);
+            writeFully(out, trailer, filePosition);
+            out.force(true);
+        }
+    }
+
+    private Segment openCompressedSegment(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        Segment segment = null;
+        try {
+            segment = new Segment(path, channel, channel.size());
+            if (segment.size > Integer.MAX_VALUE) {
+                throw new IOException("Compressed segment " + path + " is larger than 2GB");
+            }
+            segment.mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size));
+            segment.compressed = readCompressedIndex(segment);
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            if (segment != null) {
+                retire(segment);
+            }
+            channel.close();
+            throw e;
+        }
+    }
+
+    private CompressedIndex readCompressedIndex(Segment segment) throws IOException {
+        MappedByteBuffer mapped = segment.mapping.buffer;
+        int size = mapped.limit();
+        int trailerStart = size - COMPRESSED_TRAILER_BYTES;
+        if (trailerStart < COMPRESSED_HEADER_BYTES || mapped.getInt(0) != COMPRESSED_MAGIC
+                || mapped.getInt(size - 4) != COMPRESSED_MAGIC) {
+            throw new IOException("Not a compressed block segment: " + segment.path);
+        }
+        int codecId = mapped.get(4) & 0xFF;
+        CompressionCodec segmentCodec = codec != null && codec.getId() == codecId ? codec
+                : CompressionCodec.forId(codecId);
+        if (segmentCodec == null) {
+            throw new IOException("Unknown compression codec " + codecId + " in " + segment.path);
+        }
+
+        long indexOffset = mapped.getLong(trailerStart);
+        int indexLength = mapped.getInt(trailerStart + 8);
+        int indexCrc = mapped.getInt(trailerStart + 12);
+        if (indexOffset < COMPRESSED_HEADER_BYTES || indexLength < 8 || indexOffset + indexLength != trailerStart) {
+            throw new IOException("Corrupt chunk index in " + segment.path);
+        }
+        byte[] indexData = new byte[indexLength];
+        mapped.get((int) indexOffset, indexData);
+        if (crc32(indexData, 0, indexLength) != indexCrc) {
+            throw new IOException("Checksum mismatch for chunk index in " + segment.path);
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(indexData);
+        int chunks = in.getInt();
+        if (chunks < 1 || (long) chunks * 16 + 8 > indexLength) {
+            throw new IOException("Corrupt chunk index in " + segment.path);
+        }
+        int records = in.getInt(4 + chunks * 16);
+        if (records < 1 || 8 + chunks * 16 + (long) records * 4 != indexLength) {
+            throw new IOException("Corrupt chunk index in " + segment.path);
+        }
+        CompressedIndex index = new CompressedIndex(segmentCodec, chunks, records);
+        long rawStart = 0;
+        for (int c = 0; c < chunks; c++) {
+            index.fileOffsets[c] = in.getLong();
+            index.compressedLengths[c] = in.getInt();
+            index.rawLengths[c] = in.getInt();
+            index.rawStarts[c] = (int) rawStart;
+            rawStart += index.rawLengths[c];
+            if (index.fileOffsets[c] < COMPRESSED_HEADER_BYTES || index.compressedLengths[c] < 0
+                    || index.fileOffsets[c] + index.compressedLengths[c] > indexOffset || index.rawLengths[c] < 1
+                    || rawStart > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt chunk index in " + segment.path);
+            }
+        }
+        in.getInt(); // Record count, read above
+        for (int r = 0; r < records; r++) {
+            int offset = in.getInt();
+            if (offset < 0 || offset >= rawStart || (r > 0 && offset <= index.recordOffsets[r - 1])) {
+                throw new IOException("Corrupt record index in " + segment.path);
+            }
+            index.recordOffsets[r] = offset;
+        }
+        return index;
+    }
+
+    private Segment createSegment(int number) throws IOException {
+        Path path = directory.resolve(segmentName(number, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Segment segment = new Segment(path, channel, 0);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void openSegments() throws IOException {
+        TreeMap<Integer, Path> plain = new TreeMap<>();
+        TreeMap<Integer, Path> compressed = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    plain.put(segmentNumber(name, SEGMENT_SUFFIX), p);
+                } else if (name.endsWith(COMPRESSED_SUFFIX)) {
+                    compressed.put(segmentNumber(name, COMPRESSED_SUFFIX), p);
+                } else if (name.endsWith(COMPRESSED_SUFFIX + ".tmp") || name.endsWith(SEGMENT_SUFFIX + ".tmp")) {
+                    // A compression or truncation that was cut short; the
+                    // segment is intact
+                    Files.delete(p);
+                }
+            }
+        }
+        int segmentCount = 0;
+        if (!plain.isEmpty())
+            segmentCount = plain.lastKey() + 1;
+        if (!compressed.isEmpty())
+            segmentCount = Math.max(segmentCount, compressed.lastKey() + 1);
+
+        for (int i = 0; i < segmentCount; i++) {
+            Path compressedPath = compressed.get(i);
+            if (compressedPath != null) {
+                Path stale = plain.get(i);
+                if (stale != null) {
+                    // Left behind by a crash right after the segment was compressed
+                    System.err.println("Removing uncompressed copy of " + compressedPath);
+                    Files.delete(stale);
+                }
+                Segment segment = openCompressedSegment(compressedPath);
+                segments.add(segment);
+                for (int offset : segment.compressed.recordOffsets) {
+                    addLocation(i, offset);
+                }
+                continue;
+            }
+
+            Path path = plain.get(i);
+            if (path == null) {
+                throw new IOException("Missing block segment " + segmentName(i, SEGMENT_SUFFIX) + " in " + directory);
+            }
+            boolean last = i == segmentCount - 1;
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(path, channel, channel.size());
+            segments.add(segment);
+            if (last) {
+                scanSegment(i, segment);
+            } else {
+                segment.mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size));
+                scanSealedSegment(i, segment);
+            }
+        }
+    }
+
+    // Sealed segments are trusted to be complete, so only the length prefixes
+    // are followed here. Checksums are verified when a block is read.
+    private void scanSealedSegment(int number, Segment segment) throws IOException {
+        MappedByteBuffer mapped = segment.mapping.buffer;
+        int limit = mapped.limit();
+        int offset = 0;
+        while (offset < limit) {
+            int length = offset + HEADER_BYTES <= limit ? mapped.getInt(offset) : -1;
+            if (length < 0 || (long) offset + HEADER_BYTES + length > limit) {
+                throw new IOException("Corrupt record at offset " + offset + " in " + segment.path);
+            }
+            addLocation(number, offset);
+            offset += HEADER_BYTES + length;
+        }
+    }
+
+    // Rebuilds the location index for the last segment, the only one that can
+    // hold a partially written record. It is truncated back to the last good one.
+    private void scanSegment(int number, Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long offset = 0;
+        while (offset < segment.size) {
+            boolean intact = offset + HEADER_BYTES <= segment.size;
+            int length = 0;
+            if (intact) {
+                header.clear();
+                readFully(segment.channel, header, offset);
+                header.flip();
+                length = header.getInt();
+                int crc = header.getInt();
+                intact = length >= 0 && offset + HEADER_BYTES + length <= segment.size;
+                if (intact) {
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(segment.channel, payload, offset + HEADER_BYTES);
+                    intact = crc32(payload.array(), 0, length) == crc;
+                }
+            }
+
+            if (!intact) {
+                System.err.println("Truncating torn block record at offset " + offset + " in " + segment.path);
+                segment.channel.truncate(offset);
+                segment.size = offset;
+                break;
+            }
+
+            addLocation(number, offset);
+            offset += HEADER_BYTES + length;
+        }
+    }
+
+    // Unmaps the segment once its readers are done, so its file can be changed
+    private static void retire(Segment segment) {
+        Mapping mapping = segment.mapping;
+        if (mapping != null) {
+            segment.mapping = null;
+            mapping.retire();
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null)
+            return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Failed to unmap block segment: " + e);
+        }
+    }
+
+    private void addLocation(int segmentNumber, long offset) {
+        long[] current = locations;
+        int n = count;
+        if (n == current.length) {
+            current = Arrays.copyOf(current, n * 2);
+            locations = current;
+        }
+        current[n] = ((long) segmentNumber << OFFSET_BITS) | offset;
+        count = n + 1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + length - buffer.remaining());
+        }
+        return length;
+    }
+
+    private static int crc32(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static String segmentName(int number, String suffix) {
+        return String.format("%s%06d%s", SEGMENT_PREFIX, number, suffix);
+    }
+
+    private static int segmentNumber(String name, String suffix) throws IOException {
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - suffix.length()));
+        } catch (RuntimeException e) {
+            throw new IOException("Unexpected file in block store: " + name);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.blockchain.storage;
+
+/**
+ * Decides when a {@link PersistencePipeline} forces appended blocks to disk.
+ * A block's future completes only once a sync covers it, so the policy trades
+ * append latency against the number of fsync calls.
+ */
+public final class SyncPolicy {
+
+    enum Mode {
+        PER_BLOCK, EVERY_N_BLOCKS, EVERY_MILLIS
+    }
+
+    private final Mode mode;
+    private final long value;
+
+    private SyncPolicy(Mode mode, long value) {
+        this.mode = mode;
+        this.value = value;
+    }
+
+    /**
+     * Every block is durable before its future completes. Blocks that are
+     * queued together still share one sync.
+     */
+    public static SyncPolicy perBlock() {
+        return new SyncPolicy(Mode.PER_BLOCK, 1);
+    }
+
+    /**
+     * Sync once {@code blocks} blocks are waiting, or on flush/close.
+     */
+    public static SyncPolicy everyBlocks(int blocks) {
+        if (blocks < 1) {
+            throw new IllegalArgumentException("blocks must be at least 1");
+        }
+        return new SyncPolicy(Mode.EVERY_N_BLOCKS, blocks);
+    }
+
+    /**
+     * Sync when the oldest waiting block has waited {@code millis}
+     * milliseconds, or on flush/close.
+     */
+    public static SyncPolicy everyMillis(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("millis must be at least 1");
+        }
+        return new SyncPolicy(Mode.EVERY_MILLIS, millis);
+    }
+
+    /**
+     * @param unsynced       Number of appended blocks not yet synced.
+     * @param oldestAgeNanos How long the oldest of them has waited.
+     */
+    boolean shouldSync(int unsynced, long oldestAgeNanos) {
+        if (unsynced == 0)
+            return false;
+        switch (mode) {
+            case EVERY_N_BLOCKS:
+                return unsynced >= value;
+            case EVERY_MILLIS:
+                return oldestAgeNanos >= value * 1_000_000L;
+            case PER_BLOCK:
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return How long the writer may wait for more blocks before it has to
+     *         check the policy again, in nanoseconds.
+     */
+    long maxWaitNanos(long oldestAgeNanos) {
+        if (mode == Mode.EVERY_MILLIS) {
+            return Math.max(0, value * 1_000_000L - oldestAgeNanos);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case EVERY_N_BLOCKS:
+                return "every " + value + " blocks";
+            case EVERY_MILLIS:
+                return "every " + value + " ms";
+            case PER_BLOCK:
+            default:
+                return "per block";
+        }
+    }
+}
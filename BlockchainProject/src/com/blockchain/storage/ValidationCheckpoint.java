@@ -0,0 +1,97 @@
+package com.blockchain.storage;
+
+import com.blockchain.model.Hash256;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Records that the first {@code blockCount} blocks of the chain have been
+ * validated.
+ * 
+ * Stored with the count are the hash of the last validated block and a
+ * {@link PrefixDigest} over the stored checksums of every block in the prefix.
+ * The tip hash alone only covers the last block as stored, since its hash
+ * field is read rather than recomputed; the prefix digest changes if any
+ * stored block in the prefix is replaced.
+ */
+public class ValidationCheckpoint {
+
+    private static final int MAGIC = 0x56434b32; // "VCK2"
+    private static final int MAGIC_V1 = 0x56434b31; // "VCK1", without the prefix digest
+
+    private final int blockCount;
+    private final Hash256 tipHash;
+    private final Hash256 prefixDigest;
+
+    public ValidationCheckpoint(int blockCount, Hash256 tipHash, Hash256 prefixDigest) {
+        this.blockCount = blockCount;
+        this.tipHash = tipHash;
+        this.prefixDigest = prefixDigest;
+    }
+
+    /** @return The number of leading blocks that were validated. */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /** @return The hash of the last validated block. */
+    public Hash256 getTipHash() {
+        return tipHash;
+    }
+
+    /** @return The {@link PrefixDigest} of the validated blocks. */
+    public Hash256 getPrefixDigest() {
+        return prefixDigest;
+    }
+
+    /**
+     * Reads a checkpoint file.
+     * 
+     * @return The checkpoint, or null if the file does not exist or was
+     *         written before prefix digests were kept.
+     */
+    public static ValidationCheckpoint load(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            DataInputStream data = new DataInputStream(in);
+            int magic = data.readInt();
+            if (magic == MAGIC_V1)
+                return null;
+            if (magic != MAGIC) {
+                throw new IOException("Not a validation checkpoint: " + file);
+            }
+            int blockCount = data.readInt();
+            byte[] hash = new byte[Hash256.BYTES];
+            data.readFully(hash);
+            byte[] digest = new byte[Hash256.BYTES];
+            data.readFully(digest);
+            return new ValidationCheckpoint(blockCount, Hash256.fromBytes(hash), Hash256.fromBytes(digest));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the checkpoint through a temporary file, so a crash never leaves
+     * a half-written checkpoint behind.
+     */
+    public void save(Path file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeInt(blockCount);
+        data.write(tipHash.toBytes());
+        data.write(prefixDigest.toBytes());
+        data.flush();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
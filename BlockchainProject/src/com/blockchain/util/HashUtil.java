@@ -1,29 +1,111 @@
 package com.blockchain.util;
 
+import com.blockchain.metrics.Counter;
+import com.blockchain.metrics.MetricsRegistry;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class HashUtil {
 
+    /** Length of a SHA-256 digest in bytes. */
+    public static final int DIGEST_LENGTH = 32;
+
+    private static final Counter HASH_CALLS = MetricsRegistry.global().counter("hash_calls_total",
+            "SHA-256 digests computed through HashUtil");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // MessageDigest is not thread-safe, so each thread reuses its own instance
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(HashUtil::newSha256);
+
     /**
      * Applies SHA-256 to a string and returns the result.
-     * 
+     *
      * @param input The string to hash.
      * @return The SHA-256 hash in hexadecimal format.
      */
     public static String applySha256(String input) {
+        return toHex(sha256(input.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Applies SHA-256 to a byte array.
+     *
+     * @param input The bytes to hash.
+     * @return The 32-byte digest.
+     */
+    public static byte[] sha256(byte[] input) {
+        return sha256(input, 0, input.length);
+    }
+
+    /**
+     * Applies SHA-256 to a range of a byte array.
+     *
+     * @return The 32-byte digest.
+     */
+    public static byte[] sha256(byte[] input, int offset, int length) {
+        HASH_CALLS.increment();
+        MessageDigest digest = SHA256.get();
+        digest.update(input, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * Applies SHA-256 to the remaining bytes of a buffer. The buffer's position
+     * is moved to its limit.
+     *
+     * @return The 32-byte digest.
+     */
+    public static byte[] sha256(ByteBuffer input) {
+        HASH_CALLS.increment();
+        MessageDigest digest = SHA256.get();
+        digest.update(input);
+        return digest.digest();
+    }
+
+    /**
+     * Applies SHA-256 to a range of a byte array and writes the digest into
+     * {@code out} at {@code outOffset}, without allocating.
+     */
+    public static void sha256(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        HASH_CALLS.increment();
+        MessageDigest digest = SHA256.get();
+        digest.update(input, offset, length);
+        try {
+            digest.digest(out, outOffset, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException("Output buffer too small for a SHA-256 digest", e);
+        }
+    }
+
+    /**
+     * Encodes bytes as lowercase hexadecimal, for display and the JSON format.
+     */
+    public static String toHex(byte[] bytes) {
+        return toHex(bytes, 0, bytes.length);
+    }
+
+    public static String toHex(byte[] bytes, int offset, int length) {
+        char[] hex = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xFF;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return A new SHA-256 digest, for callers that hash in a tight loop on
+     *         one thread and want to skip the per-call thread-local lookup.
+     */
+    public static MessageDigest newSha256() {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            // Applies sha256 to our input,
-            byte[] hash = digest.digest(input.getBytes("UTF-8"));
-            
-            StringBuffer hexString = new StringBuffer(); // This will contain hash as hexidecimal
-            for (int i = 0; i < hash.length; i++) {
-                String hex = Integer.toHexString(0xff & hash[i]);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
-        } catch (Exception e) {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
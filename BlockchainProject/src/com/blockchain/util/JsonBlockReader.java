@@ -0,0 +1,599 @@
+package com.blockchain.util;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A streaming reader for chains saved in the JSON format.
+ * 
+ * The input is read once, through a fixed-size buffer, and blocks are built
+ * directly from the bytes without intermediate maps, substrings or boxed
+ * numbers. String values may contain any JSON escape (including {@code \"},
+ * and {@code "},"} inside a string is handled like any other text). Keys the
+ * reader does not know are skipped.
+ */
+public class JsonBlockReader implements Closeable {
+
+    private static final byte[] KEY_VERSION = ascii("version");
+    private static final byte[] KEY_INDEX = ascii("index");
+    private static final byte[] KEY_TIMESTAMP = ascii("timestamp");
+    private static final byte[] KEY_PREVIOUS_HASH = ascii("previousHash");
+    private static final byte[] KEY_HASH = ascii("hash");
+    private static final byte[] KEY_MERKLE_ROOT = ascii("merkleRoot");
+    private static final byte[] KEY_DIFFICULTY = ascii("difficulty");
+    private static final byte[] KEY_NONCE = ascii("nonce");
+    private static final byte[] KEY_TRANSACTIONS = ascii("transactions");
+    private static final byte[] KEY_SENDER = ascii("sender");
+    private static final byte[] KEY_RECIPIENT = ascii("recipient");
+    private static final byte[] KEY_AMOUNT = ascii("amount");
+
+    // Powers of ten that are exact as doubles, for the fast decimal path
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int pos;
+    private int limit;
+    private long consumed; // Bytes before buffer[0], for error messages
+
+    // Scratch space for keys, string values and numbers
+    private byte[] scratch = new byte[256];
+    private int scratchLength;
+    // Where a high surrogate escape was written as '?', or -1
+    private int highSurrogateAt = -1;
+    private char highSurrogate;
+
+    private boolean started;
+    private boolean finished;
+    private int skippedBlocks;
+
+    public JsonBlockReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next block of the top-level array. Blocks without an index or
+     * timestamp, or with malformed hashes, are reported and skipped, as the old
+     * loader did.
+     * 
+     * @return The block, or null when the array has ended.
+     */
+    public Block nextBlock() throws IOException {
+        Block block;
+        do {
+            if (!advanceToElement()) {
+                return null;
+            }
+            block = readBlock();
+            if (block == null) {
+                skippedBlocks++;
+            }
+        } while (block == null);
+        return block;
+    }
+
+    // Moves past the '[' or ',' before the next block; false at the end
+    private boolean advanceToElement() throws IOException {
+        if (finished) {
+            return false;
+        }
+        int c = skipWhitespace();
+        if (!started) {
+            started = true;
+            if (c == -1) { // Empty file, empty chain
+                finished = true;
+                return false;
+            }
+            expect('[');
+            if (skipWhitespace() != ']') {
+                return true;
+            }
+        } else if (c == ',') {
+            pos++;
+            return true;
+        } else if (c != ']') {
+            throw error("Expected ',' or ']'");
+        }
+        pos++; // The closing ']'
+        finished = true;
+        return false;
+    }
+
+    /**
+     * Reads a single transaction object, or an array of them, as the whole
+     * input. Transactions without a timestamp get 0.
+     */
+    public List<Transaction> readTransactionList() throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        int c = skipWhitespace();
+        if (c == '{') {
+            transactions.add(readTransaction());
+        } else if (c == '[') {
+            readTransactions(transactions);
+        } else {
+            throw error("Expected a transaction object or array");
+        }
+        if (skipWhitespace() != -1) {
+            throw error("Unexpected data after the transactions");
+        }
+        return transactions;
+    }
+
+    /**
+     * Reads all remaining blocks.
+     */
+    public List<Block> readAll() throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        Block block;
+        while ((block = nextBlock()) != null) {
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    /** @return The number of blocks skipped so far because they were malformed. */
+    public int getSkippedBlocks() {
+        return skippedBlocks;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private Block readBlock() throws IOException {
+        int version = Block.VERSION_LEGACY; // Files without a version predate it
+        int index = 0;
+        long timestamp = 0;
+        String previousHash = null;
+        String hash = null;
+        String merkleRoot = null;
+        int difficulty = 0;
+        long nonce = 0;
+        List<Transaction> transactions = new ArrayList<>();
+        boolean hasIndex = false;
+        boolean hasTimestamp = false;
+
+        expect('{');
+        if (!endOfObject()) {
+            do {
+                readKey();
+                if (keyIs(KEY_VERSION)) {
+                    version = (int) readLong();
+                } else if (keyIs(KEY_INDEX)) {
+                    index = (int) readLong();
+                    hasIndex = true;
+                } else if (keyIs(KEY_TIMESTAMP)) {
+                    timestamp = readLong();
+                    hasTimestamp = true;
+                } else if (keyIs(KEY_PREVIOUS_HASH)) {
+                    previousHash = readString();
+                } else if (keyIs(KEY_HASH)) {
+                    hash = readString();
+                } else if (keyIs(KEY_MERKLE_ROOT)) {
+                    merkleRoot = readString();
+                } else if (keyIs(KEY_DIFFICULTY)) {
+                    difficulty = (int) readLong();
+                } else if (keyIs(KEY_NONCE)) {
+                    nonce = readLong();
+                } else if (keyIs(KEY_TRANSACTIONS)) {
+                    readTransactions(transactions);
+                } else {
+                    skipValue();
+                }
+            } while (nextMember());
+        }
+
+        if (!hasIndex || !hasTimestamp) {
+            System.err.println("Failed to parse block: missing index or timestamp near byte " + (consumed + pos));
+            return null;
+        }
+        try {
+            return new Block(index, transactions, Hash256.fromLegacyString(previousHash), timestamp,
+                    Hash256.fromLegacyString(hash), Hash256.fromLegacyString(merkleRoot), version, difficulty, nonce);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Failed to parse block " + index + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void readTransactions(List<Transaction> transactions) throws IOException {
+        if (skipWhitespace() == 'n') {
+            skipValue(); // null
+            return;
+        }
+        expect('[');
+        if (skipWhitespace() == ']') {
+            pos++;
+            return;
+        }
+        do {
+            transactions.add(readTransaction());
+        } while (nextElement());
+    }
+
+    private Transaction readTransaction() throws IOException {
+        String sender = null;
+        String recipient = null;
+        double amount = 0.0;
+        long timestamp = 0;
+
+        expect('{');
+        if (!endOfObject()) {
+            do {
+                readKey();
+                if (keyIs(KEY_SENDER)) {
+                    sender = readString();
+                } else if (keyIs(KEY_RECIPIENT)) {
+                    recipient = readString();
+                } else if (keyIs(KEY_AMOUNT)) {
+                    amount = readDouble();
+                } else if (keyIs(KEY_TIMESTAMP)) {
+                    timestamp = readLong();
+                } else {
+                    skipValue();
+                }
+            } while (nextMember());
+        }
+        return new Transaction(sender, recipient, amount, timestamp);
+    }
+
+    // --- Structure ---
+
+    private boolean endOfObject() throws IOException {
+        if (skipWhitespace() == '}') {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    // After an object member: true if another member follows, false at '}'
+    private boolean nextMember() throws IOException {
+        int c = skipWhitespace();
+        pos++;
+        if (c == ',')
+            return true;
+        if (c == '}')
+            return false;
+        throw error("Expected ',' or '}'");
+    }
+
+    // After an array element: true if another element follows, false at ']'
+    private boolean nextElement() throws IOException {
+        int c = skipWhitespace();
+        pos++;
+        if (c == ',')
+            return true;
+        if (c == ']')
+            return false;
+        throw error("Expected ',' or ']'");
+    }
+
+    private void readKey() throws IOException {
+        expect('"');
+        readStringBytes();
+        expect(':');
+    }
+
+    private boolean keyIs(byte[] key) {
+        if (scratchLength != key.length)
+            return false;
+        for (int i = 0; i < key.length; i++) {
+            if (scratch[i] != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void skipValue() throws IOException {
+        int c = skipWhitespace();
+        if (c == '"') {
+            pos++;
+            readStringBytes();
+        } else if (c == '{' || c == '[') {
+            pos++;
+            int depth = 1;
+            while (depth > 0) {
+                int b = read();
+                if (b == -1)
+                    throw error("Unterminated value");
+                if (b == '"') {
+                    readStringBytes();
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                }
+            }
+        } else {
+            // Number, true, false or null
+            while (true) {
+                int b = peek();
+                if (b == -1 || b == ',' || b == '}' || b == ']' || isWhitespace(b))
+                    break;
+                pos++;
+            }
+        }
+    }
+
+    // --- Values ---
+
+    private String readString() throws IOException {
+        int c = skipWhitespace();
+        if (c == 'n') {
+            skipValue(); // null
+            return null;
+        }
+        expect('"');
+        readStringBytes();
+        return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+    }
+
+    // Reads the rest of a string after its opening quote into 'scratch' as
+    // UTF-8, resolving escapes.
+    private void readStringBytes() throws IOException {
+        scratchLength = 0;
+        highSurrogateAt = -1;
+        while (true) {
+            int b = read();
+            if (b == -1)
+                throw error("Unterminated string");
+            if (b == '"')
+                return;
+            if (b != '\\') {
+                append(b);
+                continue;
+            }
+
+            int e = read();
+            switch (e) {
+                case '"':
+                case '\\':
+                case '/':
+                    append(e);
+                    break;
+                case 'b':
+                    append('\b');
+                    break;
+                case 'f':
+                    append('\f');
+                    break;
+                case 'n':
+                    append('\n');
+                    break;
+                case 'r':
+                    append('\r');
+                    break;
+                case 't':
+                    append('\t');
+                    break;
+                case 'u':
+                    int ch = readHex4();
+                    if (ch >= 0) {
+                        appendUtf16(ch);
+                    }
+                    break;
+                case -1:
+                    throw error("Unterminated string");
+                default:
+                    // Not a JSON escape; keep it as written
+                    append('\\');
+                    append(e);
+            }
+        }
+    }
+
+    // A high surrogate is written as '?' and replaced once the low surrogate
+    // follows right after it, so an unpaired surrogate ends up as '?', as it
+    // does when a string unescaped by JsonUtil is encoded
+    private void appendUtf16(int ch) {
+        if (Character.isLowSurrogate((char) ch) && highSurrogateAt >= 0 && highSurrogateAt == scratchLength - 1) {
+            scratchLength = highSurrogateAt;
+            highSurrogateAt = -1;
+            appendCodePoint(Character.toCodePoint(highSurrogate, (char) ch));
+        } else if (Character.isHighSurrogate((char) ch)) {
+            highSurrogate = (char) ch;
+            highSurrogateAt = scratchLength;
+            append('?');
+        } else {
+            appendCodePoint(Character.isSurrogate((char) ch) ? '?' : ch);
+        }
+    }
+
+    // Reads the four hex digits of a unicode escape. If they are not all there the
+    // escape is kept as written, like JsonUtil.unescape does, and -1 returned;
+    // the first character that is not a hex digit is left unread.
+    private int readHex4() throws IOException {
+        int start = scratchLength;
+        append('\\');
+        append('u');
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int c = peek();
+            int digit = c >= '0' && c <= '9' ? c - '0'
+                    : c >= 'a' && c <= 'f' ? c - 'a' + 10
+                    : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+            if (digit < 0)
+                return -1;
+            append(read());
+            value = (value << 4) | digit;
+        }
+        scratchLength = start;
+        return value;
+    }
+
+    private long readLong() throws IOException {
+        int c = skipWhitespace();
+        boolean negative = c == '-';
+        if (negative)
+            pos++;
+
+        long value = 0;
+        int digits = 0;
+        while (true) {
+            int b = peek();
+            if (b < '0' || b > '9')
+                break;
+            value = value * 10 + (b - '0');
+            digits++;
+            pos++;
+        }
+        if (digits == 0)
+            throw error("Expected a number");
+        if (peek() == '.' || peek() == 'e' || peek() == 'E') {
+            // Written as a decimal; keep the integer part like a cast would
+            skipValue();
+        }
+        return negative ? -value : value;
+    }
+
+    private double readDouble() throws IOException {
+        int c = skipWhitespace();
+        if (c == '"') {
+            // Amount stored as a string
+            pos++;
+            readStringBytes();
+            return parseDoubleFallback();
+        }
+
+        scratchLength = 0;
+        while (true) {
+            int b = peek();
+            if (b == -1 || !(b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E' || (b >= '0' && b <= '9')))
+                break;
+            append(b);
+            pos++;
+        }
+        if (scratchLength == 0)
+            throw error("Expected a number");
+
+        // Fast path: up to 15 significant digits and a small decimal exponent
+        // can be converted exactly with one multiplication or division.
+        int i = 0;
+        boolean negative = scratch[0] == '-';
+        if (negative)
+            i++;
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean inFraction = false;
+        for (; i < scratchLength; i++) {
+            byte b = scratch[i];
+            if (b >= '0' && b <= '9') {
+                if (mantissa == 0 && b == '0') {
+                    // Leading zeros do not count as significant digits
+                } else {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (inFraction)
+                    fractionDigits++;
+            } else if (b == '.' && !inFraction) {
+                inFraction = true;
+            } else {
+                return parseDoubleFallback();
+            }
+        }
+        if (digits > 15 || fractionDigits >= POWERS_OF_TEN.length) {
+            return parseDoubleFallback();
+        }
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private double parseDoubleFallback() throws IOException {
+        try {
+            return Double.parseDouble(new String(scratch, 0, scratchLength, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return 0.0; // Same default as an unreadable amount in the old loader
+        }
+    }
+
+    // --- Buffer handling ---
+
+    private void append(int b) {
+        if (scratchLength == scratch.length) {
+            scratch = java.util.Arrays.copyOf(scratch, scratch.length * 2);
+        }
+        scratch[scratchLength++] = (byte) b;
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            append(codePoint);
+        } else if (codePoint < 0x800) {
+            append(0xC0 | (codePoint >> 6));
+            append(0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            append(0xE0 | (codePoint >> 12));
+            append(0x80 | ((codePoint >> 6) & 0x3F));
+            append(0x80 | (codePoint & 0x3F));
+        } else {
+            append(0xF0 | (codePoint >> 18));
+            append(0x80 | ((codePoint >> 12) & 0x3F));
+            append(0x80 | ((codePoint >> 6) & 0x3F));
+            append(0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = skipWhitespace();
+        if (c != expected)
+            throw error("Expected '" + expected + "'");
+        pos++;
+    }
+
+    private int skipWhitespace() throws IOException {
+        while (true) {
+            int b = peek();
+            if (!isWhitespace(b))
+                return b;
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill())
+            return -1;
+        return buffer[pos] & 0xFF;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill())
+            return -1;
+        return buffer[pos++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        consumed += limit;
+        pos = 0;
+        limit = 0;
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0)
+            return false;
+        limit = n;
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at byte " + (consumed + pos));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -8,19 +8,123 @@ import java.util.Map;
 /**
  * A simple JSON parser/writer tailored for this Blockchain project.
  * Updated to support list of objects for transactions.
+ * Chain files are read with {@link JsonBlockReader}; the map-based parser
+ * below is kept for callers that want the raw fields.
  */
 public class JsonUtil {
 
     public static String escape(String s) {
         if (s == null)
             return "";
-        return s.replace("\"", "\\\"");
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String replacement;
+            switch (c) {
+                case '"':
+                    replacement = "\\\"";
+                    break;
+                case '\\':
+                    replacement = "\\\\";
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                case '\r':
+                    replacement = "\\r";
+                    break;
+                case '\t':
+                    replacement = "\\t";
+                    break;
+                default:
+                    replacement = c < 0x20 ? String.format("\\u%04x", (int) c) : null;
+            }
+            if (replacement == null) {
+                if (sb != null)
+                    sb.append(c);
+                continue;
+            }
+            if (sb == null) {
+                // First character that needs escaping; copy what came before
+                sb = new StringBuilder(s.length() + 16);
+                sb.append(s, 0, i);
+            }
+            sb.append(replacement);
+        }
+        return sb != null ? sb.toString() : s;
     }
 
     public static String unescape(String s) {
         if (s == null)
             return "";
-        return s.replace("\\\"", "\"");
+        if (s.indexOf('\\') < 0)
+            return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+                continue;
+            }
+            char e = s.charAt(++i);
+            switch (e) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    int code = i + 4 < s.length() ? parseHex4(s, i + 1) : -1;
+                    if (code >= 0) {
+                        sb.append((char) code);
+                        i += 4;
+                        break;
+                    }
+                    // Not four hex digits; keep it as written
+                    sb.append('\\').append(e);
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(e);
+                    break;
+                default:
+                    // Not a JSON escape; keep it as written
+                    sb.append('\\').append(e);
+            }
+        }
+        return sb.toString();
+    }
+
+    // The value of the four ASCII hex digits at 'from', or -1 if they are not
+    // all hex digits
+    private static int parseHex4(String s, int from) {
+        int value = 0;
+        for (int i = from; i < from + 4; i++) {
+            char c = s.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+            } else {
+                return -1;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
     }
 
     // Parses a simple JSON object string into a Map
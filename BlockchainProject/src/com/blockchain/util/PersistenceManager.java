@@ -2,15 +2,165 @@ package com.blockchain.util;
 
 import com.blockchain.model.Block;
 import com.blockchain.model.Transaction;
+import com.blockchain.storage.BlockStore;
+import com.blockchain.storage.CompressionCodec;
+import com.blockchain.storage.LazyBlockList;
+import com.blockchain.storage.SegmentedBlockStore;
+import com.blockchain.storage.ValidationCheckpoint;
 import java.io.*;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class PersistenceManager {
 
     private static final String DEFAULT_FILE = "blockchain_data.json";
+    private static final String DEFAULT_STORE_DIR = "blockchain_data";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String LEDGER_FILE = "ledger";
+    private static final String INDEX_FILE = "index";
+
+    /**
+     * Opens the default append-only block store. If the store is empty and a
+     * legacy JSON chain file exists, the JSON chain is imported into it once.
+     */
+    public static BlockStore openStore() throws IOException {
+        return openStore((CompressionCodec) null);
+    }
+
+    /**
+     * Opens the default block store like {@link #openStore()}.
+     * 
+     * @param codec Compresses full segments, or null to leave them
+     *              uncompressed.
+     */
+    public static BlockStore openStore(CompressionCodec codec) throws IOException {
+        BlockStore store = openStore(getDefaultStoreDir(), codec);
+        if (store.size() == 0 && Files.exists(Paths.get(DEFAULT_FILE))) {
+            int imported = importJson(DEFAULT_FILE, store);
+            System.out.println("Imported " + imported + " blocks from " + DEFAULT_FILE);
+        }
+        return store;
+    }
+
+    /**
+     * Opens the block store in the given directory, creating it if needed.
+     * Segments are not compressed; segments compressed earlier can still be
+     * read.
+     */
+    public static BlockStore openStore(Path dir) throws IOException {
+        return openStore(dir, null);
+    }
+
+    /**
+     * Opens the block store in the given directory, creating it if needed.
+     * 
+     * @param codec Compresses full segments, or null to leave them
+     *              uncompressed.
+     */
+    public static BlockStore openStore(Path dir, CompressionCodec codec) throws IOException {
+        return new SegmentedBlockStore(dir, SegmentedBlockStore.DEFAULT_MAX_SEGMENT_BYTES, codec);
+    }
+
+    /**
+     * @return The directory of the default block store.
+     */
+    public static Path getDefaultStoreDir() {
+        return Paths.get(DEFAULT_STORE_DIR);
+    }
+
+    /**
+     * Reads the validation checkpoint kept next to the default store.
+     * 
+     * @return The checkpoint, or null if there is none or it is unreadable.
+     */
+    public static ValidationCheckpoint loadCheckpoint() {
+        return loadCheckpoint(getDefaultStoreDir());
+    }
+
+    /**
+     * Reads the validation checkpoint kept in a store directory.
+     * 
+     * @return The checkpoint, or null if there is none or it is unreadable.
+     */
+    public static ValidationCheckpoint loadCheckpoint(Path storeDir) {
+        try {
+            return ValidationCheckpoint.load(storeDir.resolve(CHECKPOINT_FILE));
+        } catch (IOException e) {
+            System.err.println("Failed to load validation checkpoint: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static void saveCheckpoint(ValidationCheckpoint checkpoint) {
+        saveCheckpoint(getDefaultStoreDir(), checkpoint);
+    }
+
+    public static void saveCheckpoint(Path storeDir, ValidationCheckpoint checkpoint) {
+        try {
+            checkpoint.save(storeDir.resolve(CHECKPOINT_FILE));
+        } catch (IOException e) {
+            System.err.println("Failed to save validation checkpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The file the ledger balances of the default store are
+     *         snapshotted to.
+     */
+    public static Path getLedgerSnapshotPath() {
+        return getLedgerSnapshotPath(getDefaultStoreDir());
+    }
+
+    public static Path getLedgerSnapshotPath(Path storeDir) {
+        return storeDir.resolve(LEDGER_FILE);
+    }
+
+    /**
+     * @return The file the chain index of a store is snapshotted to.
+     */
+    public static Path getIndexSnapshotPath(Path storeDir) {
+        return storeDir.resolve(INDEX_FILE);
+    }
+
+    /**
+     * Copies a chain saved in the JSON format into a block store. Nothing is
+     * written unless the whole file parses, so a damaged file cannot leave the
+     * store holding part of a chain.
+     * 
+     * @return The number of blocks imported.
+     * @throws IOException If the file cannot be read or has a malformed block.
+     */
+    public static int importJson(String filePath, BlockStore store) throws IOException {
+        List<Block> blocks;
+        try (JsonBlockReader reader = new JsonBlockReader(Files.newInputStream(Paths.get(filePath)))) {
+            blocks = reader.readAll();
+            if (reader.getSkippedBlocks() > 0) {
+                throw new IOException(reader.getSkippedBlocks() + " malformed blocks in " + filePath);
+            }
+        }
+        store.appendAll(blocks);
+        return blocks.size();
+    }
+
+    /**
+     * Returns the chain held in the store. Blocks are decoded on first access,
+     * so only the blocks that are actually used are loaded onto the heap.
+     */
+    public static List<Block> loadChainLazily(BlockStore store) {
+        return new LazyBlockList(store);
+    }
+
+    /**
+     * Reads every block in the store, in chain order.
+     */
+    public static List<Block> loadChain(BlockStore store) throws IOException {
+        List<Block> chain = new ArrayList<>(store.size());
+        for (int i = 0; i < store.size(); i++) {
+            chain.add(store.read(i));
+        }
+        return chain;
+    }
 
     public static void saveChain(List<Block> chain) {
         saveChain(chain, DEFAULT_FILE);
@@ -21,7 +171,7 @@ public class PersistenceManager {
         json.append("[\n");
         for (int i = 0; i < chain.size(); i++) {
             Block b = chain.get(i);
-            json.append(blockToJson(b));
+            json.append("  ").append(blockToJson(b));
             if (i < chain.size() - 1) {
                 json.append(",\n");
             }
@@ -29,7 +179,7 @@ public class PersistenceManager {
         json.append("\n]");
 
         try {
-            Files.write(Paths.get(filePath), json.toString().getBytes());
+            Files.write(Paths.get(filePath), json.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
         } catch (IOException e) {
             System.err.println("Failed to save blockchain: " + e.getMessage());
         }
@@ -46,70 +196,12 @@ public class PersistenceManager {
             return chain; // Empty chain
         }
 
-        try {
-            String content = new String(Files.readAllBytes(path));
-            content = content.trim();
-            if (content.startsWith("[") && content.endsWith("]")) {
-                content = content.substring(1, content.length() - 1);
-            }
-
-            // Split by objects (simple split by "},")
-            // This is fragile if data contains "},", but for this controlled env it's
-            // likely fine.
-            // Better regex: split by }, (?=\{)
-
-            String[] blockJsons = content.split("},");
-            for (String blockJson : blockJsons) {
-                blockJson = blockJson.trim();
-                if (!blockJson.endsWith("}"))
-                    blockJson += "}"; // Repair split char
-                if (blockJson.length() > 5) { // Minimal length check
-                    try {
-                        Map<String, Object> map = JsonUtil.parseBlockJson(blockJson);
-
-                        int index = (int) map.get("index");
-                        long timestamp = (long) map.get("timestamp");
-                        String previousHash = (String) map.get("previousHash");
-                        String hash = (String) map.get("hash");
-                        String merkleRoot = (String) map.get("merkleRoot");
-                        @SuppressWarnings("unchecked")
-                        List<Map<String, Object>> txMaps = (List<Map<String, Object>>) map.get("transactions");
-                        List<Transaction> transactions = new ArrayList<>();
-                        if (txMaps != null) {
-                            for (Map<String, Object> txMap : txMaps) {
-                                String sender = (String) txMap.get("sender");
-                                String recipient = (String) txMap.get("recipient");
-                                double amount = 0.0;
-                                Object amtObj = txMap.get("amount");
-                                if (amtObj instanceof Number) {
-                                    amount = ((Number) amtObj).doubleValue();
-                                } else if (amtObj instanceof String) {
-                                    try {
-                                        amount = Double.parseDouble((String) amtObj);
-                                    } catch (NumberFormatException e) {
-                                        // keeping 0.0
-                                    }
-                                }
-
-                                long txTimestamp = 0;
-                                Object timeObj = txMap.get("timestamp");
-                                if (timeObj instanceof Number) {
-                                    txTimestamp = ((Number) timeObj).longValue();
-                                }
-                                // Handle potential parsing issues or defaults
-
-                                transactions.add(new Transaction(sender, recipient, amount, txTimestamp));
-                            }
-                        }
-
-                        Block block = new Block(index, transactions, previousHash, timestamp, hash, merkleRoot);
-                        chain.add(block);
-                    } catch (Exception e) {
-                        System.err.println("Failed to parse block: " + e.getMessage());
-                    }
-                }
+        // Single streaming pass from bytes to blocks
+        try (JsonBlockReader reader = new JsonBlockReader(Files.newInputStream(path))) {
+            Block block;
+            while ((block = reader.nextBlock()) != null) {
+                chain.add(block);
             }
-
         } catch (IOException e) {
             System.err.println("Failed to load blockchain: " + e.getMessage());
         }
@@ -117,14 +209,25 @@ public class PersistenceManager {
         return chain;
     }
 
-    private static String blockToJson(Block b) {
+    /**
+     * Writes one block as a JSON object, in the format of the chain file.
+     */
+    public static String blockToJson(Block b) {
         StringBuilder sb = new StringBuilder();
-        sb.append("  {");
+        sb.append("{");
+        if (b.getVersion() != Block.VERSION_LEGACY) {
+            // Files without a version field are read as legacy blocks
+            sb.append("\"version\":").append(b.getVersion()).append(",");
+        }
         sb.append("\"index\":").append(b.getIndex()).append(",");
         sb.append("\"timestamp\":").append(b.getTimestamp()).append(",");
-        sb.append("\"previousHash\":\"").append(JsonUtil.escape(b.getPreviousHash())).append("\",");
-        sb.append("\"hash\":\"").append(JsonUtil.escape(b.getHash())).append("\",");
-        sb.append("\"merkleRoot\":\"").append(JsonUtil.escape(b.getMerkleRoot())).append("\",");
+        sb.append("\"previousHash\":\"").append(hashToJson(b.getPreviousHash(), b, "0")).append("\",");
+        sb.append("\"hash\":\"").append(hashToJson(b.getHash(), b, "0")).append("\",");
+        sb.append("\"merkleRoot\":\"").append(hashToJson(b.getMerkleRoot(), b, "")).append("\",");
+        if (b.getVersion() == Block.VERSION_POW) {
+            sb.append("\"difficulty\":").append(b.getDifficulty()).append(",");
+            sb.append("\"nonce\":").append(b.getNonce()).append(",");
+        }
 
         sb.append("\"transactions\":[");
         List<Transaction> txs = b.getTransactions();
@@ -144,4 +247,13 @@ public class PersistenceManager {
         sb.append("}");
         return sb.toString();
     }
+
+    // Legacy blocks keep the original spelling of an all-zero hash so the file
+    // matches what older versions wrote
+    private static String hashToJson(com.blockchain.model.Hash256 h, Block b, String legacyZero) {
+        if (b.getVersion() == Block.VERSION_LEGACY && h.isZero()) {
+            return legacyZero;
+        }
+        return h.toHex();
+    }
 }
@@ -0,0 +1,178 @@
+package com.blockchain.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import com.blockchain.storage.SyncPolicy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ForkChoiceTest {
+
+    @TempDir
+    Path dir;
+
+    private Blockchain chain;
+    private List<Block> prefix;
+
+    @BeforeEach
+    void setUp() {
+        chain = open();
+        prefix = branch(null, "P", 10, 0);
+        chain.appendBlocks(prefix).join();
+    }
+
+    @AfterEach
+    void tearDown() {
+        chain.close();
+    }
+
+    private Blockchain open() {
+        return new Blockchain(message -> {
+        }, SyncPolicy.perBlock(), dir);
+    }
+
+    // Blocks paying 'tag' addresses, mined to 'difficulty' if it is not 0
+    private static List<Block> branch(Block parent, String tag, int count, int difficulty) {
+        List<Block> blocks = new ArrayList<>();
+        Hash256 previous = parent == null ? Hash256.ZERO : parent.getHash();
+        int first = parent == null ? 0 : parent.getIndex() + 1;
+        for (int i = 0; i < count; i++) {
+            List<Transaction> txs = List.of(new Transaction("alice", tag, 1), new Transaction(tag + i, "bob", 2));
+            Block block;
+            if (difficulty == 0) {
+                block = new Block(Block.VERSION_BINARY, first + i, txs, previous);
+            } else {
+                Block template = new Block(first + i, txs, previous, difficulty);
+                long nonce = 0;
+                block = template;
+                while (!block.meetsDifficulty()) {
+                    block = template.withNonce(++nonce);
+                }
+            }
+            blocks.add(block);
+            previous = block.getHash();
+        }
+        return blocks;
+    }
+
+    private static List<Block> concat(List<Block> a, List<Block> b) {
+        List<Block> all = new ArrayList<>(a);
+        all.addAll(b);
+        return all;
+    }
+
+    private static void assertChain(Blockchain chain, List<Block> expected) {
+        assertEquals(expected.size(), chain.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getHash(), chain.getBlock(i).getHash(), "position " + i);
+            assertEquals(expected.get(i).getHash(), chain.getBlockByIndex(i).getHash());
+        }
+        assertTrue(chain.isChainValid());
+    }
+
+    @Test
+    void switchesToLongerBranch() {
+        chain.setForkChoice(ForkChoice.LONGEST);
+        List<Block> a = branch(prefix.get(9), "A", 3, 0);
+        chain.appendBlocks(a).join();
+        List<Block> b = branch(prefix.get(9), "B", 4, 0);
+
+        // Equal length keeps the branch seen first
+        for (int i = 0; i < 3; i++) {
+            assertEquals(BlockStatus.SIDE_BRANCH, chain.acceptBlock(b.get(i)));
+        }
+        assertChain(chain, concat(prefix, a));
+        assertEquals(BlockStatus.REORGANIZED, chain.acceptBlock(b.get(3)));
+        assertChain(chain, concat(prefix, b));
+        assertEquals(0.0, chain.getBalance("A"));
+        assertEquals(4.0, chain.getBalance("B"));
+        assertEquals(BlockStatus.DUPLICATE, chain.acceptBlock(b.get(3)));
+
+        // And back again once the first branch is longer
+        List<Block> a2 = concat(a, branch(a.get(2), "A", 2, 0));
+        assertEquals(BlockStatus.SIDE_BRANCH, chain.acceptBlock(a2.get(3)));
+        assertEquals(BlockStatus.REORGANIZED, chain.acceptBlock(a2.get(4)));
+        assertChain(chain, concat(prefix, a2));
+        assertEquals(0.0, chain.getBalance("B"));
+    }
+
+    @Test
+    void mostWorkPrefersMinedBranchOverLongerOne() {
+        chain.setForkChoice(ForkChoice.MOST_WORK);
+        List<Block> unmined = branch(prefix.get(9), "A", 5, 0);
+        chain.appendBlocks(unmined).join();
+
+        // One block of difficulty 4 counts 16, more than the five unmined blocks
+        List<Block> mined = branch(prefix.get(9), "M", 1, 4);
+        assertEquals(BlockStatus.REORGANIZED, chain.acceptBlock(mined.get(0)));
+        assertChain(chain, concat(prefix, mined));
+    }
+
+    @Test
+    void longestIgnoresDifficulty() {
+        chain.setForkChoice(ForkChoice.LONGEST);
+        List<Block> unmined = branch(prefix.get(9), "A", 5, 0);
+        chain.appendBlocks(unmined).join();
+        List<Block> mined = branch(prefix.get(9), "M", 1, 4);
+        assertEquals(BlockStatus.SIDE_BRANCH, chain.acceptBlock(mined.get(0)));
+        assertChain(chain, concat(prefix, unmined));
+    }
+
+    @Test
+    void orphansJoinOnceTheirParentArrives() {
+        chain.setForkChoice(ForkChoice.LONGEST);
+        List<Block> a = branch(prefix.get(9), "A", 2, 0);
+        chain.appendBlocks(a).join();
+        List<Block> b = branch(prefix.get(9), "B", 8, 0);
+        List<Block> shuffled = new ArrayList<>(b);
+        Collections.shuffle(shuffled, new Random(3));
+
+        Map<BlockStatus, Integer> statuses = new EnumMap<>(BlockStatus.class);
+        for (Block block : shuffled) {
+            statuses.merge(chain.acceptBlock(block), 1, Integer::sum);
+        }
+        assertTrue(statuses.getOrDefault(BlockStatus.ORPHAN, 0) > 0, statuses.toString());
+        assertChain(chain, concat(prefix, b));
+    }
+
+    @Test
+    void reorganizedChainIsWhatReopens() {
+        chain.setForkChoice(ForkChoice.LONGEST);
+        List<Block> a = branch(prefix.get(9), "A", 3, 0);
+        chain.appendBlocks(a).join();
+        List<Block> b = branch(prefix.get(4), "B", 9, 0);
+        for (Block block : b) {
+            chain.acceptBlock(block);
+        }
+        List<Block> expected = concat(prefix.subList(0, 5), b);
+        assertChain(chain, expected);
+        chain.close();
+
+        chain = open();
+        assertChain(chain, expected);
+        assertEquals(9.0, chain.getBalance("B"));
+        assertEquals(0.0, chain.getBalance("A"));
+    }
+
+    @Test
+    void dropsForksDeeperThanTheLimit() {
+        List<Block> more = branch(prefix.get(9), "A", Blockchain.MAX_REORG_DEPTH + 5, 0);
+        chain.appendBlocks(more).join();
+        Block fork = branch(prefix.get(0), "F", 1, 0).get(0);
+        assertEquals(BlockStatus.STALE, chain.acceptBlock(fork));
+        assertChain(chain, concat(prefix, more));
+    }
+}
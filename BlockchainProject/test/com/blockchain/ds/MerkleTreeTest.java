@@ -0,0 +1,137 @@
+package com.blockchain.ds;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import com.blockchain.util.HashUtil;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MerkleTreeTest {
+
+    private static List<Transaction> transactions(int count) {
+        List<Transaction> txs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            txs.add(new Transaction("sender" + i, "recipient" + (i % 3), i * 1.5, 1_000 + i));
+        }
+        return txs;
+    }
+
+    // The string-based root computed by chains saved before binary hashes
+    private static String legacyRoot(List<Transaction> txs) {
+        if (txs.isEmpty())
+            return "";
+        List<String> level = new ArrayList<>();
+        for (Transaction tx : txs) {
+            level.add(HashUtil.applySha256(tx.toString()));
+        }
+        while (level.size() > 1) {
+            List<String> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                String left = level.get(i);
+                String right = i + 1 < level.size() ? level.get(i + 1) : left;
+                next.add(HashUtil.applySha256(left + right));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    // The binary root: SHA-256 over the concatenated 32-byte children
+    private static Hash256 binaryRoot(List<Transaction> txs) {
+        List<byte[]> level = new ArrayList<>();
+        for (Transaction tx : txs) {
+            level.add(tx.calculateHash().toBytes());
+        }
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                byte[] pair = new byte[Hash256.BYTES * 2];
+                System.arraycopy(level.get(i), 0, pair, 0, Hash256.BYTES);
+                System.arraycopy(level.get(i + 1 < level.size() ? i + 1 : i), 0, pair, Hash256.BYTES, Hash256.BYTES);
+                next.add(HashUtil.sha256(pair));
+            }
+            level = next;
+        }
+        return Hash256.fromBytes(level.get(0));
+    }
+
+    @Test
+    void legacyRootMatchesTheStringAlgorithm() {
+        for (int count : new int[] { 1, 2, 3, 5, 8, 13 }) {
+            List<Transaction> txs = transactions(count);
+            assertEquals(legacyRoot(txs), new MerkleTree(txs, Block.VERSION_LEGACY).getRoot().toHex(),
+                    count + " transactions");
+        }
+    }
+
+    @Test
+    void legacyBlockHashMatchesTheStringAlgorithm() {
+        List<Transaction> txs = transactions(3);
+        Block genesis = new Block(Block.VERSION_LEGACY, 0, new ArrayList<>(), Hash256.ZERO);
+        // An all-zero hash is spelled "0", an empty Merkle root ""
+        assertEquals(HashUtil.applySha256("0" + genesis.getTimestamp() + "0" + ""), genesis.getHash().toHex());
+
+        Block next = new Block(Block.VERSION_LEGACY, 1, txs, genesis.getHash());
+        assertEquals(HashUtil.applySha256(
+                "1" + next.getTimestamp() + genesis.getHash().toHex() + legacyRoot(txs)), next.getHash().toHex());
+    }
+
+    @Test
+    void binaryRootHashesRawDigests() {
+        for (int count : new int[] { 1, 2, 3, 7, 1024, 1500 }) {
+            List<Transaction> txs = transactions(count);
+            assertEquals(binaryRoot(txs), new MerkleTree(txs, Block.VERSION_BINARY).getRoot(),
+                    count + " transactions");
+        }
+        assertTrue(new MerkleTree(new ArrayList<>(), Block.VERSION_BINARY).getRoot().isZero());
+    }
+
+    @Test
+    void proofsVerifyForEveryTransaction() {
+        for (int version : new int[] { Block.VERSION_LEGACY, Block.VERSION_BINARY }) {
+            for (int count : new int[] { 1, 2, 3, 6, 9 }) {
+                List<Transaction> txs = transactions(count);
+                MerkleTree tree = new MerkleTree(txs, version);
+                for (int i = 0; i < count; i++) {
+                    MerkleProof proof = tree.getProof(i);
+                    assertEquals(txs.get(i).calculateHash(), proof.getLeaf());
+                    assertTrue(MerkleTree.verify(proof, tree.getRoot()), "version " + version + ", " + i + "/" + count);
+                }
+            }
+        }
+    }
+
+    @Test
+    void proofFailsForAnotherRootOrPosition() {
+        List<Transaction> txs = transactions(5);
+        MerkleTree tree = new MerkleTree(txs, Block.VERSION_BINARY);
+        MerkleProof proof = tree.getProof(2);
+        assertFalse(MerkleTree.verify(proof, new MerkleTree(transactions(4), Block.VERSION_BINARY).getRoot()));
+
+        byte[] siblings = new byte[proof.getDepth() * Hash256.BYTES];
+        for (int level = 0; level < proof.getDepth(); level++) {
+            proof.getSibling(level).writeTo(siblings, level * Hash256.BYTES);
+        }
+        MerkleProof moved = new MerkleProof(proof.getVersion(), 3, proof.getLeaf(), siblings);
+        assertFalse(MerkleTree.verify(moved, tree.getRoot()));
+
+        // A legacy proof does not verify against the binary hashing
+        MerkleTree legacy = new MerkleTree(txs, Block.VERSION_LEGACY);
+        MerkleProof legacyProof = legacy.getProof(2);
+        assertFalse(MerkleTree.verify(legacyProof, tree.getRoot()));
+    }
+
+    @Test
+    void rejectsProofOutsideTheTree() {
+        MerkleTree tree = new MerkleTree(transactions(3), Block.VERSION_BINARY);
+        assertThrows(IndexOutOfBoundsException.class, () -> tree.getProof(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> tree.getProof(-1));
+    }
+}
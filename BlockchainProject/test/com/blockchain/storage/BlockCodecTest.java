@@ -0,0 +1,123 @@
+package com.blockchain.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import com.blockchain.util.HashUtil;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class BlockCodecTest {
+
+    private static Hash256 hash(String seed) {
+        return Hash256.fromBytes(HashUtil.sha256(seed.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Block block(int version, int index, long timestamp, int difficulty, long nonce,
+            List<Transaction> txs) {
+        return new Block(index, txs, hash("prev" + index), timestamp, hash("hash" + index), hash("root" + index),
+                version, difficulty, nonce);
+    }
+
+    static void assertSameBlock(Block expected, Block actual) {
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getIndex(), actual.getIndex());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getPreviousHash(), actual.getPreviousHash());
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getMerkleRoot(), actual.getMerkleRoot());
+        assertEquals(expected.getDifficulty(), actual.getDifficulty());
+        assertEquals(expected.getNonce(), actual.getNonce());
+        assertEquals(expected.getTransactions().size(), actual.getTransactions().size());
+        for (int i = 0; i < expected.getTransactions().size(); i++) {
+            Transaction e = expected.getTransactions().get(i);
+            Transaction a = actual.getTransactions().get(i);
+            assertEquals(e.getSender(), a.getSender());
+            assertEquals(e.getRecipient(), a.getRecipient());
+            assertEquals(Double.doubleToRawLongBits(e.getAmount()), Double.doubleToRawLongBits(a.getAmount()));
+            assertEquals(e.getTimestamp(), a.getTimestamp());
+        }
+    }
+
+    private static Block roundTrip(Block block, byte format) throws IOException {
+        byte[] encoded = BlockCodec.encode(block, format);
+        assertEquals(format, encoded[0]);
+        Block decoded = BlockCodec.decode(encoded, 0, encoded.length);
+        assertSameBlock(block, decoded);
+        return decoded;
+    }
+
+    @Test
+    void roundTripsBlocksOfEveryVersion() throws IOException {
+        List<Transaction> txs = List.of(new Transaction("alice", "bob", 12.5, 1_700_000_000_123L),
+                new Transaction("bob", "carol", 0.1, 1_700_000_000_100L));
+        for (byte format : new byte[] { BlockCodec.VERSION_2, BlockCodec.VERSION_3 }) {
+            roundTrip(block(Block.VERSION_LEGACY, 7, 1_700_000_000_000L, 0, 0, txs), format);
+            roundTrip(block(Block.VERSION_BINARY, 8, 1_700_000_000_000L, 0, 0, txs), format);
+            roundTrip(block(Block.VERSION_POW, 9, 1_700_000_000_000L, 20, 123_456_789L, txs), format);
+        }
+    }
+
+    @Test
+    void varintsKeepExtremeValues() throws IOException {
+        List<Transaction> txs = List.of(new Transaction("a", "b", Double.MAX_VALUE, Long.MIN_VALUE),
+                new Transaction("b", "a", -0.0, Long.MAX_VALUE),
+                new Transaction("a", "a", Double.NaN, 0));
+        long[] timestamps = { 0, 1, 127, 128, 16_383, 16_384, Long.MAX_VALUE, -1, Long.MIN_VALUE };
+        for (long timestamp : timestamps) {
+            roundTrip(block(Block.VERSION_BINARY, Integer.MAX_VALUE, timestamp, 0, 0, txs), BlockCodec.VERSION_3);
+        }
+        long[] nonces = { 0, 127, 128, Long.MAX_VALUE, -1, Long.MIN_VALUE };
+        for (long nonce : nonces) {
+            roundTrip(block(Block.VERSION_POW, 0, 5, 255, nonce, txs), BlockCodec.VERSION_3);
+        }
+        roundTrip(block(Block.VERSION_BINARY, 0, 0, 0, 0, new ArrayList<>()), BlockCodec.VERSION_3);
+    }
+
+    @Test
+    void addressDictionaryKeepsNullsAndUnicode() throws IOException {
+        List<Transaction> txs = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            txs.add(new Transaction(i % 7 == 0 ? null : "sender-é中-" + (i % 5), "recipient-" + (i % 3),
+                    i * 0.25, 1_000 + i));
+        }
+        Block block = block(Block.VERSION_BINARY, 42, 1_000, 0, 0, txs);
+        roundTrip(block, BlockCodec.VERSION_3);
+
+        // Repeated addresses are written once, so the compact form is smaller
+        assertTrue(BlockCodec.encode(block, BlockCodec.VERSION_3).length < BlockCodec.encode(block,
+                BlockCodec.VERSION_2).length / 2);
+    }
+
+    @Test
+    void defaultEncodingIsVersion3() {
+        Block block = block(Block.VERSION_BINARY, 1, 2, 0, 0, List.of(new Transaction("a", "b", 1, 2)));
+        assertArrayEquals(BlockCodec.encode(block, BlockCodec.VERSION_3), BlockCodec.encode(block));
+    }
+
+    @Test
+    void rejectsTruncatedRecords() {
+        Block block = block(Block.VERSION_POW, 3, 1_000, 8, 99, List.of(new Transaction("a", "b", 1, 1_001)));
+        byte[] encoded = BlockCodec.encode(block);
+        for (int length = 1; length < encoded.length; length++) {
+            byte[] cut = Arrays.copyOf(encoded, length);
+            int n = length;
+            assertThrows(IOException.class, () -> BlockCodec.decode(cut, 0, n), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsUnknownFormat() {
+        byte[] data = { 9, 0, 0, 0 };
+        assertThrows(IOException.class, () -> BlockCodec.decode(data, 0, data.length));
+    }
+}
@@ -0,0 +1,126 @@
+package com.blockchain.storage;
+
+import static com.blockchain.storage.SegmentedBlockStoreTest.assertContents;
+import static com.blockchain.storage.SegmentedBlockStoreTest.chain;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import com.blockchain.model.Block;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeflateCodecTest {
+
+    // Several chunks per segment
+    private static final long SEGMENT_BYTES = 4 * SegmentedBlockStore.CHUNK_BYTES;
+
+    @TempDir
+    Path dir;
+
+    private static long count(Path dir, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(suffix)).count();
+        }
+    }
+
+    // A segment can briefly exist in both forms while it is swapped
+    private static long segmentCount(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith("segment-"))
+                    .map(name -> name.substring(0, name.indexOf('.')))
+                    .distinct()
+                    .count();
+        }
+    }
+
+    // Compression runs in the background
+    private static void awaitCompressed(Path dir, long segments) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (count(dir, ".clog") < segments) {
+            if (System.nanoTime() > deadline) {
+                fail("Segments were not compressed: " + count(dir, ".clog") + " of " + segments);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void roundTripsData() throws IOException {
+        CompressionCodec codec = CompressionCodec.deflate();
+        Random random = new Random(1);
+        for (int length : new int[] { 0, 1, 100, 70_000 }) {
+            byte[] data = new byte[length + 10];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (random.nextInt(4) + 'a');
+            }
+            byte[] packed = codec.compress(data, 5, length);
+            assertArrayEquals(java.util.Arrays.copyOfRange(data, 5, 5 + length),
+                    codec.decompress(packed, 0, packed.length, length));
+        }
+        assertEquals(codec.getId(), CompressionCodec.forId(codec.getId()).getId());
+    }
+
+    @Test
+    void readsEveryBlockThroughTheChunkIndex() throws Exception {
+        List<Block> blocks = chain("a", 1500, null);
+        long sealed;
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES, CompressionCodec.deflate())) {
+            store.appendAll(blocks);
+            sealed = segmentCount(dir) - 1;
+            assertTrue(sealed >= 2);
+            awaitCompressed(dir, sealed);
+            assertContents(store, blocks);
+            // Out of order, so chunks are inflated again after leaving the cache
+            Random random = new Random(2);
+            for (int i = 0; i < 2000; i++) {
+                int position = random.nextInt(blocks.size());
+                assertEquals(blocks.get(position).getHash(), store.read(position).getHash());
+            }
+            for (int position = blocks.size() - 1; position >= 0; position -= 7) {
+                byte[] encoded = store.readEncoded(position);
+                assertEquals(blocks.get(position).getHash(), BlockCodec.decode(encoded, 0, encoded.length).getHash());
+            }
+        }
+        assertEquals(sealed, count(dir, ".clog"));
+        assertEquals(1, count(dir, ".log"));
+        // Compressed segments are read through their index, with or without a codec
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES, CompressionCodec.deflate())) {
+            assertContents(store, blocks);
+        }
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES, null)) {
+            assertContents(store, blocks);
+        }
+    }
+
+    @Test
+    void truncatesIntoCompressedSegment() throws Exception {
+        List<Block> blocks = chain("a", 1500, null);
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES, CompressionCodec.deflate())) {
+            store.appendAll(blocks);
+            awaitCompressed(dir, segmentCount(dir) - 1);
+            int cut = 200;
+            store.truncate(cut);
+            List<Block> expected = new ArrayList<>(blocks.subList(0, cut));
+            assertContents(store, expected);
+            List<Block> branch = chain("b", 50, blocks.get(cut - 1));
+            store.appendAll(branch);
+            expected.addAll(branch);
+            assertContents(store, expected);
+            store.close();
+            try (SegmentedBlockStore reopened = new SegmentedBlockStore(dir, SEGMENT_BYTES,
+                    CompressionCodec.deflate())) {
+                assertContents(reopened, expected);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.blockchain.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.blockchain.model.Block;
+import com.blockchain.model.Hash256;
+import com.blockchain.model.Transaction;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentedBlockStoreTest {
+
+    private static final long SEGMENT_BYTES = 8 * 1024;
+
+    @TempDir
+    Path dir;
+
+    static List<Block> chain(String tag, int count, Block parent) {
+        List<Block> blocks = new ArrayList<>();
+        Hash256 previous = parent == null ? Hash256.ZERO : parent.getHash();
+        int first = parent == null ? 0 : parent.getIndex() + 1;
+        for (int i = 0; i < count; i++) {
+            List<Transaction> txs = List.of(new Transaction("alice", tag + i, i + 1),
+                    new Transaction(tag + "-miner", "alice", 0.5));
+            Block block = new Block(Block.VERSION_BINARY, first + i, txs, previous);
+            blocks.add(block);
+            previous = block.getHash();
+        }
+        return blocks;
+    }
+
+    static void assertContents(BlockStore store, List<Block> expected) throws IOException {
+        assertEquals(expected.size(), store.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getHash(), store.read(i).getHash(), "position " + i);
+        }
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("segment-")).sorted().toList();
+        }
+    }
+
+    @Test
+    void readsBackAcrossSegmentsAndReopens() throws IOException {
+        List<Block> blocks = chain("a", 500, null);
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES)) {
+            store.appendAll(blocks);
+            assertContents(store, blocks);
+        }
+        assertTrue(segments(dir).size() > 3);
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES)) {
+            assertContents(store, blocks);
+        }
+    }
+
+    @Test
+    void cutsOffTornRecordOnOpen() throws IOException {
+        List<Block> blocks = chain("a", 100, null);
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES)) {
+            store.appendAll(blocks);
+        }
+        Path last = segments(dir).get(segments(dir).size() - 1);
+        long intact = Files.size(last);
+        // A record whose header promises more bytes than were written
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(11).putInt(500).putInt(0x1234).put(new byte[] { 3, 1, 2 }).flip());
+        }
+
+        List<Block> more = chain("b", 5, blocks.get(blocks.size() - 1));
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES)) {
+            assertContents(store, blocks);
+            assertEquals(intact, Files.size(last));
+            store.appendAll(more);
+        }
+        List<Block> expected = new ArrayList<>(blocks);
+        expected.addAll(more);
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES)) {
+            assertContents(store, expected);
+        }
+    }
+
+    @Test
+    void cutsOffRecordWithBadChecksumAtTheEnd() throws IOException {
+        List<Block> blocks = chain("a", 20, null);
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES * 100)) {
+            store.appendAll(blocks);
+        }
+        Path segment = segments(dir).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            channel.write(ByteBuffer.wrap(new byte[] { 0x55 }), size - 1);
+        }
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES * 100)) {
+            assertContents(store, blocks.subList(0, 19));
+        }
+    }
+
+    @Test
+    void detectsCorruptionInSealedSegment() throws IOException {
+        List<Block> blocks = chain("a", 300, null);
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES)) {
+            store.appendAll(blocks);
+        }
+        Path first = segments(dir).get(0);
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE)) {
+            // Inside the payload of the first record
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7f }), 20);
+        }
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES)) {
+            assertEquals(blocks.size(), store.size());
+            assertThrows(IOException.class, () -> store.read(0));
+            assertThrows(IOException.class, () -> store.readEncoded(0));
+            assertEquals(blocks.get(1).getHash(), store.read(1).getHash());
+        }
+    }
+
+    @Test
+    void readEncodedMatchesTheCodec() throws IOException {
+        List<Block> blocks = chain("a", 50, null);
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES)) {
+            store.appendAll(blocks);
+            for (int i = 0; i < blocks.size(); i++) {
+                byte[] encoded = store.readEncoded(i);
+                assertEquals(blocks.get(i).getHash(), BlockCodec.decode(encoded, 0, encoded.length).getHash());
+            }
+        }
+    }
+
+    @Test
+    void truncatesAndAppendsAnotherBranch() throws IOException {
+        List<Block> blocks = chain("a", 400, null);
+        int[] cuts = { 399, 250, 100, 1, 0 };
+        for (int cut : cuts) {
+            Path storeDir = dir.resolve("cut" + cut);
+            List<Block> expected = new ArrayList<>(blocks.subList(0, cut));
+            try (SegmentedBlockStore store = new SegmentedBlockStore(storeDir, SEGMENT_BYTES)) {
+                store.appendAll(blocks);
+                int before = segments(storeDir).size();
+                store.truncate(cut);
+                assertContents(store, expected);
+                assertTrue(segments(storeDir).size() <= before);
+
+                List<Block> branch = chain("b", 30, cut == 0 ? null : blocks.get(cut - 1));
+                store.appendAll(branch);
+                expected.addAll(branch);
+                assertContents(store, expected);
+            }
+            try (SegmentedBlockStore store = new SegmentedBlockStore(storeDir, SEGMENT_BYTES)) {
+                assertContents(store, expected);
+            }
+        }
+    }
+
+    @Test
+    void truncatingToTheSizeKeepsEverything() throws IOException {
+        List<Block> blocks = chain("a", 40, null);
+        try (SegmentedBlockStore store = new SegmentedBlockStore(dir, SEGMENT_BYTES)) {
+            store.appendAll(blocks);
+            store.truncate(blocks.size());
+            assertContents(store, blocks);
+        }
+    }
+}